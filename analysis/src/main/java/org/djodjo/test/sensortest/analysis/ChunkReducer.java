@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summarizes a range of records of a session by splitting it in halves
+ * until the pieces are small enough, mapping each piece on its own and
+ * merging the partial summaries in file order.
+ */
+class ChunkReducer extends RecursiveTask<SessionSummary> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Records summarized by one leaf task; 40MB with 40-byte records. */
+	static final long LEAF_RECORDS = 1 << 20;
+
+	private final FileChannel mChannel;
+	private final SessionFormat.Header mHeader;
+	private final long mFirst;
+	private final long mCount;
+	private final long mLeafRecords;
+
+	/**
+	 * Constructs ChunkReducer instance.
+	 *
+	 * @param channel session file, shared by all tasks.
+	 * @param header session header.
+	 * @param first index of the first record.
+	 * @param count number of records.
+	 * @param leafRecords maximum number of records summarized without splitting.
+	 */
+	ChunkReducer(FileChannel channel, SessionFormat.Header header, long first, long count,
+			long leafRecords) {
+		mChannel = channel;
+		mHeader = header;
+		mFirst = first;
+		mCount = count;
+		mLeafRecords = leafRecords;
+	}
+
+	@Override
+	protected SessionSummary compute() {
+		if (mCount <= mLeafRecords) {
+			try {
+				return summarize();
+			} catch (IOException e) {
+				// Unwrapped by SessionAnalyzer.
+				throw new RuntimeException(e);
+			}
+		}
+		// Split on a leaf boundary so that every mapping has the same size.
+		long half = (mCount / 2 + mLeafRecords - 1) / mLeafRecords * mLeafRecords;
+		ChunkReducer first = new ChunkReducer(mChannel, mHeader, mFirst, half, mLeafRecords);
+		ChunkReducer second = new ChunkReducer(mChannel, mHeader, mFirst + half,
+				mCount - half, mLeafRecords);
+		first.fork();
+		SessionSummary tail = second.compute();
+		SessionSummary head = first.join();
+		head.merge(tail);
+		return head;
+	}
+
+	private SessionSummary summarize() throws IOException {
+		final SessionSummary summary = new SessionSummary(mHeader);
+		final MappedByteBuffer buffer = SessionFormat.mapRecords(mChannel, mHeader, mFirst, mCount);
+		final float[] values = new float[SessionFormat.MAX_VALUES];
+		final int end = (int) (mCount * SessionFormat.RECORD_SIZE);
+		long invalid = 0;
+		for (int base = 0; base < end; base += SessionFormat.RECORD_SIZE) {
+			SensorSummary sensor = summary.getSensor(buffer.getShort(base + SessionFormat.OFF_SENSOR));
+			if (sensor == null) {
+				invalid++;
+				continue;
+			}
+			long timestampNs = buffer.getLong(base + SessionFormat.OFF_TIMESTAMP);
+			switch (buffer.get(base + SessionFormat.OFF_KIND)) {
+			case SessionFormat.KIND_SAMPLE:
+				int count = Math.min(buffer.get(base + SessionFormat.OFF_COUNT),
+						SessionFormat.MAX_VALUES);
+				for (int i = 0; i < count; i++) {
+					values[i] = buffer.getFloat(base + SessionFormat.OFF_VALUES + 4 * i);
+				}
+				sensor.addSample(timestampNs, values, Math.max(count, 0));
+				break;
+			case SessionFormat.KIND_QUALITY:
+				sensor.addQualityEvent();
+				break;
+			case SessionFormat.KIND_EVENT:
+				sensor.addEvent();
+				break;
+			default:
+				invalid++;
+				break;
+			}
+		}
+		summary.onRecords(mCount, invalid);
+		return summary;
+	}
+}
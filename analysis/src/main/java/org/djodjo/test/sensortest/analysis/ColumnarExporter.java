@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports a session as one directory of raw little-endian columns, ready to
+ * be memory-mapped by numpy, R or a columnar database.
+ * <p/>
+ * Each sensor gets a {@code <index>-<name>.ts} column of int64 time stamps
+ * and one {@code .v<n>} float32 column per value, as many as in its first
+ * sample. Quality annotations and events go to the {@code markers.*}
+ * columns. {@code schema.json} lists every column with its type, unit and
+ * row count.
+ */
+class ColumnarExporter {
+
+	/** Buffer size of one column. */
+	private static final int COLUMN_BUFFER = 256 * 1024;
+	/** Records mapped at once. */
+	private static final int CHUNK_RECORDS = 1 << 20;
+
+	/** One column file, written through a large buffer. */
+	private static class Column {
+		final String name;
+		final String type;
+		final String unit;
+		final FileOutputStream out;
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(COLUMN_BUFFER).order(SessionFormat.ORDER);
+		long rows;
+
+		Column(File dir, String name, String type, String unit) throws IOException {
+			this.name = name;
+			this.type = type;
+			this.unit = unit;
+			out = new FileOutputStream(new File(dir, name));
+			channel = out.getChannel();
+		}
+
+		/** Makes room for one more value. */
+		ByteBuffer reserve(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+			rows++;
+			return buffer;
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	private final SessionFormat.Header mHeader;
+	private final File mDir;
+	private final List<Column> mColumns = new ArrayList<Column>();
+	/** Per sensor: time stamp column followed by value columns, null until the first sample. */
+	private final Column[][] mSensorColumns;
+	private Column mMarkerTime;
+	private Column mMarkerSensor;
+	private Column mMarkerKind;
+	private Column mMarkerFlags;
+
+	/**
+	 * Constructs ColumnarExporter instance.
+	 *
+	 * @param header session header.
+	 * @param dir output directory, created if needed.
+	 */
+	ColumnarExporter(SessionFormat.Header header, File dir) {
+		mHeader = header;
+		mDir = dir;
+		mSensorColumns = new Column[header.sensors.length][];
+	}
+
+	/**
+	 * Exports all records.
+	 *
+	 * @param in session file.
+	 * @param records number of records.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	void export(FileChannel in, long records) throws IOException {
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("cannot create " + mDir);
+		}
+		try {
+			for (long first = 0; first < records; first += CHUNK_RECORDS) {
+				int count = (int) Math.min(CHUNK_RECORDS, records - first);
+				exportChunk(SessionFormat.mapRecords(in, mHeader, first, count), count);
+			}
+			for (Column column : mColumns) {
+				column.flush();
+			}
+			writeSchema();
+		} finally {
+			for (Column column : mColumns) {
+				column.out.close();
+			}
+		}
+	}
+
+	private void exportChunk(MappedByteBuffer records, int count) throws IOException {
+		for (int r = 0; r < count; r++) {
+			final int base = r * SessionFormat.RECORD_SIZE;
+			final int sensor = records.getShort(base + SessionFormat.OFF_SENSOR);
+			if (sensor < 0 || sensor >= mSensorColumns.length) {
+				continue;
+			}
+			final long timestampNs = records.getLong(base + SessionFormat.OFF_TIMESTAMP);
+			final int kind = records.get(base + SessionFormat.OFF_KIND);
+			if (kind != SessionFormat.KIND_SAMPLE) {
+				if (mMarkerTime == null) {
+					mMarkerTime = open("markers.ts", "int64", "ns");
+					mMarkerSensor = open("markers.sensor", "int16", "");
+					mMarkerKind = open("markers.kind", "int8", "");
+					mMarkerFlags = open("markers.flags", "int32", "");
+				}
+				mMarkerTime.reserve(8).putLong(timestampNs);
+				mMarkerSensor.reserve(2).putShort((short) sensor);
+				mMarkerKind.reserve(1).put((byte) kind);
+				mMarkerFlags.reserve(4).putInt(records.getInt(base + SessionFormat.OFF_FLAGS));
+				continue;
+			}
+			Column[] columns = mSensorColumns[sensor];
+			if (columns == null) {
+				int values = Math.max(1, Math.min(records.get(base + SessionFormat.OFF_COUNT),
+						SessionFormat.MAX_VALUES));
+				columns = mSensorColumns[sensor] = openSensor(sensor, values);
+			}
+			columns[0].reserve(8).putLong(timestampNs);
+			for (int i = 1; i < columns.length; i++) {
+				// Values missing from a shorter sample are written as 0.
+				columns[i].reserve(4).putFloat(
+						records.getFloat(base + SessionFormat.OFF_VALUES + 4 * (i - 1)));
+			}
+		}
+	}
+
+	private Column[] openSensor(int index, int values) throws IOException {
+		SessionFormat.SensorEntry sensor = mHeader.sensors[index];
+		String prefix = index + "-" + sensor.name.replaceAll("[^A-Za-z0-9_.-]", "_");
+		String unit = TextEncoder.getUnit(sensor.uiName);
+		Column[] columns = new Column[1 + values];
+		columns[0] = open(prefix + ".ts", "int64", "ns");
+		for (int i = 0; i < values; i++) {
+			columns[1 + i] = open(prefix + ".v" + i, "float32", unit);
+		}
+		return columns;
+	}
+
+	private Column open(String name, String type, String unit) throws IOException {
+		Column column = new Column(mDir, name, type, unit);
+		mColumns.add(column);
+		return column;
+	}
+
+	private void writeSchema() throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(mDir, "schema.json")),
+				"UTF-8");
+		try {
+			out.write("{\"byteOrder\":\"little-endian\",\"startWallMs\":" + mHeader.startWallMs
+					+ ",\"startTimestampNs\":" + mHeader.startTimestampNs + ",\"sensors\":[");
+			for (int i = 0; i < mHeader.sensors.length; i++) {
+				SessionFormat.SensorEntry sensor = mHeader.sensors[i];
+				out.write((i > 0 ? "," : "") + "{\"index\":" + i + ",\"type\":" + sensor.type
+						+ ",\"name\":" + json(sensor.name) + ",\"uiName\":" + json(sensor.uiName)
+						+ "}");
+			}
+			out.write("],\"columns\":[");
+			for (int i = 0; i < mColumns.size(); i++) {
+				Column column = mColumns.get(i);
+				out.write((i > 0 ? "," : "") + "{\"file\":" + json(column.name) + ",\"type\":"
+						+ json(column.type) + ",\"unit\":" + json(column.unit) + ",\"rows\":"
+						+ column.rows + "}");
+			}
+			out.write("]}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String json(String s) {
+		return TextEncoder.jsonString(s);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+/**
+ * Formats numbers as ASCII straight into a byte array, without allocating.
+ * <p/>
+ * Floats are written with as few significant digits as parse back to the
+ * same float, up to a maximum; with {@link #FLOAT_DIGITS} every float parses
+ * back exactly. The number of decimals follows from the magnitude, so small
+ * values keep their precision. Values from 1e-4 to 1e15 are written in
+ * fixed-point, others in scientific notation, trailing zeros removed. The
+ * output parses back with Float.parseFloat and in JSON.
+ */
+public final class FloatFormat {
+
+	/** Maximum bytes written by {@link #appendFloat}. */
+	public static final int MAX_FLOAT_LENGTH = 24;
+	/** Maximum bytes written by {@link #appendLong}. */
+	public static final int MAX_LONG_LENGTH = 20;
+	/** Significant digits that round-trip any float. */
+	public static final int FLOAT_DIGITS = 9;
+
+	/** Significant digits tried first; fewer are written as trailing zeros. */
+	private static final int MIN_SIGNIFICANT = 6;
+	private static final long[] POW10 = new long[19];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+	/** Values at or above this are written in scientific notation. */
+	private static final double MAX_FIXED = 1e15;
+	/** Values below this are written in scientific notation. */
+	private static final double MIN_FIXED = 1e-4;
+
+	private static final byte[] NAN = { 'N', 'a', 'N' };
+	private static final byte[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+
+	private FloatFormat() {
+	}
+
+	/**
+	 * Appends a long in decimal.
+	 *
+	 * @param dst destination, with at least MAX_LONG_LENGTH bytes free.
+	 * @param pos where to write.
+	 * @param value value to write.
+	 * @return Position after the last byte written.
+	 */
+	public static int appendLong(byte[] dst, int pos, long value) {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				// Cannot be negated; write the last digit separately.
+				pos = appendLong(dst, pos, value / 10);
+				dst[pos++] = (byte) ('0' + -(value % 10));
+				return pos;
+			}
+			dst[pos++] = '-';
+			value = -value;
+		}
+		int digits = digits(value);
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			dst[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * Appends a float with up to a given number of significant digits.
+	 *
+	 * @param dst destination, with at least MAX_FLOAT_LENGTH bytes free.
+	 * @param pos where to write.
+	 * @param value value to write. NaN and infinities are written as in
+	 *            Float.toString.
+	 * @param maxSignificant maximum significant digits, 1 to FLOAT_DIGITS;
+	 *            FLOAT_DIGITS for an exact round-trip.
+	 * @return Position after the last byte written.
+	 */
+	public static int appendFloat(byte[] dst, int pos, float value, int maxSignificant) {
+		if (value != value) {
+			return put(dst, pos, NAN);
+		}
+		double d = value;
+		if (d < 0) {
+			dst[pos++] = '-';
+			d = -d;
+		}
+		if (d == Double.POSITIVE_INFINITY) {
+			return put(dst, pos, INFINITY);
+		}
+		if (d == 0) {
+			dst[pos++] = '0';
+			return pos;
+		}
+		final float magnitude = (float) d;
+		int exponent = (int) Math.floor(Math.log10(d));
+		if (d >= MAX_FIXED || d < MIN_FIXED) {
+			double mantissa = d / Math.pow(10, exponent);
+			if (mantissa >= 10) {
+				mantissa /= 10;
+				exponent++;
+			} else if (mantissa < 1) {
+				mantissa *= 10;
+				exponent--;
+			}
+			int significant = Math.min(MIN_SIGNIFICANT, maxSignificant);
+			long scaled = Math.round(mantissa * POW10[significant - 1]);
+			while (significant < maxSignificant && (float) (scaled / (double) POW10[significant - 1]
+					* Math.pow(10, exponent)) != magnitude) {
+				significant++;
+				scaled = Math.round(mantissa * POW10[significant - 1]);
+			}
+			if (scaled >= POW10[significant]) {
+				// Rounded up to 10.
+				scaled /= 10;
+				exponent++;
+			}
+			pos = appendFixed(dst, pos, scaled, significant - 1);
+			dst[pos++] = 'E';
+			return appendLong(dst, pos, exponent);
+		}
+		// Decimals giving the significant digits; negative to round to tens and more.
+		int significant = Math.min(MIN_SIGNIFICANT, maxSignificant);
+		int decimals = significant - 1 - exponent;
+		long scaled = round(d, decimals);
+		while (significant < maxSignificant && (float) unscale(scaled, decimals) != magnitude) {
+			significant++;
+			decimals++;
+			scaled = round(d, decimals);
+		}
+		if (decimals < 0) {
+			return appendLong(dst, pos, scaled * POW10[-decimals]);
+		}
+		return appendFixed(dst, pos, scaled, decimals);
+	}
+
+	/** Rounds d * 10^decimals. */
+	private static long round(double d, int decimals) {
+		return decimals >= 0 ? Math.round(d * POW10[decimals]) : Math.round(d / POW10[-decimals]);
+	}
+
+	private static double unscale(long scaled, int decimals) {
+		return decimals >= 0 ? scaled / (double) POW10[decimals] : (double) (scaled * POW10[-decimals]);
+	}
+
+	/**
+	 * Writes scaled / 10^decimals, without trailing zeros.
+	 */
+	private static int appendFixed(byte[] dst, int pos, long scaled, int decimals) {
+		long unit = POW10[decimals];
+		pos = appendLong(dst, pos, scaled / unit);
+		long fraction = scaled % unit;
+		if (fraction != 0) {
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				decimals--;
+			}
+			dst[pos++] = '.';
+			int end = pos + decimals;
+			for (int i = end - 1; i >= pos; i--) {
+				dst[i] = (byte) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			pos = end;
+		}
+		return pos;
+	}
+
+	private static int digits(long value) {
+		int digits = 1;
+		while (digits < POW10.length && value >= POW10[digits]) {
+			digits++;
+		}
+		return digits;
+	}
+
+	private static int put(byte[] dst, int pos, byte[] src) {
+		System.arraycopy(src, 0, dst, pos, src.length);
+		return pos + src.length;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+/**
+ * Statistics of one sensor over a contiguous range of records.
+ * <p/>
+ * Summaries of adjacent ranges are merged in file order, which also accounts
+ * for the interval between the last sample of the first range and the first
+ * sample of the second, so the result does not depend on how a session was
+ * split.
+ */
+public final class SensorSummary {
+
+	/** Bins of the sample magnitude histogram; the last one counts overflows. */
+	public static final int HISTOGRAM_BINS = 256;
+	/** Histogram range used when the sensor does not report one. */
+	private static final float DEFAULT_RANGE = 1000f;
+
+	/** Upper bound of the histogram range. */
+	private final float mRange;
+
+	private long mSamples;
+	private long mFirstNs;
+	private long mLastNs;
+	private long mIntervals;
+	private long mIntervalSumNs;
+	private double mIntervalSumSq;
+	private long mMinIntervalNs = Long.MAX_VALUE;
+	private long mMaxIntervalNs;
+	private long mNonMonotonic;
+	private int mValueCount;
+	private final float[] mMin = new float[SessionFormat.MAX_VALUES];
+	private final float[] mMax = new float[SessionFormat.MAX_VALUES];
+	private final long[] mHistogram = new long[HISTOGRAM_BINS];
+	private long mQualityEvents;
+	private long mEvents;
+
+	/**
+	 * Constructs SensorSummary instance.
+	 *
+	 * @param sensor recorded sensor, for the histogram range.
+	 */
+	public SensorSummary(SessionFormat.SensorEntry sensor) {
+		float range = sensor.maxRange > 0 ? sensor.maxRange : DEFAULT_RANGE;
+		// The magnitude of a 3-axis sample can reach sqrt(3) times the range.
+		mRange = range * 1.7320508f;
+	}
+
+	/**
+	 * Adds one sample, in file order.
+	 *
+	 * @param timestampNs time stamp of the sample.
+	 * @param values sample values.
+	 * @param count number of valid values.
+	 */
+	public void addSample(long timestampNs, float[] values, int count) {
+		if (mSamples == 0) {
+			mFirstNs = timestampNs;
+		} else {
+			addInterval(timestampNs - mLastNs);
+		}
+		mLastNs = timestampNs;
+
+		double sq = 0;
+		for (int i = 0; i < count; i++) {
+			float v = values[i];
+			if (mSamples == 0 || i >= mValueCount) {
+				mMin[i] = v;
+				mMax[i] = v;
+			} else {
+				if (v < mMin[i]) mMin[i] = v;
+				if (v > mMax[i]) mMax[i] = v;
+			}
+			if (i < 3) {
+				sq += (double) v * v;
+			}
+		}
+		if (count > mValueCount) {
+			mValueCount = count;
+		}
+		int bin = (int) (Math.sqrt(sq) / mRange * (HISTOGRAM_BINS - 1));
+		mHistogram[bin < HISTOGRAM_BINS - 1 ? bin : HISTOGRAM_BINS - 1]++;
+		mSamples++;
+	}
+
+	/**
+	 * Counts one KIND_QUALITY record.
+	 */
+	public void addQualityEvent() {
+		mQualityEvents++;
+	}
+
+	/**
+	 * Counts one KIND_EVENT record.
+	 */
+	public void addEvent() {
+		mEvents++;
+	}
+
+	private void addInterval(long intervalNs) {
+		if (intervalNs <= 0) {
+			mNonMonotonic++;
+			return;
+		}
+		mIntervals++;
+		mIntervalSumNs += intervalNs;
+		mIntervalSumSq += (double) intervalNs * intervalNs;
+		if (intervalNs < mMinIntervalNs) mMinIntervalNs = intervalNs;
+		if (intervalNs > mMaxIntervalNs) mMaxIntervalNs = intervalNs;
+	}
+
+	/**
+	 * Merges the summary of the range that immediately follows this one.
+	 *
+	 * @param next summary of the same sensor over the next range.
+	 */
+	public void merge(SensorSummary next) {
+		mQualityEvents += next.mQualityEvents;
+		mEvents += next.mEvents;
+		if (next.mSamples == 0) {
+			return;
+		}
+		if (mSamples == 0) {
+			mFirstNs = next.mFirstNs;
+		} else {
+			addInterval(next.mFirstNs - mLastNs);
+		}
+		mLastNs = next.mLastNs;
+		mIntervals += next.mIntervals;
+		mIntervalSumNs += next.mIntervalSumNs;
+		mIntervalSumSq += next.mIntervalSumSq;
+		mMinIntervalNs = Math.min(mMinIntervalNs, next.mMinIntervalNs);
+		mMaxIntervalNs = Math.max(mMaxIntervalNs, next.mMaxIntervalNs);
+		mNonMonotonic += next.mNonMonotonic;
+		for (int i = 0; i < next.mValueCount; i++) {
+			if (i >= mValueCount) {
+				mMin[i] = next.mMin[i];
+				mMax[i] = next.mMax[i];
+			} else {
+				mMin[i] = Math.min(mMin[i], next.mMin[i]);
+				mMax[i] = Math.max(mMax[i], next.mMax[i]);
+			}
+		}
+		mValueCount = Math.max(mValueCount, next.mValueCount);
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			mHistogram[i] += next.mHistogram[i];
+		}
+		mSamples += next.mSamples;
+	}
+
+	public long getSamples() {
+		return mSamples;
+	}
+
+	/**
+	 * Gets the average sample rate.
+	 *
+	 * @return Samples per second, 0 if fewer than two samples.
+	 */
+	public double getRateHz() {
+		return mIntervalSumNs == 0 ? 0 : mIntervals * 1e9 / mIntervalSumNs;
+	}
+
+	/**
+	 * Gets the mean interval between two samples.
+	 *
+	 * @return Mean interval in nanoseconds, 0 if fewer than two samples.
+	 */
+	public double getMeanIntervalNs() {
+		return mIntervals == 0 ? 0 : (double) mIntervalSumNs / mIntervals;
+	}
+
+	/**
+	 * Gets the jitter, the standard deviation of the interval between two
+	 * samples.
+	 *
+	 * @return Jitter in nanoseconds.
+	 */
+	public double getJitterNs() {
+		if (mIntervals < 2) {
+			return 0;
+		}
+		double mean = getMeanIntervalNs();
+		return Math.sqrt(Math.max(0, mIntervalSumSq / mIntervals - mean * mean));
+	}
+
+	public long getMinIntervalNs() {
+		return mIntervals == 0 ? 0 : mMinIntervalNs;
+	}
+
+	public long getMaxIntervalNs() {
+		return mMaxIntervalNs;
+	}
+
+	/** Gets the number of time stamps not after the previous one. */
+	public long getNonMonotonic() {
+		return mNonMonotonic;
+	}
+
+	/** Gets the highest number of values seen in a sample. */
+	public int getValueCount() {
+		return mValueCount;
+	}
+
+	public float getMin(int index) {
+		return mMin[index];
+	}
+
+	public float getMax(int index) {
+		return mMax[index];
+	}
+
+	public long getQualityEvents() {
+		return mQualityEvents;
+	}
+
+	public long getEvents() {
+		return mEvents;
+	}
+
+	/**
+	 * Gets the histogram of the sample magnitude, computed over the first
+	 * three values.
+	 *
+	 * @return Counts of HISTOGRAM_BINS bins of equal width over
+	 *         [0, {@link #getHistogramRange()}], the last bin also counting
+	 *         larger values.
+	 */
+	public long[] getHistogram() {
+		return mHistogram;
+	}
+
+	public float getHistogramRange() {
+		return mRange;
+	}
+
+	/**
+	 * Estimates a percentile of the sample magnitude from the histogram.
+	 *
+	 * @param fraction percentile in [0, 1].
+	 * @return Upper bound of the bin containing the percentile.
+	 */
+	public float getMagnitudePercentile(double fraction) {
+		long rank = (long) Math.ceil(mSamples * fraction);
+		long seen = 0;
+		for (int i = 0; i < HISTOGRAM_BINS; i++) {
+			seen += mHistogram[i];
+			if (seen >= rank) {
+				return mRange * (i + 1) / (HISTOGRAM_BINS - 1);
+			}
+		}
+		return mRange;
+	}
+}
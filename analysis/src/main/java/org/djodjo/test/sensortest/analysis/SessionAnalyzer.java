@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes per-sensor statistics of recorded sessions on all cores.
+ * <p/>
+ * A session is split into chunks of whole records that are memory-mapped
+ * and summarized independently by a fork-join pool, then the partial
+ * summaries are merged in file order. Chunks share nothing but the read-only
+ * file, so throughput grows with the number of cores until the storage
+ * becomes the bottleneck.
+ * <p/>
+ * Usage: {@code SessionAnalyzer [-j threads] [-leaf records] session...}
+ */
+public final class SessionAnalyzer {
+
+	private final ForkJoinPool mPool;
+	private final long mLeafRecords;
+
+	/**
+	 * Constructs SessionAnalyzer instance using all available cores.
+	 */
+	public SessionAnalyzer() {
+		this(new ForkJoinPool(), ChunkReducer.LEAF_RECORDS);
+	}
+
+	/**
+	 * Constructs SessionAnalyzer instance.
+	 *
+	 * @param pool pool running the chunk tasks.
+	 * @param leafRecords records per chunk; bounded so a chunk maps below 2GB.
+	 */
+	public SessionAnalyzer(ForkJoinPool pool, long leafRecords) {
+		mPool = pool;
+		mLeafRecords = Math.max(1, Math.min(leafRecords,
+				Integer.MAX_VALUE / SessionFormat.RECORD_SIZE));
+	}
+
+	/**
+	 * Summarizes one session.
+	 *
+	 * @param file session file.
+	 * @return Per-sensor summary of the whole session.
+	 * @throws IOException if the file cannot be read or is not a session.
+	 */
+	public SessionSummary analyze(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			SessionFormat.Header header = SessionFormat.readHeader(channel);
+			long records = SessionFormat.getRecordCount(header, channel.size());
+			if (records == 0) {
+				return new SessionSummary(header);
+			}
+			try {
+				return mPool.invoke(new ChunkReducer(channel, header, 0, records, mLeafRecords));
+			} catch (RuntimeException e) {
+				// The pool may wrap the exception of the task once more.
+				for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+				}
+				throw e;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long leaf = ChunkReducer.LEAF_RECORDS;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			} else if ("-j".equals(args[i])) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else if ("-leaf".equals(args[i])) {
+				leaf = Long.parseLong(args[i + 1]);
+			} else {
+				usage();
+			}
+		}
+		if (i == args.length) {
+			usage();
+		}
+		SessionAnalyzer analyzer = new SessionAnalyzer(new ForkJoinPool(threads), leaf);
+		for (; i < args.length; i++) {
+			File file = new File(args[i]);
+			long startNs = System.nanoTime();
+			SessionSummary summary = analyzer.analyze(file);
+			double seconds = (System.nanoTime() - startNs) / 1e9;
+			System.out.println(file + ":");
+			System.out.print(summary.format());
+			System.out.println(String.format(Locale.US, "analyzed %.1f MB in %.3f s on %d threads,"
+					+ " %.1f MB/s", file.length() / 1e6, seconds, threads,
+					file.length() / 1e6 / seconds));
+		}
+		analyzer.mPool.shutdown();
+	}
+
+	private static void usage() {
+		System.err.println("usage: SessionAnalyzer [-j threads] [-leaf records] session...");
+		System.exit(2);
+	}
+}
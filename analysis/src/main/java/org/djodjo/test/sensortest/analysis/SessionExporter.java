@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports recorded sessions to CSV, newline-delimited JSON or a columnar
+ * layout, streaming: memory use depends on the chunk size and the number of
+ * threads, not on the size of the session.
+ * <p/>
+ * For the text formats the session is cut into chunks of whole records,
+ * each chunk is encoded into its own buffer, possibly on another thread,
+ * and the buffers are written in order through one file channel. See
+ * {@link ColumnarExporter} for the columnar layout.
+ * <p/>
+ * Usage: {@code SessionExporter [-f csv|ndjson|columnar] [-j threads] session output}
+ */
+public final class SessionExporter {
+
+	/** Size of the buffer a chunk is encoded into. */
+	private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+
+	private final int mThreads;
+
+	/**
+	 * Constructs SessionExporter instance.
+	 *
+	 * @param threads number of threads encoding chunks; 1 encodes on the
+	 *            calling thread.
+	 */
+	public SessionExporter(int threads) {
+		mThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Exports one session.
+	 *
+	 * @param session session file.
+	 * @param format "csv", "ndjson" or "columnar".
+	 * @param output output file, or directory for the columnar layout.
+	 * @return Number of records exported.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public long export(File session, String format, File output) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(session, "r");
+		try {
+			FileChannel in = raf.getChannel();
+			SessionFormat.Header header = SessionFormat.readHeader(in);
+			long records = SessionFormat.getRecordCount(header, in.size());
+			if ("columnar".equals(format)) {
+				new ColumnarExporter(header, output).export(in, records);
+			} else {
+				exportText(in, header, records, TextEncoder.create(format, header), output);
+			}
+			return records;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void exportText(final FileChannel in, final SessionFormat.Header header,
+			long records, final TextEncoder encoder, File output) throws IOException {
+		final int chunkRecords = CHUNK_BYTES / encoder.getMaxLineLength();
+		FileOutputStream out = new FileOutputStream(output);
+		ExecutorService pool = mThreads > 1 ? Executors.newFixedThreadPool(mThreads) : null;
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer begin = ByteBuffer.allocate(4096);
+			encoder.begin(begin);
+			begin.flip();
+			write(channel, begin);
+
+			// Two buffers per thread: one being encoded, one waiting to be written.
+			int inFlight = 2 * mThreads;
+			final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(inFlight);
+			for (int i = 0; i < inFlight; i++) {
+				free.add(new byte[CHUNK_BYTES]);
+			}
+			ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+			long next = 0;
+			while (next < records || !pending.isEmpty()) {
+				while (next < records && pending.size() < inFlight) {
+					final long first = next;
+					final int count = (int) Math.min(chunkRecords, records - first);
+					next += count;
+					Callable<ByteBuffer> task = new Callable<ByteBuffer>() {
+						@Override
+						public ByteBuffer call() throws IOException {
+							MappedByteBuffer chunk = SessionFormat.mapRecords(in, header, first, count);
+							byte[] buffer = free.remove();
+							return ByteBuffer.wrap(buffer, 0, encoder.encode(chunk, count, buffer));
+						}
+					};
+					if (pool != null) {
+						pending.add(pool.submit(task));
+					} else {
+						pending.add(new Done(call(task)));
+					}
+				}
+				ByteBuffer encoded = get(pending.remove());
+				write(channel, encoded);
+				free.add(encoded.array());
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			out.close();
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static ByteBuffer call(Callable<ByteBuffer> task) throws IOException {
+		try {
+			return task.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer get(Future<ByteBuffer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("export interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Result of a chunk encoded on the calling thread. */
+	private static class Done implements Future<ByteBuffer> {
+		private final ByteBuffer mResult;
+
+		Done(ByteBuffer result) {
+			mResult = result;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public ByteBuffer get() {
+			return mResult;
+		}
+
+		@Override
+		public ByteBuffer get(long timeout, java.util.concurrent.TimeUnit unit) {
+			return mResult;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String format = "csv";
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			} else if ("-f".equals(args[i])) {
+				format = args[i + 1];
+			} else if ("-j".equals(args[i])) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else {
+				usage();
+			}
+		}
+		if (args.length - i != 2) {
+			usage();
+		}
+		File session = new File(args[i]);
+		File output = new File(args[i + 1]);
+		long startNs = System.nanoTime();
+		long records = new SessionExporter(threads).export(session, format, output);
+		double seconds = (System.nanoTime() - startNs) / 1e9;
+		System.out.println(String.format(Locale.US,
+				"exported %d records as %s in %.3f s on %d threads, %.0f records/s",
+				records, format, seconds, threads, records / seconds));
+	}
+
+	private static void usage() {
+		System.err.println("usage: SessionExporter [-f csv|ndjson|columnar] [-j threads]"
+				+ " session output");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * File format of a recorded sensor session, shared by the app that writes it
+ * and the tools that analyze it.
+ * <p/>
+ * A session starts with a header describing the recorded sensors, followed
+ * by fixed-size records until the end of the file. Since every record has
+ * the same size, any byte range aligned on a record boundary can be read
+ * independently of the rest, which is what allows to split large sessions
+ * into chunks. A record truncated by a crash at the end is ignored.
+ * <p/>
+ * All values are little endian.
+ *
+ * <pre>
+ * header:  int magic, int version, int header size, int sensor count,
+ *          long start wall time (ms), long first sample SensorEvent.timestamp (ns),
+ *          sensor count x { int type, int min delay (us), float max range,
+ *                           short length + UTF-8 name,
+ *                           short length + UTF-8 display name },
+ *          zero padding up to header size
+ * record:  long timestamp (ns), short sensor index, byte kind, byte count,
+ *          int flags, float[6] values
+ * </pre>
+ * The SensorEvent.timestamp clock differs between devices, so the header
+ * does not hold a time stamp of the start: it holds the one of the first
+ * sample, written once that sample is recorded, 0 until then.
+ */
+public final class SessionFormat {
+
+	public static final int MAGIC = 0x534E5352; // "SNSR"
+	public static final int VERSION = 1;
+	public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** Size of every record, in bytes. */
+	public static final int RECORD_SIZE = 40;
+	/** Values per record. */
+	public static final int MAX_VALUES = 6;
+
+	public static final int OFF_TIMESTAMP = 0;
+	public static final int OFF_SENSOR = 8;
+	public static final int OFF_KIND = 10;
+	public static final int OFF_COUNT = 11;
+	public static final int OFF_FLAGS = 12;
+	public static final int OFF_VALUES = 16;
+
+	/** Offset of the first sample time stamp in the header. */
+	public static final int OFF_HEADER_FIRST_TIMESTAMP = 24;
+
+	/** Record holding one sensor sample. */
+	public static final int KIND_SAMPLE = 0;
+	/** Record marking a data-quality problem; flags hold the problems raised. */
+	public static final int KIND_QUALITY = 1;
+	/** Record marking an app event, e.g. a fired rule; flags hold its id. */
+	public static final int KIND_EVENT = 2;
+
+	/** The header is padded to a multiple of this. */
+	private static final int HEADER_ALIGN = 64;
+	private static final int HEADER_FIXED = 32;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Description of one recorded sensor. */
+	public static final class SensorEntry {
+		public final int type;
+		public final String name;
+		public final String uiName;
+		public final int minDelayUs;
+		public final float maxRange;
+
+		public SensorEntry(int type, String name, String uiName, int minDelayUs, float maxRange) {
+			this.type = type;
+			this.name = name;
+			this.uiName = uiName;
+			this.minDelayUs = minDelayUs;
+			this.maxRange = maxRange;
+		}
+	}
+
+	/** Decoded session header. Records are referred to the sensors by index. */
+	public static final class Header {
+		public final long startWallMs;
+		/** SensorEvent.timestamp of the first sample, 0 if not known. */
+		public final long startTimestampNs;
+		public final SensorEntry[] sensors;
+		/** Offset of the first record. */
+		public final int size;
+
+		public Header(long startWallMs, long startTimestampNs, SensorEntry[] sensors) {
+			this(startWallMs, startTimestampNs, sensors, 0);
+		}
+
+		private Header(long startWallMs, long startTimestampNs, SensorEntry[] sensors, int size) {
+			this.startWallMs = startWallMs;
+			this.startTimestampNs = startTimestampNs;
+			this.sensors = sensors;
+			this.size = size;
+		}
+	}
+
+	private SessionFormat() {
+	}
+
+	/**
+	 * Encodes a header.
+	 *
+	 * @param header header to encode.
+	 * @return Buffer ready to be written, positioned at 0.
+	 */
+	public static ByteBuffer encodeHeader(Header header) {
+		byte[][] names = new byte[header.sensors.length * 2][];
+		int size = HEADER_FIXED;
+		for (int i = 0; i < header.sensors.length; i++) {
+			names[2 * i] = encodeName(header.sensors[i].name);
+			names[2 * i + 1] = encodeName(header.sensors[i].uiName);
+			size += 12 + 2 + names[2 * i].length + 2 + names[2 * i + 1].length;
+		}
+		size = (size + HEADER_ALIGN - 1) / HEADER_ALIGN * HEADER_ALIGN;
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ORDER);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(header.sensors.length);
+		buffer.putLong(header.startWallMs).putLong(header.startTimestampNs);
+		for (int i = 0; i < header.sensors.length; i++) {
+			SensorEntry sensor = header.sensors[i];
+			buffer.putInt(sensor.type).putInt(sensor.minDelayUs).putFloat(sensor.maxRange);
+			buffer.putShort((short) names[2 * i].length).put(names[2 * i]);
+			buffer.putShort((short) names[2 * i + 1].length).put(names[2 * i + 1]);
+		}
+		buffer.position(0);
+		return buffer;
+	}
+
+	/**
+	 * Reads the header of a session.
+	 *
+	 * @param channel session file.
+	 * @return Decoded header.
+	 * @throws IOException if the file cannot be read or is not a session.
+	 */
+	public static Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(HEADER_FIXED).order(ORDER);
+		readFully(channel, fixed, 0);
+		if (fixed.getInt(0) != MAGIC) {
+			throw new IOException("not a sensor session");
+		}
+		if (fixed.getInt(4) != VERSION) {
+			throw new IOException("unsupported session version " + fixed.getInt(4));
+		}
+		int size = fixed.getInt(8);
+		if (size < HEADER_FIXED) {
+			throw new IOException("corrupt session header");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ORDER);
+		readFully(channel, buffer, 0);
+		buffer.position(HEADER_FIXED);
+		SensorEntry[] sensors = new SensorEntry[fixed.getInt(12)];
+		for (int i = 0; i < sensors.length; i++) {
+			int type = buffer.getInt();
+			int minDelayUs = buffer.getInt();
+			float maxRange = buffer.getFloat();
+			String name = decodeName(buffer);
+			String uiName = decodeName(buffer);
+			sensors[i] = new SensorEntry(type, name, uiName, minDelayUs, maxRange);
+		}
+		return new Header(fixed.getLong(16), fixed.getLong(24), sensors, size);
+	}
+
+	/**
+	 * Appends a sample record.
+	 *
+	 * @param buffer destination, with at least RECORD_SIZE bytes remaining.
+	 * @param sensor sensor index in the header.
+	 * @param timestampNs SensorEvent.timestamp of the sample.
+	 * @param values sample values.
+	 * @param count number of valid values; values beyond MAX_VALUES are dropped.
+	 */
+	public static void putSample(ByteBuffer buffer, int sensor, long timestampNs,
+			float[] values, int count) {
+		if (count > MAX_VALUES) {
+			count = MAX_VALUES;
+		}
+		int base = buffer.position();
+		buffer.putLong(base + OFF_TIMESTAMP, timestampNs);
+		buffer.putShort(base + OFF_SENSOR, (short) sensor);
+		buffer.put(base + OFF_KIND, (byte) KIND_SAMPLE);
+		buffer.put(base + OFF_COUNT, (byte) count);
+		buffer.putInt(base + OFF_FLAGS, 0);
+		for (int i = 0; i < MAX_VALUES; i++) {
+			buffer.putFloat(base + OFF_VALUES + 4 * i, i < count ? values[i] : 0f);
+		}
+		buffer.position(base + RECORD_SIZE);
+	}
+
+	/**
+	 * Appends a record without values, e.g. KIND_QUALITY or KIND_EVENT.
+	 *
+	 * @param buffer destination, with at least RECORD_SIZE bytes remaining.
+	 * @param kind one of the KIND_XXX constants.
+	 * @param sensor sensor index in the header.
+	 * @param timestampNs time of the event, on the SensorEvent.timestamp clock.
+	 * @param flags kind specific flags.
+	 */
+	public static void putMarker(ByteBuffer buffer, int kind, int sensor, long timestampNs,
+			int flags) {
+		int base = buffer.position();
+		buffer.putLong(base + OFF_TIMESTAMP, timestampNs);
+		buffer.putShort(base + OFF_SENSOR, (short) sensor);
+		buffer.put(base + OFF_KIND, (byte) kind);
+		buffer.put(base + OFF_COUNT, (byte) 0);
+		buffer.putInt(base + OFF_FLAGS, flags);
+		for (int i = 0; i < MAX_VALUES; i++) {
+			buffer.putFloat(base + OFF_VALUES + 4 * i, 0f);
+		}
+		buffer.position(base + RECORD_SIZE);
+	}
+
+	/**
+	 * Gets the number of complete records of a session.
+	 *
+	 * @param header session header.
+	 * @param fileSize size of the session file.
+	 * @return Record count, not including a truncated last record.
+	 */
+	public static long getRecordCount(Header header, long fileSize) {
+		return Math.max(0, (fileSize - header.size) / RECORD_SIZE);
+	}
+
+	/**
+	 * Maps a range of records read-only.
+	 *
+	 * @param channel session file.
+	 * @param header session header.
+	 * @param first index of the first record.
+	 * @param count number of records; the mapping must stay below 2GB.
+	 * @return Mapping of the records, in the session byte order.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	public static MappedByteBuffer mapRecords(FileChannel channel, Header header, long first,
+			long count) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				header.size + first * RECORD_SIZE, count * RECORD_SIZE);
+		buffer.order(ORDER);
+		return buffer;
+	}
+
+	private static byte[] encodeName(String name) {
+		byte[] bytes = (name != null ? name : "").getBytes(UTF8);
+		if (bytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("name too long");
+		}
+		return bytes;
+	}
+
+	private static String decodeName(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("truncated session header");
+			}
+		}
+	}
+}
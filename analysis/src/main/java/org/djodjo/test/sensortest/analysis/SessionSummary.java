@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.util.Locale;
+
+/**
+ * Per-sensor statistics of a contiguous range of records of a session.
+ */
+public final class SessionSummary {
+
+	private final SessionFormat.Header mHeader;
+	private final SensorSummary[] mSensors;
+	private long mRecords;
+	/** Records referring to a sensor missing from the header. */
+	private long mInvalid;
+
+	/**
+	 * Constructs an empty SessionSummary instance.
+	 *
+	 * @param header session header.
+	 */
+	public SessionSummary(SessionFormat.Header header) {
+		mHeader = header;
+		mSensors = new SensorSummary[header.sensors.length];
+		for (int i = 0; i < mSensors.length; i++) {
+			mSensors[i] = new SensorSummary(header.sensors[i]);
+		}
+	}
+
+	/**
+	 * Gets the summary of one sensor, to add records to.
+	 *
+	 * @param index sensor index in the header.
+	 * @return Summary of the sensor, or null if there is no such sensor.
+	 */
+	public SensorSummary getSensor(int index) {
+		return index >= 0 && index < mSensors.length ? mSensors[index] : null;
+	}
+
+	void onRecords(long records, long invalid) {
+		mRecords += records;
+		mInvalid += invalid;
+	}
+
+	/**
+	 * Merges the summary of the range that immediately follows this one.
+	 *
+	 * @param next summary of the next range of the same session.
+	 */
+	public void merge(SessionSummary next) {
+		for (int i = 0; i < mSensors.length; i++) {
+			mSensors[i].merge(next.mSensors[i]);
+		}
+		mRecords += next.mRecords;
+		mInvalid += next.mInvalid;
+	}
+
+	public long getRecords() {
+		return mRecords;
+	}
+
+	public long getInvalid() {
+		return mInvalid;
+	}
+
+	/**
+	 * Formats the summary, one block per recorded sensor.
+	 *
+	 * @return A human readable, multi-line summary.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%d records, %d invalid\n", mRecords, mInvalid));
+		for (int i = 0; i < mSensors.length; i++) {
+			SensorSummary s = mSensors[i];
+			if (s.getSamples() == 0 && s.getQualityEvents() == 0 && s.getEvents() == 0) {
+				continue;
+			}
+			SessionFormat.SensorEntry sensor = mHeader.sensors[i];
+			sb.append(String.format(Locale.US,
+					"%s (type %d): %d samples, %.2f Hz, interval %.3f ms"
+					+ " [%.3f..%.3f] jitter %.3f ms, %d non-monotonic\n",
+					sensor.name, sensor.type, s.getSamples(), s.getRateHz(),
+					s.getMeanIntervalNs() / 1e6, s.getMinIntervalNs() / 1e6,
+					s.getMaxIntervalNs() / 1e6, s.getJitterNs() / 1e6, s.getNonMonotonic()));
+			if (s.getValueCount() > 0) {
+				sb.append("  min/max");
+				for (int v = 0; v < s.getValueCount(); v++) {
+					sb.append(String.format(Locale.US, " %+.3f/%+.3f", s.getMin(v), s.getMax(v)));
+				}
+				sb.append(String.format(Locale.US, "\n  |v| p5 %.3f p50 %.3f p95 %.3f p99 %.3f\n",
+						s.getMagnitudePercentile(0.05), s.getMagnitudePercentile(0.5),
+						s.getMagnitudePercentile(0.95), s.getMagnitudePercentile(0.99)));
+			}
+			if (s.getQualityEvents() > 0 || s.getEvents() > 0) {
+				sb.append(String.format(Locale.US, "  %d quality annotations, %d events\n",
+						s.getQualityEvents(), s.getEvents()));
+			}
+		}
+		return sb.toString();
+	}
+}
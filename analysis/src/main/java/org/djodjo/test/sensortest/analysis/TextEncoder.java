@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes session records as lines of text, one line per record.
+ * <p/>
+ * Sensor labels are encoded once per session; each record is then written
+ * with {@link FloatFormat} into a byte array, so encoding allocates nothing.
+ * Encoders are stateless after construction and can be shared by threads
+ * encoding different chunks.
+ */
+abstract class TextEncoder {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] KINDS = { "sample", "quality", "event" };
+
+	/** Significant digits written for sample values; enough to read back the same float. */
+	protected static final int DIGITS = FloatFormat.FLOAT_DIGITS;
+
+	/** Encoded sensor names, per sensor index. */
+	protected final byte[][] mNames;
+	/** Encoded sensor units, per sensor index. */
+	protected final byte[][] mUnits;
+	/** Encoded record kinds, per KIND_XXX constant. */
+	protected final byte[][] mKinds = new byte[KINDS.length][];
+	private final int mMaxLineLength;
+
+	/**
+	 * Constructs TextEncoder instance.
+	 *
+	 * @param header session header, for the sensor labels.
+	 * @param fixedLength bytes of a line besides labels and numbers.
+	 */
+	protected TextEncoder(SessionFormat.Header header, int fixedLength) {
+		int sensors = header.sensors.length;
+		mNames = new byte[sensors][];
+		mUnits = new byte[sensors][];
+		int maxLabels = 0;
+		int maxKind = 0;
+		for (int i = 0; i < sensors; i++) {
+			SessionFormat.SensorEntry sensor = header.sensors[i];
+			mNames[i] = quote(sensor.name).getBytes(UTF8);
+			mUnits[i] = quote(getUnit(sensor.uiName)).getBytes(UTF8);
+			maxLabels = Math.max(maxLabels, mNames[i].length + mUnits[i].length);
+		}
+		for (int i = 0; i < KINDS.length; i++) {
+			mKinds[i] = quote(KINDS[i]).getBytes(UTF8);
+			maxKind = Math.max(maxKind, mKinds[i].length);
+		}
+		mMaxLineLength = fixedLength + maxLabels + maxKind + 2 * FloatFormat.MAX_LONG_LENGTH
+				+ SessionFormat.MAX_VALUES * (FloatFormat.MAX_FLOAT_LENGTH + 1);
+	}
+
+	/**
+	 * Creates the encoder of a format.
+	 *
+	 * @param format "csv" or "ndjson".
+	 * @param header session header.
+	 * @return Encoder.
+	 * @throws IllegalArgumentException if the format is not a text format.
+	 */
+	static TextEncoder create(String format, SessionFormat.Header header) {
+		if ("csv".equals(format)) {
+			return new Csv(header);
+		} else if ("ndjson".equals(format)) {
+			return new NdJson(header);
+		}
+		throw new IllegalArgumentException("unknown text format " + format);
+	}
+
+	/**
+	 * Extracts the unit from a display name such as "Accelerometer (m/s2)".
+	 *
+	 * @param uiName display name.
+	 * @return Text between the last parentheses, empty if there are none.
+	 */
+	static String getUnit(String uiName) {
+		int open = uiName.lastIndexOf('(');
+		int close = uiName.lastIndexOf(')');
+		return open >= 0 && close > open ? uiName.substring(open + 1, close) : "";
+	}
+
+	/**
+	 * Gets an upper bound of the length of one line.
+	 *
+	 * @return Maximum bytes written by {@link #encode} for one record.
+	 */
+	int getMaxLineLength() {
+		return mMaxLineLength;
+	}
+
+	/**
+	 * Writes what comes before the first record, e.g. a header line.
+	 *
+	 * @param out destination.
+	 */
+	abstract void begin(ByteBuffer out);
+
+	/**
+	 * Encodes a range of records.
+	 *
+	 * @param records mapped records.
+	 * @param count number of records to encode, from position 0.
+	 * @param out destination array, large enough for count maximum-length lines.
+	 * @return Number of bytes written.
+	 */
+	abstract int encode(ByteBuffer records, int count, byte[] out);
+
+	/**
+	 * Quotes a label for the format, if needed.
+	 */
+	protected abstract String quote(String label);
+
+	/**
+	 * Quotes and escapes a string for JSON.
+	 *
+	 * @param s string to quote.
+	 * @return JSON string literal.
+	 */
+	static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	protected static int put(byte[] dst, int pos, byte[] src) {
+		System.arraycopy(src, 0, dst, pos, src.length);
+		return pos + src.length;
+	}
+
+	/**
+	 * Comma separated values with a header line. Values beyond the count of
+	 * a sample are left empty so that every line has the same columns.
+	 */
+	static class Csv extends TextEncoder {
+
+		Csv(SessionFormat.Header header) {
+			super(header, 16);
+		}
+
+		@Override
+		void begin(ByteBuffer out) {
+			StringBuilder sb = new StringBuilder("timestamp_ns,sensor,unit,kind,flags");
+			for (int i = 0; i < SessionFormat.MAX_VALUES; i++) {
+				sb.append(",v").append(i);
+			}
+			out.put(sb.append('\n').toString().getBytes(UTF8));
+		}
+
+		@Override
+		protected String quote(String label) {
+			if (label.indexOf(',') < 0 && label.indexOf('"') < 0 && label.indexOf('\n') < 0) {
+				return label;
+			}
+			return '"' + label.replace("\"", "\"\"") + '"';
+		}
+
+		@Override
+		int encode(ByteBuffer records, int count, byte[] out) {
+			int pos = 0;
+			for (int r = 0; r < count; r++) {
+				final int base = r * SessionFormat.RECORD_SIZE;
+				final int sensor = records.getShort(base + SessionFormat.OFF_SENSOR);
+				final int kind = records.get(base + SessionFormat.OFF_KIND);
+				if (sensor < 0 || sensor >= mNames.length || kind < 0 || kind >= mKinds.length) {
+					continue;
+				}
+				pos = FloatFormat.appendLong(out, pos,
+						records.getLong(base + SessionFormat.OFF_TIMESTAMP));
+				out[pos++] = ',';
+				pos = put(out, pos, mNames[sensor]);
+				out[pos++] = ',';
+				pos = put(out, pos, mUnits[sensor]);
+				out[pos++] = ',';
+				pos = put(out, pos, mKinds[kind]);
+				out[pos++] = ',';
+				pos = FloatFormat.appendLong(out, pos,
+						records.getInt(base + SessionFormat.OFF_FLAGS));
+				int values = kind == SessionFormat.KIND_SAMPLE
+						? Math.min(records.get(base + SessionFormat.OFF_COUNT), SessionFormat.MAX_VALUES)
+						: 0;
+				for (int i = 0; i < SessionFormat.MAX_VALUES; i++) {
+					out[pos++] = ',';
+					if (i < values) {
+						pos = FloatFormat.appendFloat(out, pos,
+								records.getFloat(base + SessionFormat.OFF_VALUES + 4 * i), DIGITS);
+					}
+				}
+				out[pos++] = '\n';
+			}
+			return pos;
+		}
+	}
+
+	/**
+	 * One JSON object per line. Samples carry their values in "v", other
+	 * records their kind and flags. NaN and infinities become null.
+	 */
+	static class NdJson extends TextEncoder {
+
+		private static final byte[] TIME = bytes("{\"t\":");
+		private static final byte[] SENSOR = bytes(",\"sensor\":");
+		private static final byte[] UNIT = bytes(",\"unit\":");
+		private static final byte[] VALUES = bytes(",\"v\":[");
+		private static final byte[] KIND = bytes(",\"kind\":");
+		private static final byte[] FLAGS = bytes(",\"flags\":");
+		private static final byte[] NULL = bytes("null");
+
+		NdJson(SessionFormat.Header header) {
+			super(header, 48);
+		}
+
+		private static byte[] bytes(String s) {
+			return s.getBytes(UTF8);
+		}
+
+		@Override
+		void begin(ByteBuffer out) {
+		}
+
+		@Override
+		protected String quote(String label) {
+			return jsonString(label);
+		}
+
+		@Override
+		int encode(ByteBuffer records, int count, byte[] out) {
+			int pos = 0;
+			for (int r = 0; r < count; r++) {
+				final int base = r * SessionFormat.RECORD_SIZE;
+				final int sensor = records.getShort(base + SessionFormat.OFF_SENSOR);
+				final int kind = records.get(base + SessionFormat.OFF_KIND);
+				if (sensor < 0 || sensor >= mNames.length || kind < 0 || kind >= mKinds.length) {
+					continue;
+				}
+				pos = put(out, pos, TIME);
+				pos = FloatFormat.appendLong(out, pos,
+						records.getLong(base + SessionFormat.OFF_TIMESTAMP));
+				pos = put(out, pos, SENSOR);
+				pos = put(out, pos, mNames[sensor]);
+				if (kind == SessionFormat.KIND_SAMPLE) {
+					pos = put(out, pos, UNIT);
+					pos = put(out, pos, mUnits[sensor]);
+					pos = put(out, pos, VALUES);
+					int values = Math.min(records.get(base + SessionFormat.OFF_COUNT),
+							SessionFormat.MAX_VALUES);
+					for (int i = 0; i < values; i++) {
+						if (i > 0) {
+							out[pos++] = ',';
+						}
+						float v = records.getFloat(base + SessionFormat.OFF_VALUES + 4 * i);
+						if (Float.isNaN(v) || Float.isInfinite(v)) {
+							pos = put(out, pos, NULL);
+						} else {
+							pos = FloatFormat.appendFloat(out, pos, v, DIGITS);
+						}
+					}
+					out[pos++] = ']';
+				} else {
+					pos = put(out, pos, KIND);
+					pos = put(out, pos, mKinds[kind]);
+					pos = put(out, pos, FLAGS);
+					pos = FloatFormat.appendLong(out, pos,
+							records.getInt(base + SessionFormat.OFF_FLAGS));
+				}
+				out[pos++] = '}';
+				out[pos++] = '\n';
+			}
+			return pos;
+		}
+	}
+}
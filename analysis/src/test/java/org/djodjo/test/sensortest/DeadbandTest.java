@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks which samples {@link Deadband} propagates in each mode.
+ */
+public class DeadbandTest {
+
+	/** Resolution and threshold chosen so that the differences are exact floats. */
+	private static final float RESOLUTION = 0.5f;
+
+	private final Deadband mDeadband = new Deadband(RESOLUTION);
+
+	@Test
+	public void absoluteComparesWithLastPropagated() {
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 2, 0);
+		assertTrue(accept(0, 0, 0));
+		assertFalse(accept(1, 0.5f, 0));
+		assertFalse(accept(2, 0.75f, 0));
+		// A slow drift passes once it adds up to the threshold.
+		assertTrue(accept(3, 1, 0));
+		assertFalse(accept(4, 0.25f, 0));
+		assertTrue(accept(5, 0, 0));
+	}
+
+	@Test
+	public void anyComponentOrCountPasses() {
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 2, 0);
+		assertTrue(accept(0, 0, 0));
+		assertTrue(accept(1, 0, -1));
+		assertFalse(accept(2, 0, -1));
+		assertTrue(mDeadband.accept(new float[] {0, -1, 0}, 3, 3));
+	}
+
+	@Test
+	public void relativeScalesWithValue() {
+		mDeadband.configure(Deadband.MODE_RELATIVE, 0.01f, 0);
+		assertTrue(accept(0, 1000, 0));
+		assertFalse(accept(1, 1008, 0));
+		assertTrue(accept(2, 1010, 0));
+		// Near zero the resolution is the floor.
+		assertTrue(accept(3, 0, 0));
+		assertFalse(accept(4, 0.25f, 0));
+		assertTrue(accept(5, 0.5f, 0));
+	}
+
+	@Test
+	public void zeroThresholdSuppressesOnlyRepeats() {
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 0, 0);
+		assertTrue(accept(0, 1, 0));
+		assertFalse(accept(1, 1, 0));
+		assertTrue(accept(2, 1.0001f, 0));
+	}
+
+	@Test
+	public void heartbeatPassesUnchangedSamples() {
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 2, 1000);
+		assertTrue(accept(0, 0, 0));
+		assertFalse(accept(500, 0, 0));
+		assertTrue(accept(1000, 0, 0));
+		assertFalse(accept(1999, 0, 0));
+		// A change restarts the period.
+		assertTrue(accept(2500, 5, 0));
+		assertFalse(accept(3000, 5, 0));
+		assertTrue(accept(3500, 5, 0));
+	}
+
+	@Test
+	public void disabledPassesEverything() {
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 2, 0);
+		assertTrue(mDeadband.isEnabled());
+		mDeadband.setEnabled(false);
+		assertTrue(accept(0, 0, 0));
+		assertTrue(accept(1, 0, 0));
+		mDeadband.setEnabled(true);
+		// The next sample always passes after a change of configuration.
+		assertTrue(accept(2, 0, 0));
+		assertFalse(accept(3, 0, 0));
+		mDeadband.configure(Deadband.MODE_ABSOLUTE, 2, 0);
+		assertTrue(accept(4, 0, 0));
+	}
+
+	@Test
+	public void eventsPassThrough() {
+		Deadband deadband = Deadband.forEvents();
+		assertFalse(deadband.isEnabled());
+		deadband.setEnabled(true);
+		deadband.configure(Deadband.MODE_ABSOLUTE, 2, 0);
+		assertFalse(deadband.isEnabled());
+		// Each step is an event, even with the same value.
+		float[] step = {1};
+		assertTrue(deadband.accept(step, 1, 0));
+		assertTrue(deadband.accept(step, 1, 1));
+		assertTrue(deadband.accept(step, 1, 2));
+	}
+
+	private boolean accept(long nowMs, float x, float y) {
+		return mDeadband.accept(new float[] {x, y}, 2, nowMs);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link GyroBiasEstimator} on a synthetic gyroscope with a known bias
+ * and white noise.
+ */
+public class GyroBiasEstimatorTest {
+
+	private static final float[] BIAS = { 0.02f, -0.01f, 0.005f };
+	/** Noise of a phone gyroscope at rest, in rad/s. */
+	private static final double NOISE = 0.003;
+
+	private final Random mRandom = new Random(42);
+
+	private void feedStationary(GyroBiasEstimator estimator, float[] bias, int samples) {
+		for (int i = 0; i < samples; i++) {
+			estimator.add(noisy(bias[0]), noisy(bias[1]), noisy(bias[2]));
+		}
+	}
+
+	/** Feeds a rotation of about 1 rad/s around x. */
+	private void feedMoving(GyroBiasEstimator estimator, float[] bias, int samples) {
+		for (int i = 0; i < samples; i++) {
+			float rate = (float) Math.sin(i * 0.1);
+			boolean updated = estimator.add(noisy(bias[0] + rate), noisy(bias[1]), noisy(bias[2]));
+			assertFalse("rotation taken as stationary at sample " + i, updated);
+		}
+	}
+
+	private float noisy(float value) {
+		return (float) (value + mRandom.nextGaussian() * NOISE);
+	}
+
+	@Test
+	public void estimatesBiasAtRest() {
+		GyroBiasEstimator estimator = new GyroBiasEstimator();
+		assertFalse(estimator.hasEstimate());
+		feedStationary(estimator, BIAS, 1000);
+		assertTrue(estimator.hasEstimate());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(BIAS[i], estimator.getBias()[i], 0.001f);
+		}
+	}
+
+	@Test
+	public void ignoresRotation() {
+		GyroBiasEstimator estimator = new GyroBiasEstimator();
+		feedMoving(estimator, BIAS, 2000);
+		assertFalse(estimator.hasEstimate());
+
+		// Interleaved motion does not pull the estimate away.
+		for (int round = 0; round < 5; round++) {
+			feedStationary(estimator, BIAS, 300);
+			feedMoving(estimator, BIAS, 300);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(BIAS[i], estimator.getBias()[i], 0.001f);
+		}
+	}
+
+	@Test
+	public void followsBiasDrift() {
+		GyroBiasEstimator estimator = new GyroBiasEstimator();
+		feedStationary(estimator, BIAS, 500);
+		float[] drifted = { -0.015f, 0.012f, 0.0f };
+		feedStationary(estimator, drifted, 2000);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(drifted[i], estimator.getBias()[i], 0.001f);
+		}
+	}
+
+	@Test
+	public void rejectsBiasAboveLimit() {
+		// A constant 0.3 rad/s is a slow turn, not a bias.
+		GyroBiasEstimator estimator = new GyroBiasEstimator();
+		feedStationary(estimator, new float[] { 0.3f, 0, 0 }, 1000);
+		assertFalse(estimator.hasEstimate());
+	}
+}
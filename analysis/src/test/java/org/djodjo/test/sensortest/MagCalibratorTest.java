@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link MagCalibrator} on a synthetic magnetometer: a 45 uT field
+ * seen through known hard-iron offsets and soft-iron axis gains, plus noise.
+ */
+public class MagCalibratorTest {
+
+	private static final double FIELD = 45;
+	private static final double[] OFFSET = { 12, -7, 30 };
+	private static final double[] GAIN = { 1.1, 0.9, 1.0 };
+	private static final double NOISE = 0.3;
+
+	private final Random mRandom = new Random(7);
+
+	/**
+	 * Feeds raw samples of the field in uniformly random directions, i.e. the
+	 * device turned every way.
+	 */
+	private void feedSphere(MagCalibrator calibrator, double[] offset, int samples) {
+		for (int i = 0; i < samples; i++) {
+			double[] raw = sample(offset);
+			calibrator.add((float) raw[0], (float) raw[1], (float) raw[2]);
+		}
+	}
+
+	private double[] sample(double[] offset) {
+		double theta = mRandom.nextDouble() * 2 * Math.PI;
+		double phi = Math.acos(2 * mRandom.nextDouble() - 1);
+		double[] field = {
+			FIELD * Math.sin(phi) * Math.cos(theta),
+			FIELD * Math.sin(phi) * Math.sin(theta),
+			FIELD * Math.cos(phi)
+		};
+		double[] raw = new double[3];
+		for (int i = 0; i < 3; i++) {
+			raw[i] = field[i] * GAIN[i] + offset[i] + mRandom.nextGaussian() * NOISE;
+		}
+		return raw;
+	}
+
+	@Test
+	public void fitsHardAndSoftIron() {
+		MagCalibrator calibrator = new MagCalibrator();
+		assertFalse(calibrator.isValid());
+		feedSphere(calibrator, OFFSET, 5000);
+		assertTrue(calibrator.isValid());
+
+		float[] offset = calibrator.getOffset();
+		float[] scale = calibrator.getScale();
+		for (int i = 0; i < 3; i++) {
+			assertEquals("offset " + i, OFFSET[i], offset[i], 0.5);
+			// The scales undo the gains, up to a common factor.
+			assertEquals("gain ratio " + i, GAIN[0] / GAIN[i], scale[i] / scale[0], 0.01);
+		}
+		assertEquals(FIELD, calibrator.getFieldStrength(), FIELD * 0.05);
+	}
+
+	@Test
+	public void calibratedSamplesLieOnSphere() {
+		MagCalibrator calibrator = new MagCalibrator();
+		feedSphere(calibrator, OFFSET, 5000);
+		float[] out = new float[3];
+		double radius = calibrator.getFieldStrength();
+		double worst = 0;
+		for (int i = 0; i < 1000; i++) {
+			double[] raw = sample(OFFSET);
+			calibrator.apply((float) raw[0], (float) raw[1], (float) raw[2], out);
+			double norm = Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+			worst = Math.max(worst, Math.abs(norm - radius) / radius);
+		}
+		// Raw samples spread by +-10% around the mean radius.
+		assertTrue("worst radius error " + worst, worst < 0.05);
+	}
+
+	@Test
+	public void ignoresDeviceAtRest() {
+		MagCalibrator calibrator = new MagCalibrator();
+		for (int i = 0; i < 5000; i++) {
+			calibrator.add((float) (OFFSET[0] + FIELD), (float) OFFSET[1], (float) OFFSET[2]);
+		}
+		assertFalse(calibrator.isValid());
+	}
+
+	@Test
+	public void followsNewEnvironment() {
+		MagCalibrator calibrator = new MagCalibrator();
+		feedSphere(calibrator, OFFSET, 5000);
+		// E.g. a magnetic case: a new hard-iron offset.
+		double[] moved = { -20, 5, 10 };
+		feedSphere(calibrator, moved, 20000);
+		for (int i = 0; i < 3; i++) {
+			assertEquals("offset " + i, moved[i], calibrator.getOffset()[i], 1.0);
+		}
+	}
+}
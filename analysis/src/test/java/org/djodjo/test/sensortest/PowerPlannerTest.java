@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the estimates of {@link PowerPlanner} and the plans it picks for a
+ * capture of an accelerometer, a gyroscope and an on-change light sensor.
+ */
+public class PowerPlannerTest {
+
+	private static final float EVENT_COST_US = 100;
+
+	private final PowerPlanner mPlanner = new PowerPlanner(EVENT_COST_US);
+	private final int mAccelerometer = mPlanner.addSensor("accelerometer", 0.5f, 200, 3000, 200, 0);
+	private final int mGyroscope = mPlanner.addSensor("gyroscope", 6, 200, 3000, 200, 0);
+	private final int mLight = mPlanner.addSensor("light", 0.2f, 0, 0, 0, 0);
+
+	@Test
+	public void estimatesUnbatchedCapture() {
+		// 401 deliveries a second keep the processor awake.
+		assertEquals(6.7f, mPlanner.getSensorMa(), 1e-4f);
+		assertEquals(PowerPlanner.CPU_MA, mPlanner.getCpuMa(), 1e-4f);
+		assertEquals(106.7f, mPlanner.estimateMa(), 1e-3f);
+	}
+
+	@Test
+	public void fullFifoFlushesBeforeLatency() {
+		PowerPlanner planner = new PowerPlanner(EVENT_COST_US);
+		planner.addSensor("accelerometer", 0.5f, 200, 100, 200, 10000);
+		// 100 events at 200 Hz: a delivery every 0.5 s, not every 10 s.
+		float duty = 2 * PowerPlanner.WAKEUP_MS / 1000 + 200 * EVENT_COST_US / 1000000;
+		assertEquals(PowerPlanner.CPU_MA * duty, planner.getCpuMa(), 1e-4f);
+	}
+
+	@Test
+	public void batchesBeforeSlowingDown() {
+		assertTrue(mPlanner.plan(20, 300000, 1));
+		assertEquals(200, mPlanner.getRateHz(mAccelerometer), 0);
+		assertEquals(200, mPlanner.getRateHz(mGyroscope), 0);
+		assertEquals(1000, mPlanner.getLatencyMs(mAccelerometer));
+		assertEquals(1000, mPlanner.getLatencyMs(mGyroscope));
+		// The light sensor cannot batch and is delivered on change.
+		assertEquals(0, mPlanner.getLatencyMs(mLight));
+		assertEquals(0, mPlanner.getRateHz(mLight), 0);
+		assertTrue(mPlanner.estimateMa() <= 20);
+	}
+
+	@Test
+	public void slowsDownOnceBatchingIsNotEnough() {
+		assertTrue(mPlanner.plan(5, 1000, 1));
+		assertEquals(1000, mPlanner.getLatencyMs(mGyroscope));
+		assertTrue(mPlanner.getRateHz(mGyroscope) < 200);
+		assertTrue(mPlanner.estimateMa() <= 5);
+	}
+
+	@Test
+	public void slowsDownWithoutBatching() {
+		assertTrue(mPlanner.plan(10, 0, 1));
+		assertEquals(0, mPlanner.getLatencyMs(mAccelerometer));
+		assertEquals(0, mPlanner.getLatencyMs(mGyroscope));
+		assertTrue(mPlanner.estimateMa() <= 10);
+	}
+
+	@Test
+	public void honoursMinHz() {
+		// 25 Hz is a rate step below the minimum, so the sensors stop at 50 Hz.
+		assertFalse(mPlanner.plan(0.1f, 1000, 30));
+		assertEquals(50, mPlanner.getRateHz(mAccelerometer), 0);
+		assertEquals(50, mPlanner.getRateHz(mGyroscope), 0);
+		assertFalse(mPlanner.plan(0.1f, 1000, 25));
+		assertEquals(25, mPlanner.getRateHz(mAccelerometer), 0);
+		assertEquals(25, mPlanner.getRateHz(mGyroscope), 0);
+	}
+
+	@Test
+	public void unreachableBudgetGivesCheapestPlan() {
+		assertFalse(mPlanner.plan(0, 60000, 1));
+		assertEquals(1, mPlanner.getRateHz(mAccelerometer), 0);
+		assertEquals(1, mPlanner.getRateHz(mGyroscope), 0);
+		assertEquals(60000, mPlanner.getLatencyMs(mAccelerometer));
+		assertEquals(60000, mPlanner.getLatencyMs(mGyroscope));
+		// The sensors keep their minimum duty.
+		float sensorMa = (0.5f + 6) * PowerPlanner.MIN_SENSOR_DUTY + 0.2f;
+		assertEquals(sensorMa, mPlanner.getSensorMa(), 1e-4f);
+	}
+
+	@Test
+	public void planStartsOver() {
+		assertFalse(mPlanner.plan(0, 60000, 1));
+		assertTrue(mPlanner.plan(1000, 60000, 1));
+		assertEquals(200, mPlanner.getRateHz(mGyroscope), 0);
+		assertEquals(0, mPlanner.getLatencyMs(mGyroscope));
+	}
+
+	@Test
+	public void budget() {
+		assertEquals(120, PowerPlanner.getBudgetMa(3000, 24, 5), 1e-4f);
+		assertEquals(0, PowerPlanner.getBudgetMa(3000, 0, 5), 0);
+		// The baseline alone exceeds the budget.
+		assertEquals(0, PowerPlanner.getBudgetMa(100, 24, 5), 0);
+	}
+}
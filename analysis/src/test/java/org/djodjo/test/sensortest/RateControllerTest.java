@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Drives {@link RateController} with a simulated main looper whose load
+ * responds to the periods the controller picks.
+ */
+public class RateControllerTest {
+
+	/** Bounds used by SensorHelper: unthrottled to 2 Hz, UI 4 Hz to 1 Hz. */
+	private static final long MIN_SAMPLE_MS = 0;
+	private static final long MAX_SAMPLE_MS = 500;
+	private static final long MIN_UI_MS = 250;
+	private static final long MAX_UI_MS = 1000;
+
+	/**
+	 * Main looper of a phone monitoring a few sensors, one tick per second.
+	 * Sensor callbacks and UI updates cost main-thread time; on top of them
+	 * comes external load, e.g. another app or garbage collection. The
+	 * utilization u of the thread then sets the measurements: callbacks get
+	 * slower as the thread saturates, UI messages pile up past u = 1, and
+	 * frames are dropped past u = 0.8.
+	 */
+	static final class SimulatedLoad {
+		static final int SENSORS = 4;
+		/** Rate of an unthrottled sensor. */
+		static final double NATIVE_HZ = 200;
+		static final double EVENT_COST_NS = 150000;
+		static final double UI_COST_NS = 4000000;
+		static final int FRAMES_PER_TICK = 60;
+
+		/** Share of the main thread taken by other work. */
+		double external;
+
+		long callbackMeanNs;
+		long queueDepth;
+		int droppedFrames;
+		double utilization;
+
+		/**
+		 * Simulates one tick at the controller's current periods.
+		 */
+		void tick(RateController controller) {
+			long samplePeriodMs = controller.getSamplePeriodMs();
+			double hz = samplePeriodMs <= 0 ? NATIVE_HZ : Math.min(NATIVE_HZ, 1000.0 / samplePeriodMs);
+			double events = SENSORS * hz;
+			double uiUpdates = SENSORS * 1000.0 / controller.getUiPeriodMs();
+			double u = external + (events * EVENT_COST_NS + uiUpdates * UI_COST_NS) / 1e9;
+			utilization = u;
+			callbackMeanNs = (long) (EVENT_COST_NS / Math.max(0.05, 1 - u));
+			queueDepth = u > 1 ? (long) (uiUpdates * (1 - 1 / u)) : 0;
+			droppedFrames = (int) (FRAMES_PER_TICK * Math.max(0, Math.min(1, (u - 0.8) / 0.2)));
+		}
+
+		/**
+		 * Simulates one tick and feeds it to the controller.
+		 *
+		 * @return true if the tick was under pressure by the default thresholds.
+		 */
+		boolean step(RateController controller) {
+			tick(controller);
+			controller.update(callbackMeanNs, queueDepth, droppedFrames);
+			return droppedFrames > 3 || queueDepth > 8 || callbackMeanNs > 2000000;
+		}
+	}
+
+	private static RateController newController() {
+		return new RateController(MIN_SAMPLE_MS, MAX_SAMPLE_MS, MIN_UI_MS, MAX_UI_MS);
+	}
+
+	@Test
+	public void staysFastWithoutLoad() {
+		RateController controller = newController();
+		SimulatedLoad load = new SimulatedLoad();
+		for (int i = 0; i < 60; i++) {
+			assertFalse(load.step(controller));
+		}
+		assertEquals(0, controller.getLevel());
+		assertEquals(MIN_SAMPLE_MS, controller.getSamplePeriodMs());
+		assertEquals(MIN_UI_MS, controller.getUiPeriodMs());
+	}
+
+	@Test
+	public void backsOffUnderLoad() {
+		RateController controller = newController();
+		SimulatedLoad load = new SimulatedLoad();
+		load.external = 0.75;
+		load.tick(controller);
+		assertTrue("the load must overwhelm the fastest periods", load.droppedFrames > 3);
+
+		for (int i = 0; i < 20; i++) {
+			load.step(controller);
+		}
+		assertTrue(controller.getLevel() > 0);
+		assertTrue(controller.getSamplePeriodMs() > MIN_SAMPLE_MS);
+		assertTrue(controller.getUiPeriodMs() > MIN_UI_MS);
+
+		// Settled: only the occasional probe for a faster level is under pressure.
+		int pressured = 0;
+		double utilization = 0;
+		for (int i = 0; i < 60; i++) {
+			if (load.step(controller)) {
+				pressured++;
+			}
+			utilization += load.utilization;
+		}
+		assertTrue("pressured ticks: " + pressured, pressured <= 20);
+		assertTrue(utilization / 60 < 0.85);
+	}
+
+	@Test
+	public void recoversWhenLoadGoesAway() {
+		RateController controller = newController();
+		SimulatedLoad load = new SimulatedLoad();
+		load.external = 0.75;
+		for (int i = 0; i < 30; i++) {
+			load.step(controller);
+		}
+		int loadedLevel = controller.getLevel();
+		assertTrue(loadedLevel > 0);
+
+		load.external = 0;
+		int ticks = 0;
+		while (controller.getLevel() > 0 && ticks < 100) {
+			int level = controller.getLevel();
+			assertFalse(load.step(controller));
+			assertTrue("recovers one level at a time", controller.getLevel() >= level - 1);
+			ticks++;
+		}
+		assertEquals(0, controller.getLevel());
+		// One level per three calm ticks, some possibly counted before the load went.
+		assertTrue("ticks: " + ticks, ticks <= loadedLevel * 3);
+		assertEquals(MIN_SAMPLE_MS, controller.getSamplePeriodMs());
+		assertEquals(MIN_UI_MS, controller.getUiPeriodMs());
+	}
+
+	@Test
+	public void respectsUserBounds() {
+		// User target of 50 Hz, floor of 5 Hz.
+		RateController controller = new RateController(20, 200, MIN_UI_MS, MAX_UI_MS);
+		SimulatedLoad load = new SimulatedLoad();
+		load.external = 1.2;
+		for (int i = 0; i < 30; i++) {
+			load.step(controller);
+			assertTrue(controller.getSamplePeriodMs() >= 20);
+			assertTrue(controller.getSamplePeriodMs() <= 200);
+			assertTrue(controller.getUiPeriodMs() >= MIN_UI_MS);
+			assertTrue(controller.getUiPeriodMs() <= MAX_UI_MS);
+		}
+		// Overwhelmed whatever the rate: stuck at the slowest bounds.
+		assertEquals(200, controller.getSamplePeriodMs());
+		assertEquals(MAX_UI_MS, controller.getUiPeriodMs());
+		assertFalse(controller.update(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE));
+
+		load.external = 0;
+		for (int i = 0; i < 60; i++) {
+			load.step(controller);
+			assertTrue(controller.getSamplePeriodMs() >= 20);
+		}
+		assertEquals(20, controller.getSamplePeriodMs());
+	}
+
+	@Test
+	public void boundsChangeKeepsLevel() {
+		RateController controller = newController();
+		assertTrue(controller.update(Long.MAX_VALUE, 0, 0));
+		assertTrue(controller.update(Long.MAX_VALUE, 0, 0));
+		assertEquals(2, controller.getLevel());
+		controller.setSampleBounds(100, 150);
+		assertEquals(150, controller.getSamplePeriodMs());
+		assertTrue(controller.reset());
+		assertEquals(100, controller.getSamplePeriodMs());
+	}
+}
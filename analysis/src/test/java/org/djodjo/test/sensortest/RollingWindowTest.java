@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link RollingWindow} with a brute-force scan of all samples,
+ * within the documented edge of one bucket.
+ */
+public class RollingWindowTest {
+
+	private static final long MS = 1000000L;
+	private static final long WINDOW_NS = 1000 * MS;
+	/** Upper bound of the bucket length, 1/63 of the window. */
+	private static final long BUCKET_NS = WINDOW_NS / 63 + 1;
+
+	private final List<Long> mTimes = new ArrayList<Long>();
+	private final List<Double> mValues = new ArrayList<Double>();
+
+	@Test
+	public void minMatchesBruteForce() {
+		compareWithBruteForce(RollingWindow.MIN, 1);
+	}
+
+	@Test
+	public void maxMatchesBruteForce() {
+		compareWithBruteForce(RollingWindow.MAX, 2);
+	}
+
+	@Test
+	public void avgMatchesBruteForce() {
+		compareWithBruteForce(RollingWindow.AVG, 3);
+	}
+
+	@Test
+	public void maxFillsDequeWithoutOverflow() {
+		// A falling signal never dominates older buckets, so every bucket stays
+		// in the deque until it is evicted. The maximum is the oldest sample in
+		// the window, to one bucket and one sample.
+		RollingWindow window = new RollingWindow(RollingWindow.MAX, WINDOW_NS);
+		for (long t = 0; t < 10 * WINDOW_NS; t += MS) {
+			window.add(t, -t);
+			double max = window.get(t);
+			assertTrue(max <= -(t - WINDOW_NS - BUCKET_NS));
+			assertTrue(max >= -Math.max(0, t - WINDOW_NS + BUCKET_NS + MS));
+		}
+	}
+
+	@Test
+	public void evictsOldExtremes() {
+		RollingWindow window = new RollingWindow(RollingWindow.MIN, WINDOW_NS);
+		window.add(0, -5);
+		for (long t = 10 * MS; t <= 3 * WINDOW_NS; t += 10 * MS) {
+			window.add(t, 3);
+		}
+		assertEquals(3, window.get(3 * WINDOW_NS), 0);
+	}
+
+	@Test
+	public void emptiesAfterGap() {
+		RollingWindow window = new RollingWindow(RollingWindow.AVG, WINDOW_NS);
+		window.add(0, 1);
+		window.add(10 * MS, 2);
+		assertEquals(1.5, window.get(10 * MS), 1e-12);
+		assertTrue(Double.isNaN(window.get(WINDOW_NS + BUCKET_NS + 10 * MS)));
+		window.add(5 * WINDOW_NS, 7);
+		assertEquals(7, window.get(5 * WINDOW_NS), 1e-12);
+	}
+
+	@Test
+	public void ignoresNaN() {
+		RollingWindow window = new RollingWindow(RollingWindow.MAX, WINDOW_NS);
+		assertTrue(Double.isNaN(window.get(0)));
+		window.add(0, Double.NaN);
+		assertTrue(Double.isNaN(window.get(0)));
+		window.add(MS, 4);
+		window.add(2 * MS, Double.NaN);
+		assertEquals(4, window.get(2 * MS), 0);
+	}
+
+	@Test
+	public void deltaOfRamp() {
+		// Value in seconds: the change over a 1 s window is 1, to one bucket.
+		RollingWindow window = new RollingWindow(RollingWindow.DELTA, WINDOW_NS);
+		for (long t = 0; t <= 5 * WINDOW_NS; t += 20 * MS) {
+			window.add(t, t / 1e9);
+			double delta = window.get(t);
+			double expected = Math.min(t, WINDOW_NS) / 1e9;
+			assertEquals(expected, delta, BUCKET_NS / 1e9 + 0.02);
+		}
+	}
+
+	/**
+	 * Feeds irregular samples with occasional gaps and checks every aggregate
+	 * against all samples that are surely in the window, and all that may be.
+	 */
+	private void compareWithBruteForce(int op, long seed) {
+		Random random = new Random(seed);
+		RollingWindow window = new RollingWindow(op, WINDOW_NS);
+		long t = 0;
+		for (int i = 0; i < 20000; i++) {
+			double value = random.nextGaussian() * 10;
+			window.add(t, value);
+			mTimes.add(t);
+			mValues.add(value);
+			check(op, window.get(t), t);
+			long gap = random.nextInt(50) * MS + random.nextInt(1000);
+			if (random.nextInt(500) == 0) {
+				// Query after a pause, e.g. a sensor that stopped reporting.
+				gap += (long) (random.nextDouble() * 2 * WINDOW_NS);
+				check(op, window.get(t + gap), t + gap);
+			}
+			t += gap;
+		}
+	}
+
+	private void check(int op, double actual, long nowNs) {
+		// Samples at or after sure are in the window; samples after maybe may be.
+		long sure = nowNs - WINDOW_NS + BUCKET_NS;
+		long maybe = nowNs - WINDOW_NS - BUCKET_NS;
+		double sureMin = Double.POSITIVE_INFINITY;
+		double sureMax = Double.NEGATIVE_INFINITY;
+		double maybeMin = Double.POSITIVE_INFINITY;
+		double maybeMax = Double.NEGATIVE_INFINITY;
+		int sureCount = 0;
+		int maybeCount = 0;
+		for (int i = mTimes.size() - 1; i >= 0 && mTimes.get(i) > maybe; i--) {
+			double value = mValues.get(i);
+			maybeMin = Math.min(maybeMin, value);
+			maybeMax = Math.max(maybeMax, value);
+			maybeCount++;
+			if (mTimes.get(i) >= sure) {
+				sureMin = Math.min(sureMin, value);
+				sureMax = Math.max(sureMax, value);
+				sureCount++;
+			}
+		}
+		if (maybeCount == 0) {
+			assertTrue("expected NaN at " + nowNs, Double.isNaN(actual));
+			return;
+		}
+		if (sureCount == 0 && Double.isNaN(actual)) {
+			return;
+		}
+		assertTrue("no aggregate at " + nowNs, !Double.isNaN(actual));
+		switch (op) {
+		case RollingWindow.MIN:
+			assertTrue(actual >= maybeMin && (sureCount == 0 || actual <= sureMin));
+			break;
+		case RollingWindow.MAX:
+			assertTrue(actual <= maybeMax && (sureCount == 0 || actual >= sureMax));
+			break;
+		default:
+			assertTrue(actual >= maybeMin - 1e-9 && actual <= maybeMax + 1e-9);
+			break;
+		}
+	}
+}
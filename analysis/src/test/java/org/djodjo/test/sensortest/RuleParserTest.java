@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles rules with {@link RuleParser} against named test channels and
+ * evaluates them through {@link RuleTrigger}, as RuleEngine does.
+ */
+public class RuleParserTest {
+
+	private static final long MS = 1000000L;
+	private static final long MIN = 60000 * MS;
+	private static final double GRAVITY = 9.80665;
+
+	/** Binds any of a few sensor names, one channel per name and component. */
+	private final RuleParser.Bindings mBindings = new RuleParser.Bindings() {
+		@Override
+		public RuleExpr.Channel getChannel(String sensor, int component) {
+			if (!SENSORS.contains(sensor)) {
+				return null;
+			}
+			for (RuleExpr.Channel channel : mChannels) {
+				if (channel.sensor.equals(sensor) && channel.component == component) {
+					return channel;
+				}
+			}
+			RuleExpr.Channel channel = new RuleExpr.Channel(sensor, component);
+			mChannels.add(channel);
+			return channel;
+		}
+
+		@Override
+		public RollingWindow addWindow(RuleExpr.Channel channel, int op, long windowNs) {
+			RollingWindow window = new RollingWindow(op, windowNs);
+			RollingWindow[] windows = new RollingWindow[channel.windows.length + 1];
+			System.arraycopy(channel.windows, 0, windows, 0, channel.windows.length);
+			windows[channel.windows.length] = window;
+			channel.windows = windows;
+			mWindowNs = windowNs;
+			return window;
+		}
+	};
+
+	private static final List<String> SENSORS = new ArrayList<String>();
+	static {
+		SENSORS.add("acceleration");
+		SENSORS.add("pressure");
+		SENSORS.add("proximity");
+		SENSORS.add("light");
+		SENSORS.add("step-counter");
+	}
+
+	private final List<RuleExpr.Channel> mChannels = new ArrayList<RuleExpr.Channel>();
+	private final float[] mValues = new float[3];
+	private long mWindowNs;
+	private long mForNs;
+
+	@Test
+	public void highG() throws ParseException {
+		RuleTrigger trigger = compile("acceleration.mag > 2g for 200ms");
+		assertEquals(200 * MS, mForNs);
+		// 1 g at rest, then a 2.5 g shake from 10 ms on.
+		assertFalse(feed(trigger, "acceleration", 0, 0, 0, (float) GRAVITY));
+		long t = 10 * MS;
+		for (; t < 210 * MS; t += 10 * MS) {
+			assertFalse(feed(trigger, "acceleration", t, 1.5f * (float) GRAVITY,
+					0, 2f * (float) GRAVITY));
+		}
+		assertTrue(feed(trigger, "acceleration", t, 1.5f * (float) GRAVITY, 0, 2f * (float) GRAVITY));
+		assertTrue(trigger.isFiring());
+	}
+
+	@Test
+	public void pressureDrop() throws ParseException {
+		RuleTrigger trigger = compile("max(pressure, 10min) - pressure > 3");
+		assertEquals(10 * MIN, mWindowNs);
+		assertEquals(0, mForNs);
+		// Falls 1 hPa a minute from 1013 hPa: more than 3 below the 10 min peak
+		// after just over 3 minutes.
+		int fired = 0;
+		for (long t = 0; t <= 8 * MIN; t += MIN / 10) {
+			boolean fires = feed(trigger, "pressure", t, 1013 - t / (float) MIN);
+			if (fires) {
+				fired++;
+				assertTrue(t > 3 * MIN && t < 4 * MIN);
+			}
+		}
+		assertEquals(1, fired);
+	}
+
+	@Test
+	public void pocket() throws ParseException {
+		RuleTrigger trigger = compile("proximity < 1 and light < 5");
+		// NaN before the first sample is never true.
+		assertFalse(feed(trigger, "proximity", 0, 0));
+		assertTrue(feed(trigger, "light", MS, 2));
+		assertFalse(feed(trigger, "light", 2 * MS, 20));
+		assertFalse(trigger.isFiring());
+		assertTrue(feed(trigger, "light", 3 * MS, 1));
+	}
+
+	@Test
+	public void forDebouncesAndRearms() throws ParseException {
+		RuleTrigger trigger = compile("light > 10 for 1s");
+		assertEquals(1000 * MS, mForNs);
+		assertFalse(feed(trigger, "light", 0, 20));
+		assertFalse(feed(trigger, "light", 900 * MS, 20));
+		// A dip restarts the hold time.
+		assertFalse(feed(trigger, "light", 950 * MS, 5));
+		assertFalse(feed(trigger, "light", 1000 * MS, 20));
+		assertFalse(feed(trigger, "light", 1900 * MS, 20));
+		assertTrue(feed(trigger, "light", 2000 * MS, 20));
+		// Fires once while the condition holds.
+		assertFalse(feed(trigger, "light", 5000 * MS, 20));
+		assertTrue(trigger.isFiring());
+		// Re-arms when the condition becomes false.
+		assertFalse(feed(trigger, "light", 5100 * MS, 0));
+		assertFalse(trigger.isFiring());
+		assertFalse(feed(trigger, "light", 5200 * MS, 20));
+		assertTrue(feed(trigger, "light", 6200 * MS, 20));
+	}
+
+	@Test
+	public void delta() throws ParseException {
+		RuleTrigger trigger = compile("delta(step-counter, 1min) >= 100");
+		int fired = 0;
+		for (long t = 0; t <= 3 * MIN; t += 1000 * MS) {
+			// Two steps a second: 100 steps take 50 s, well within the minute.
+			if (feed(trigger, "step-counter", t, t / (500 * MS))) {
+				fired++;
+				assertTrue(t >= 50 * 1000 * MS && t <= 52 * 1000 * MS);
+			}
+		}
+		assertEquals(1, fired);
+	}
+
+	@Test
+	public void units() throws ParseException {
+		assertEquals(2 * GRAVITY, eval("2g"), 1e-12);
+		assertEquals(0.5 * GRAVITY, eval(".5g"), 1e-12);
+		assertEquals(14, eval("2 + 3 * 4"), 0);
+		assertEquals(-1, eval("-(2 - 1)"), 0);
+		compile("light > 0 for 2s");
+		assertEquals(2000 * MS, mForNs);
+		compile("light > 0 for 1.5min");
+		assertEquals(90000 * MS, mForNs);
+		compile("light > 0 for 1h");
+		assertEquals(60 * MIN, mForNs);
+		compile("avg(light, 250ms) > 0");
+		assertEquals(250 * MS, mWindowNs);
+	}
+
+	@Test
+	public void minusAndNames() throws ParseException {
+		// A '-' right after a name is part of it; with spaces it subtracts.
+		assertParseError("light-pressure > 0", "unknown sensor 'light-pressure'");
+		RuleTrigger trigger = compile("light - pressure > 0");
+		feed(trigger, "pressure", 0, 3);
+		assertTrue(feed(trigger, "light", MS, 5));
+		// Names with '-' bind to their sensor.
+		compile("step-counter > 0");
+		assertNotNull(mBindings.getChannel("step-counter", 0));
+	}
+
+	@Test
+	public void components() throws ParseException {
+		compile("acceleration.z > 0");
+		assertTrue(hasChannel("acceleration", 2));
+		compile("acceleration.y > 0");
+		assertTrue(hasChannel("acceleration", 1));
+		compile("acceleration.2 > 0 and acceleration > 0");
+		assertTrue(hasChannel("acceleration", 0));
+		compile("acceleration.mag > 0");
+		assertTrue(hasChannel("acceleration", RuleExpr.Channel.MAGNITUDE));
+	}
+
+	@Test
+	public void errors() {
+		assertParseError("light >", "unexpected end of rule");
+		assertParseError("light > 2x", "unknown unit 'x'");
+		assertParseError("light > 1 for 10", "expected a duration");
+		assertParseError("gravityx > 1", "unknown sensor 'gravityx'");
+		assertParseError("light.w > 1", "unknown component 'w'");
+		assertParseError("(light > 1", "expected ')'");
+		assertParseError("light > 1 light", "unexpected 'light'");
+		assertParseError("max(light) > 1", "expected ','");
+	}
+
+	private RuleTrigger compile(String text) throws ParseException {
+		mWindowNs = 0;
+		RuleParser parser = new RuleParser(text, mBindings);
+		RuleExpr condition = parser.parse();
+		mForNs = parser.getForNs();
+		return new RuleTrigger(condition, mForNs);
+	}
+
+	private double eval(String text) throws ParseException {
+		return new RuleParser(text, mBindings).parse().eval(0);
+	}
+
+	/**
+	 * Feeds one sample to the channels of a sensor, then updates the trigger.
+	 *
+	 * @return true if the trigger fired.
+	 */
+	private boolean feed(RuleTrigger trigger, String sensor, long timestampNs, float... values) {
+		System.arraycopy(values, 0, mValues, 0, values.length);
+		for (RuleExpr.Channel channel : mChannels) {
+			if (channel.sensor.equals(sensor)) {
+				channel.update(timestampNs, mValues, values.length);
+			}
+		}
+		return trigger.update(timestampNs);
+	}
+
+	private boolean hasChannel(String sensor, int component) {
+		for (RuleExpr.Channel channel : mChannels) {
+			if (channel.sensor.equals(sensor) && channel.component == component) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void assertParseError(String text, String message) {
+		try {
+			compile(text);
+			fail("parsed: " + text);
+		} catch (ParseException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+		}
+	}
+}
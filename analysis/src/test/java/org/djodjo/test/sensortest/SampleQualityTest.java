@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link SampleQuality} on synthetic sample streams.
+ */
+public class SampleQualityTest {
+
+	private static final long MS = 1000000L;
+	/** Event time stamps on a clock unrelated to the arrival clock. */
+	private static final long EVENT_EPOCH_NS = 123456789L * MS;
+
+	private final float[] mValues = new float[3];
+	private long mEventNs = EVENT_EPOCH_NS;
+	private long mArrivalNs = 1000 * MS;
+
+	/**
+	 * Feeds samples at a steady period, with changing values.
+	 *
+	 * @return Flags raised by any of them.
+	 */
+	private int feed(SampleQuality quality, int samples, long periodNs) {
+		int raised = 0;
+		for (int i = 0; i < samples; i++) {
+			mEventNs += periodNs;
+			mArrivalNs += periodNs;
+			mValues[0] = mValues[0] == 0 ? 1 : 0;
+			raised |= quality.onSample(mEventNs, mArrivalNs, mValues, mValues.length);
+		}
+		return raised;
+	}
+
+	@Test
+	public void steadyStreamIsClean() {
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		assertEquals(0, feed(quality, 200, 10 * MS));
+		assertEquals(0, quality.checkStall(mArrivalNs + 20 * MS));
+		assertEquals(0, quality.getFlags(mArrivalNs));
+	}
+
+	@Test
+	public void flagsGapsAndStalls() {
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		feed(quality, 100, 10 * MS);
+		assertEquals(SampleQuality.FLAG_GAP, feed(quality, 1, 200 * MS));
+		feed(quality, 100, 10 * MS);
+		assertEquals(SampleQuality.FLAG_STALLED, quality.checkStall(mArrivalNs + 200 * MS));
+		assertTrue((quality.getFlags(mArrivalNs + 200 * MS) & SampleQuality.FLAG_STALLED) != 0);
+		assertEquals(0, quality.getFlags(mArrivalNs + 200 * MS + SampleQuality.HOLD_NS));
+	}
+
+	@Test
+	public void reconvergesAfterRateDrop() {
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		feed(quality, 100, 5 * MS);
+		assertTrue((feed(quality, 20, 200 * MS) & SampleQuality.FLAG_GAP) != 0);
+		long gaps = quality.getCount(SampleQuality.FLAG_GAP);
+		// 40 times slower: gaps at first, then the new usual rate.
+		assertEquals(0, feed(quality, 100, 200 * MS) & SampleQuality.FLAG_GAP);
+		assertEquals(gaps, quality.getCount(SampleQuality.FLAG_GAP));
+		assertEquals(0, quality.checkStall(mArrivalNs + 400 * MS));
+		assertEquals(0, quality.getFlags(mArrivalNs + SampleQuality.HOLD_NS));
+	}
+
+	@Test
+	public void allowsBatchingLatency() {
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		quality.setLatency(1000 * MS);
+		feed(quality, 100, 10 * MS);
+		assertEquals(0, quality.checkStall(mArrivalNs + 900 * MS));
+		assertEquals(SampleQuality.FLAG_STALLED, quality.checkStall(mArrivalNs + 1100 * MS));
+	}
+
+	@Test
+	public void checksSaturationOnMeasuredValuesOnly() {
+		// An uncalibrated gyroscope: measured axes, then their bias.
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		float[] values = { 1, 2, 3, 20, 20, 20 };
+		assertEquals(0, quality.onSample(mEventNs, mArrivalNs, values, values.length));
+		values[1] = -20;
+		assertEquals(SampleQuality.FLAG_SATURATED,
+				quality.onSample(mEventNs + MS, mArrivalNs + MS, values, values.length));
+
+		// A proximity sensor reporting "far".
+		SampleQuality proximity = new SampleQuality(false, 5, SampleQuality.getSaturationValues(8));
+		assertEquals(0, proximity.onSample(mEventNs, mArrivalNs, new float[] { 5 }, 1));
+		assertEquals(0, SampleQuality.getSaturationValues(18));
+		assertEquals(3, SampleQuality.getSaturationValues(16));
+	}
+
+	@Test
+	public void restartForgetsInterval() {
+		SampleQuality quality = new SampleQuality(true, 20, 3);
+		feed(quality, 100, 5 * MS);
+		quality.restart();
+		assertEquals(0, feed(quality, 100, 100 * MS));
+	}
+}
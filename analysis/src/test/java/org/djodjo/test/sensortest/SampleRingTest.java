@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link SampleRing} and {@link SampleRingReader}, including readers
+ * racing the writer.
+ */
+public class SampleRingTest {
+
+	private final float[] mValues = new float[SampleRing.MAX_VALUES];
+
+	/** Writes sample n with contents derived from n, so readers can check it. */
+	private void write(SampleRing ring, long n) {
+		int count = (int) (n % (SampleRing.MAX_VALUES + 1));
+		for (int i = 0; i < count; i++) {
+			mValues[i] = n + i;
+		}
+		ring.write((int) (n % 7), n * 1000, mValues, count);
+	}
+
+	/**
+	 * Checks that a sample read is sample n exactly.
+	 *
+	 * @return The sample number.
+	 */
+	private static long check(SampleRingReader.Sample sample) {
+		long n = sample.timestampNs / 1000;
+		assertEquals(n * 1000, sample.timestampNs);
+		assertEquals(n % 7, sample.type);
+		assertEquals(n % (SampleRing.MAX_VALUES + 1), sample.count);
+		for (int i = 0; i < sample.count; i++) {
+			assertEquals((float) (n + i), sample.values[i], 0);
+		}
+		return n;
+	}
+
+	private static ByteBuffer allocate(int capacity) {
+		return ByteBuffer.allocateDirect(SampleRing.bufferSize(capacity));
+	}
+
+	@Test
+	public void readsInOrder() {
+		ByteBuffer buffer = allocate(16);
+		SampleRing ring = new SampleRing(buffer, 16);
+		SampleRingReader reader = new SampleRingReader(buffer);
+		SampleRingReader.Sample sample = new SampleRingReader.Sample();
+		assertFalse(reader.poll(sample));
+		for (long n = 0; n < 40; n++) {
+			write(ring, n);
+			assertTrue(reader.poll(sample));
+			assertEquals(n, check(sample));
+			assertFalse(reader.poll(sample));
+		}
+		assertEquals(0, reader.getLost());
+	}
+
+	@Test
+	public void skipsOverwrittenSamples() {
+		ByteBuffer buffer = allocate(16);
+		SampleRing ring = new SampleRing(buffer, 16);
+		SampleRingReader reader = new SampleRingReader(buffer);
+		SampleRingReader.Sample sample = new SampleRingReader.Sample();
+		for (long n = 0; n < 100; n++) {
+			write(ring, n);
+		}
+		long expected = 100 - 16;
+		while (reader.poll(sample)) {
+			assertEquals(expected++, check(sample));
+		}
+		assertEquals(100, expected);
+		assertEquals(100 - 16, reader.getLost());
+	}
+
+	@Test
+	public void detectsTornReads() throws InterruptedException {
+		// A small ring, so the reader is lapped while copying.
+		final ByteBuffer buffer = allocate(4);
+		final SampleRing ring = new SampleRing(buffer, 4);
+		final long samples = 2000000;
+		final SampleRingReader reader = new SampleRingReader(buffer);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (long n = 0; n < samples; n++) {
+					write(ring, n);
+				}
+			}
+		});
+		writer.start();
+		SampleRingReader.Sample sample = new SampleRingReader.Sample();
+		long last = -1;
+		long read = 0;
+		while (true) {
+			boolean writing = writer.isAlive();
+			if (reader.poll(sample)) {
+				long n = check(sample);
+				assertTrue(n > last);
+				last = n;
+				read++;
+			} else if (!writing) {
+				break;
+			}
+		}
+		writer.join();
+		assertEquals(samples, read + reader.getLost());
+	}
+}
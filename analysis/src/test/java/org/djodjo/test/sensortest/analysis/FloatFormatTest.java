@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link FloatFormat} output parses back to the same numbers.
+ */
+public class FloatFormatTest {
+
+	private final byte[] mBuffer = new byte[64];
+
+	private String format(float value, int significant) {
+		int end = FloatFormat.appendFloat(mBuffer, 0, value, significant);
+		assertTrue("too long: " + end, end <= FloatFormat.MAX_FLOAT_LENGTH);
+		return new String(mBuffer, 0, end);
+	}
+
+	private String format(long value) {
+		int end = FloatFormat.appendLong(mBuffer, 0, value);
+		assertTrue("too long: " + end, end <= FloatFormat.MAX_LONG_LENGTH);
+		return new String(mBuffer, 0, end);
+	}
+
+	private void assertRoundTrip(float value) {
+		String text = format(value, FloatFormat.FLOAT_DIGITS);
+		assertEquals(text, Float.floatToIntBits(value), Float.floatToIntBits(Float.parseFloat(text)));
+	}
+
+	@Test
+	public void roundTripsRandomFloats() {
+		Random random = new Random(3);
+		for (int i = 0; i < 200000; i++) {
+			float value = Float.intBitsToFloat(random.nextInt());
+			if (!Float.isNaN(value)) {
+				assertRoundTrip(value);
+			}
+		}
+	}
+
+	@Test
+	public void roundTripsSensorValues() {
+		Random random = new Random(4);
+		for (int i = 0; i < 200000; i++) {
+			// Magnitudes from 1e-6 to 1e6, like sensor readings.
+			float value = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(13) - 6));
+			assertRoundTrip(value);
+		}
+		float[] edges = { 0f, -0f, 1e-4f, 9.999999e-5f, 1e15f, 9.99999e14f, Float.MIN_VALUE,
+				Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_NORMAL, 0.0123456789f, 16777217f };
+		for (float value : edges) {
+			if (value != 0) {
+				assertRoundTrip(value);
+			}
+		}
+	}
+
+	@Test
+	public void keepsSmallValuesPrecise() {
+		// As many digits as the float holds, as in Float.toString.
+		assertEquals("0.012345679", format(0.0123456789f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("0.0123457", format(0.0123456789f, 6));
+		assertEquals("1.2345679E-7", format(1.23456789e-7f, FloatFormat.FLOAT_DIGITS));
+	}
+
+	@Test
+	public void writesShortestForm() {
+		assertEquals("0.1", format(0.1f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("-9.81", format(-9.81f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("100", format(100f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("123456.7", format(123456.7f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("16777216", format(16777216f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("1E20", format(1e20f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("0", format(0f, FloatFormat.FLOAT_DIGITS));
+		assertEquals("NaN", format(Float.NaN, FloatFormat.FLOAT_DIGITS));
+		assertEquals("-Infinity", format(Float.NEGATIVE_INFINITY, FloatFormat.FLOAT_DIGITS));
+	}
+
+	@Test
+	public void writesLongs() {
+		assertEquals("0", format(0));
+		assertEquals("-42", format(-42));
+		assertEquals(Long.toString(Long.MAX_VALUE), format(Long.MAX_VALUE));
+		assertEquals(Long.toString(Long.MIN_VALUE), format(Long.MIN_VALUE));
+	}
+}
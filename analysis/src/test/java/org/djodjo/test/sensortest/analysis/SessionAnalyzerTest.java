@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest.analysis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Analyzes synthetic sessions written with {@link SessionFormat}.
+ */
+public class SessionAnalyzerTest {
+
+	private static final SessionFormat.SensorEntry[] SENSORS = {
+		new SessionFormat.SensorEntry(1, "acceleration", "Accelerometer (m/s2)", 5000, 39.2f),
+		new SessionFormat.SensorEntry(5, "light", "Light (lux)", 0, 10000f),
+		new SessionFormat.SensorEntry(4, "gyroscope", "Gyroscope (rad/s)", 2500, 34.9f),
+	};
+	private static final long START_NS = 86400000000000L;
+	/** Records of the synthetic session. */
+	private static final int RECORDS = 1000;
+
+	private File mFile;
+	private ForkJoinPool mPool;
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("session", ".bin");
+		mPool = new ForkJoinPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		mPool.shutdown();
+		mFile.delete();
+	}
+
+	/**
+	 * Writes a session interleaving the sensors at their own rates, with a
+	 * few irregular intervals, one time stamp going back and some markers.
+	 */
+	private void writeSession(int records, ByteBuffer extra) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(records * SessionFormat.RECORD_SIZE)
+				.order(SessionFormat.ORDER);
+		Random random = new Random(1);
+		long[] timestampNs = { START_NS, START_NS, START_NS };
+		long[] periodNs = { 5000000, 200000000, 2500000 };
+		float[] values = new float[SessionFormat.MAX_VALUES];
+		for (int i = 0; i < records; i++) {
+			int sensor = random.nextInt(SENSORS.length);
+			if (i % 97 == 0) {
+				SessionFormat.putMarker(buffer, i % 2 == 0 ? SessionFormat.KIND_QUALITY
+						: SessionFormat.KIND_EVENT, sensor, timestampNs[sensor], 1);
+				continue;
+			}
+			timestampNs[sensor] += i == 500 ? -periodNs[sensor] : periodNs[sensor] + random.nextInt(1000000);
+			int count = sensor == 1 ? 1 : 3;
+			for (int v = 0; v < count; v++) {
+				values[v] = (float) (random.nextGaussian() * 5);
+			}
+			SessionFormat.putSample(buffer, sensor, timestampNs[sensor], values, count);
+		}
+		buffer.flip();
+
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			FileChannel channel = out.getChannel();
+			channel.write(SessionFormat.encodeHeader(
+					new SessionFormat.Header(1400000000000L, START_NS, SENSORS)));
+			channel.write(buffer);
+			if (extra != null) {
+				channel.write(extra);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private SessionSummary analyze(long leafRecords) throws IOException {
+		return new SessionAnalyzer(mPool, leafRecords).analyze(mFile);
+	}
+
+	private static void assertSameSummary(SessionSummary expected, SessionSummary actual) {
+		assertEquals(expected.getRecords(), actual.getRecords());
+		assertEquals(expected.getInvalid(), actual.getInvalid());
+		assertEquals(expected.format(), actual.format());
+		for (int i = 0; i < SENSORS.length; i++) {
+			SensorSummary e = expected.getSensor(i);
+			SensorSummary a = actual.getSensor(i);
+			assertEquals(e.getSamples(), a.getSamples());
+			assertEquals(e.getMeanIntervalNs(), a.getMeanIntervalNs(), 0);
+			assertEquals(e.getMinIntervalNs(), a.getMinIntervalNs());
+			assertEquals(e.getMaxIntervalNs(), a.getMaxIntervalNs());
+			// Sums of squares are added in another order.
+			assertEquals(e.getJitterNs(), a.getJitterNs(), e.getJitterNs() * 1e-9);
+			assertEquals(e.getNonMonotonic(), a.getNonMonotonic());
+			assertEquals(e.getQualityEvents(), a.getQualityEvents());
+			assertEquals(e.getEvents(), a.getEvents());
+			for (int b = 0; b < SensorSummary.HISTOGRAM_BINS; b++) {
+				assertEquals(e.getHistogram()[b], a.getHistogram()[b]);
+			}
+		}
+	}
+
+	@Test
+	public void summaryDoesNotDependOnChunks() throws IOException {
+		writeSession(RECORDS, null);
+		SessionSummary whole = analyze(RECORDS);
+		assertEquals(RECORDS, whole.getRecords());
+		assertEquals(0, whole.getInvalid());
+		assertEquals(1, whole.getSensor(0).getNonMonotonic() + whole.getSensor(1).getNonMonotonic()
+				+ whole.getSensor(2).getNonMonotonic());
+
+		// Chunks of one record only have intervals across chunks.
+		long[] leaves = { 1, 2, 7, 64, 333, RECORDS - 1 };
+		for (long leaf : leaves) {
+			assertSameSummary(whole, analyze(leaf));
+		}
+	}
+
+	@Test
+	public void ignoresTruncatedRecord() throws IOException {
+		writeSession(RECORDS, null);
+		SessionSummary complete = analyze(RECORDS);
+
+		ByteBuffer partial = ByteBuffer.allocate(SessionFormat.RECORD_SIZE - 1);
+		writeSession(RECORDS, partial);
+		assertSameSummary(complete, analyze(RECORDS));
+		assertSameSummary(complete, analyze(7));
+	}
+
+	@Test
+	public void countsInvalidRecords() throws IOException {
+		writeSession(RECORDS, null);
+		SessionSummary valid = analyze(RECORDS);
+
+		ByteBuffer invalid = ByteBuffer.allocate(3 * SessionFormat.RECORD_SIZE)
+				.order(SessionFormat.ORDER);
+		// Unknown sensor, unknown kind and negative sensor index.
+		SessionFormat.putSample(invalid, SENSORS.length, START_NS, new float[3], 3);
+		SessionFormat.putMarker(invalid, 9, 0, START_NS, 0);
+		SessionFormat.putMarker(invalid, SessionFormat.KIND_EVENT, -1, START_NS, 0);
+		invalid.flip();
+		writeSession(RECORDS, invalid);
+
+		for (long leaf : new long[] { RECORDS + 3, 5 }) {
+			SessionSummary summary = analyze(leaf);
+			assertEquals(RECORDS + 3, summary.getRecords());
+			assertEquals(3, summary.getInvalid());
+			for (int i = 0; i < SENSORS.length; i++) {
+				assertEquals(valid.getSensor(i).getSamples(), summary.getSensor(i).getSamples());
+				assertEquals(valid.getSensor(i).getEvents(), summary.getSensor(i).getEvents());
+			}
+		}
+	}
+
+	@Test
+	public void readsHeader() throws IOException {
+		writeSession(0, null);
+		RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+		try {
+			SessionFormat.Header header = SessionFormat.readHeader(raf.getChannel());
+			assertEquals(START_NS, header.startTimestampNs);
+			assertEquals(SENSORS.length, header.sensors.length);
+			assertEquals("Gyroscope (rad/s)", header.sensors[2].uiName);
+			assertEquals(0, header.size % 64);
+			assertEquals(header.size, mFile.length());
+		} finally {
+			raf.close();
+		}
+		assertEquals(0, analyze(RECORDS).getRecords());
+	}
+}
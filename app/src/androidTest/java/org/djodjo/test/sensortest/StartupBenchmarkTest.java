@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.Arrays;
+
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+/**
+ * Starts the sensor screen several times, each time enumerating the sensors
+ * anew as in a new process, and fails when the median time to the first
+ * frame or to the first value exceeds its {@link StartupBenchmark} budget.
+ * Run it with "gradlew connectedCheck" on a device or emulator with at least
+ * one continuous sensor.
+ */
+public class StartupBenchmarkTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = StartupBenchmarkTest.class.getSimpleName();
+	private static final int STARTS = 5;
+	/** Longest wait for the first value of one start. */
+	private static final long TIMEOUT_MS = 10000;
+
+	public StartupBenchmarkTest() {
+		super(MainActivity.class);
+	}
+
+	public void testStartupWithinBudget() throws InterruptedException {
+		long[] firstFrameNs = new long[STARTS];
+		long[] firstValueNs = new long[STARTS];
+		for (int i = 0; i < STARTS; i++) {
+			SensorHelper.releaseInstance();
+			MainActivity activity = getActivity();
+			long[] phases = waitForFirstValue(activity);
+			firstFrameNs[i] = phases[StartupBenchmark.PHASE_FIRST_FRAME];
+			firstValueNs[i] = phases[StartupBenchmark.PHASE_FIRST_VALUE];
+			Log.i(TAG, "start " + i + ": first frame " + firstFrameNs[i] / 1000000
+					+ " ms, first value " + firstValueNs[i] / 1000000 + " ms");
+			activity.finish();
+			setActivity(null);
+			getInstrumentation().waitForIdleSync();
+		}
+
+		long frameMs = median(firstFrameNs) / 1000000;
+		long valueMs = median(firstValueNs) / 1000000;
+		Log.i(TAG, "median of " + STARTS + " starts: first frame " + frameMs
+				+ " ms, first value " + valueMs + " ms");
+		assertTrue("first frame " + frameMs + " ms over its "
+				+ StartupBenchmark.FIRST_FRAME_BUDGET_MS + " ms budget",
+				frameMs <= StartupBenchmark.FIRST_FRAME_BUDGET_MS);
+		assertTrue("first value " + valueMs + " ms over its "
+				+ StartupBenchmark.FIRST_VALUE_BUDGET_MS + " ms budget",
+				valueMs <= StartupBenchmark.FIRST_VALUE_BUDGET_MS);
+	}
+
+	/**
+	 * Waits until the activity shows its first sensor value.
+	 *
+	 * @return Time of each phase, see StartupBenchmark.getPhaseNs.
+	 */
+	private long[] waitForFirstValue(final MainActivity activity) throws InterruptedException {
+		final long[] phases = new long[StartupBenchmark.PHASE_FIRST_VALUE + 1];
+		long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+		while (true) {
+			// The phases are written on the main thread.
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					StartupBenchmark startup = activity.getStartupBenchmark();
+					for (int i = 0; i < phases.length; i++) {
+						phases[i] = startup.getPhaseNs(i);
+					}
+				}
+			});
+			if (phases[StartupBenchmark.PHASE_FIRST_VALUE] >= 0) {
+				return phases;
+			}
+			if (SystemClock.uptimeMillis() > deadline) {
+				fail("no sensor value within " + TIMEOUT_MS + " ms");
+			}
+			Thread.sleep(50);
+		}
+	}
+
+	private static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
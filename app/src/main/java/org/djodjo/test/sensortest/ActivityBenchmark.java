@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.Random;
+
+import android.hardware.SensorManager;
+
+/**
+ * Measures the cost of activity recognition on the device.
+ * <p/>
+ * Feeds synthetic acceleration and rotation magnitudes for each activity at
+ * a typical fastest sensor rate through the windows and the classifier used
+ * by {@link ActivityRecognizer}, timing every sample and every window. Also
+ * reports how often each synthetic activity is recognized, as a sanity check
+ * of the classifier.
+ */
+class ActivityBenchmark {
+
+	/** Sensor rate simulated. */
+	private static final int SENSOR_HZ = 200;
+
+	private ActivityBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark. Takes a fraction of a second per hundred windows;
+	 * do not call it on the UI thread.
+	 *
+	 * @param classifier classifier to measure.
+	 * @param windows windows to classify per activity.
+	 * @return A human readable report.
+	 */
+	static String run(ActivityClassifier classifier, int windows) {
+		final SensorMetrics.Histogram windowNs = new SensorMetrics.Histogram();
+		final float[] features = new float[ActivityRecognizer.FEATURE_COUNT];
+		final Random random = new Random(42);
+		final long periodNs = 1000000000L / SENSOR_HZ;
+		final int[] scenarios = { ActivityRecognizer.ACTIVITY_STILL,
+				ActivityRecognizer.ACTIVITY_WALKING, ActivityRecognizer.ACTIVITY_VEHICLE };
+		long samples = 0;
+		long sampleNs = 0;
+		StringBuilder recognized = new StringBuilder();
+		for (int scenario : scenarios) {
+			WindowFeatures accel = ActivityRecognizer.newWindow();
+			WindowFeatures gyro = ActivityRecognizer.newWindow();
+			int done = 0;
+			int correct = 0;
+			long ts = 0;
+			while (done < windows) {
+				ts += periodNs;
+				double t = ts * 1e-9;
+				float a = (float) (SensorManager.GRAVITY_EARTH + signal(scenario, t, random));
+				float g = (float) Math.abs(rotation(scenario, t, random));
+				long startNs = LatencyTrace.now();
+				gyro.add(ts, g);
+				boolean ready = accel.add(ts, a);
+				sampleNs += LatencyTrace.now() - startNs;
+				samples++;
+				if (!ready) {
+					continue;
+				}
+				startNs = LatencyTrace.now();
+				accel.compute(features, ActivityRecognizer.F_ACCEL);
+				gyro.compute(features, ActivityRecognizer.F_GYRO);
+				features[ActivityRecognizer.F_STEPS_PER_MIN] = 0;
+				int activity = classifier.classify(features);
+				windowNs.record(LatencyTrace.now() - startNs);
+				done++;
+				if (activity == scenario) {
+					correct++;
+				}
+			}
+			recognized.append(String.format(" %s %d%%", ActivityRecognizer.getName(scenario),
+					correct * 100 / windows));
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Activity: %d windows of %d slots, %.0f ns per sample at %d Hz\n",
+				windowNs.getCount(), ActivityRecognizer.WINDOW, (double) sampleNs / samples,
+				SENSOR_HZ));
+		sb.append("  per window ");
+		windowNs.format(sb);
+		sb.append("\n  recognized").append(recognized);
+		return sb.toString();
+	}
+
+	/**
+	 * Acceleration magnitude beyond gravity: sensor noise when still, a
+	 * stride around 1.8 Hz when walking, engine vibration and slow sway in
+	 * a vehicle.
+	 */
+	private static double signal(int activity, double t, Random random) {
+		switch (activity) {
+		case ActivityRecognizer.ACTIVITY_WALKING:
+			return 3 * Math.sin(2 * Math.PI * 1.8 * t) + 0.3 * random.nextGaussian();
+		case ActivityRecognizer.ACTIVITY_VEHICLE:
+			return 0.3 * Math.sin(2 * Math.PI * 12 * t) + 0.5 * Math.sin(2 * Math.PI * 0.3 * t)
+					+ 0.1 * random.nextGaussian();
+		default:
+			return 0.02 * random.nextGaussian();
+		}
+	}
+
+	private static double rotation(int activity, double t, Random random) {
+		switch (activity) {
+		case ActivityRecognizer.ACTIVITY_WALKING:
+			return 0.5 * Math.sin(2 * Math.PI * 0.9 * t) + 0.05 * random.nextGaussian();
+		case ActivityRecognizer.ACTIVITY_VEHICLE:
+			return 0.02 * random.nextGaussian();
+		default:
+			return 0.005 * random.nextGaussian();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Maps the features of one window to a motion state.
+ * Called on the main looper once per window; must not allocate.
+ *
+ * @see ActivityModels
+ */
+public interface ActivityClassifier {
+	/**
+	 * Classifies one window.
+	 *
+	 * @param features ActivityRecognizer.FEATURE_COUNT features, indexed by
+	 *            the ActivityRecognizer.F_XXX constants.
+	 * @return One of the ActivityRecognizer.ACTIVITY_XXX constants.
+	 */
+	int classify(float[] features);
+}
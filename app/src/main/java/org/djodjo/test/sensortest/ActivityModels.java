@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Activity classifiers: a built-in decision tree, and decision trees or
+ * linear models loaded from a text file.
+ * <p/>
+ * Model files are whitespace separated, one entry per line, '#' starts a
+ * comment. The first entry names the model kind. A tree lists its nodes,
+ * the root first, each as {@code feature threshold below above}, where the
+ * children are node indices or activity names:
+ * <pre>
+ * tree
+ * 10 40 1 walking
+ * 1 0.05 still vehicle
+ * </pre>
+ * A linear model lists one {@code activity bias weight...} line per
+ * activity, with one weight per feature; the highest score wins:
+ * <pre>
+ * linear
+ * still 1.0 0 -2.5 ...
+ * </pre>
+ * Features are indexed by the ActivityRecognizer.F_XXX constants.
+ */
+public final class ActivityModels {
+
+	private ActivityModels() {
+	}
+
+	/**
+	 * Creates the built-in classifier: a hand-tuned tree over step cadence,
+	 * acceleration variance, walking-band frequency and rotation.
+	 *
+	 * @return A new default classifier.
+	 */
+	public static ActivityClassifier createDefault() {
+		final int steps = ActivityRecognizer.F_STEPS_PER_MIN;
+		final int accelVar = ActivityRecognizer.F_ACCEL + WindowFeatures.VARIANCE;
+		final int accelHz = ActivityRecognizer.F_ACCEL + WindowFeatures.DOMINANT_HZ;
+		final int gyroVar = ActivityRecognizer.F_GYRO + WindowFeatures.VARIANCE;
+		final int still = DecisionTree.leaf(ActivityRecognizer.ACTIVITY_STILL);
+		final int walking = DecisionTree.leaf(ActivityRecognizer.ACTIVITY_WALKING);
+		final int vehicle = DecisionTree.leaf(ActivityRecognizer.ACTIVITY_VEHICLE);
+		final int unknown = DecisionTree.leaf(ActivityRecognizer.ACTIVITY_UNKNOWN);
+		return new DecisionTree(
+				new int[] { steps, accelVar, accelHz, accelHz, accelVar, accelVar, gyroVar },
+				new float[] { 40, 0.05f, 1.2f, 3.0f, 0.5f, 4, 0.1f },
+				new int[] { 1, still, 5, 4, 5, 6, vehicle },
+				new int[] { walking, 2, 3, 5, walking, unknown, unknown });
+	}
+
+	/**
+	 * Loads a classifier from a model file.
+	 *
+	 * @param file model file, in the format described above.
+	 * @return A new classifier.
+	 * @throws IOException if the file cannot be read or is malformed.
+	 */
+	public static ActivityClassifier load(File file) throws IOException {
+		List<String[]> lines = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int comment = line.indexOf('#');
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (line.length() > 0) {
+					lines.add(line.split("\\s+"));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (lines.isEmpty()) {
+			throw new IOException(file + ": empty model");
+		}
+		String kind = lines.remove(0)[0];
+		try {
+			if ("tree".equals(kind)) {
+				return DecisionTree.parse(lines);
+			} else if ("linear".equals(kind)) {
+				return LinearModel.parse(lines);
+			}
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException.
+			throw new IOException(file + ": " + e.getMessage());
+		}
+		throw new IOException(file + ": unknown model " + kind);
+	}
+
+	private static int parseActivity(String name) {
+		int activity = ActivityRecognizer.getActivity(name);
+		if (activity < 0) {
+			throw new IllegalArgumentException("unknown activity " + name);
+		}
+		return activity;
+	}
+
+	private static int parseFeature(String index) {
+		int feature = Integer.parseInt(index);
+		if (feature < 0 || feature >= ActivityRecognizer.FEATURE_COUNT) {
+			throw new IllegalArgumentException("no feature " + index);
+		}
+		return feature;
+	}
+
+	/**
+	 * Binary decision tree in parallel arrays. A child is a node index, or
+	 * a leaf encoded by {@link #leaf(int)}.
+	 */
+	static class DecisionTree implements ActivityClassifier {
+		private final int[] mFeature;
+		private final float[] mThreshold;
+		/** Child taken when the feature is below the threshold. */
+		private final int[] mBelow;
+		/** Child taken otherwise, NaN included. */
+		private final int[] mAbove;
+
+		DecisionTree(int[] feature, float[] threshold, int[] below, int[] above) {
+			mFeature = feature;
+			mThreshold = threshold;
+			mBelow = below;
+			mAbove = above;
+			for (int i = 0; i < feature.length; i++) {
+				// Children must point forward, so evaluation always ends.
+				if (below[i] >= 0 && below[i] <= i || above[i] >= 0 && above[i] <= i
+						|| below[i] >= feature.length || above[i] >= feature.length) {
+					throw new IllegalArgumentException("bad child of node " + i);
+				}
+			}
+		}
+
+		static int leaf(int activity) {
+			return -1 - activity;
+		}
+
+		@Override
+		public int classify(float[] features) {
+			int node = 0;
+			while (node >= 0) {
+				node = features[mFeature[node]] < mThreshold[node] ? mBelow[node] : mAbove[node];
+			}
+			return -1 - node;
+		}
+
+		static DecisionTree parse(List<String[]> lines) {
+			int n = lines.size();
+			if (n == 0) {
+				throw new IllegalArgumentException("tree without nodes");
+			}
+			int[] feature = new int[n];
+			float[] threshold = new float[n];
+			int[] below = new int[n];
+			int[] above = new int[n];
+			for (int i = 0; i < n; i++) {
+				String[] node = lines.get(i);
+				if (node.length != 4) {
+					throw new IllegalArgumentException("node " + i + ": expected 4 fields");
+				}
+				feature[i] = parseFeature(node[0]);
+				threshold[i] = Float.parseFloat(node[1]);
+				below[i] = parseChild(node[2]);
+				above[i] = parseChild(node[3]);
+			}
+			return new DecisionTree(feature, threshold, below, above);
+		}
+
+		private static int parseChild(String child) {
+			return Character.isDigit(child.charAt(0)) ? Integer.parseInt(child)
+					: leaf(parseActivity(child));
+		}
+	}
+
+	/**
+	 * One linear score per activity; the highest wins.
+	 */
+	static class LinearModel implements ActivityClassifier {
+		private final int[] mActivity;
+		private final float[] mBias;
+		/** Weights, FEATURE_COUNT per activity. */
+		private final float[] mWeights;
+
+		LinearModel(int[] activity, float[] bias, float[] weights) {
+			mActivity = activity;
+			mBias = bias;
+			mWeights = weights;
+		}
+
+		@Override
+		public int classify(float[] features) {
+			final int n = ActivityRecognizer.FEATURE_COUNT;
+			int best = ActivityRecognizer.ACTIVITY_UNKNOWN;
+			float bestScore = Float.NEGATIVE_INFINITY;
+			for (int a = 0; a < mActivity.length; a++) {
+				float score = mBias[a];
+				for (int f = 0; f < n; f++) {
+					score += mWeights[a * n + f] * features[f];
+				}
+				if (score > bestScore) {
+					bestScore = score;
+					best = mActivity[a];
+				}
+			}
+			return best;
+		}
+
+		static LinearModel parse(List<String[]> lines) {
+			final int n = ActivityRecognizer.FEATURE_COUNT;
+			int count = lines.size();
+			if (count == 0) {
+				throw new IllegalArgumentException("linear model without activities");
+			}
+			int[] activity = new int[count];
+			float[] bias = new float[count];
+			float[] weights = new float[count * n];
+			for (int a = 0; a < count; a++) {
+				String[] line = lines.get(a);
+				if (line.length != 2 + n) {
+					throw new IllegalArgumentException(line[0] + ": expected " + n + " weights");
+				}
+				activity[a] = parseActivity(line[0]);
+				bias[a] = Float.parseFloat(line[1]);
+				for (int f = 0; f < n; f++) {
+					weights[a * n + f] = Float.parseFloat(line[2 + f]);
+				}
+			}
+			return new LinearModel(activity, bias, weights);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+
+/**
+ * Classifies the motion state from the accelerometer, gyroscope and step
+ * detector, and publishes it as a virtual sensor.
+ * <p/>
+ * Runs on every raw sample. Acceleration and rotation magnitudes, which do
+ * not depend on how the phone is held, feed {@link WindowFeatures}; every
+ * time an acceleration window is ready its features, those of the latest
+ * rotation window and the step cadence are handed to the classifier. The
+ * published sample is the activity, then the acceleration variance and
+ * dominant frequency, the cadence and the rotation variance. The time spent
+ * per window is recorded as the stage time of the virtual sensor.
+ */
+class ActivityRecognizer implements SensorHelper.SampleListener {
+
+	public static final int ACTIVITY_STILL = 0;
+	public static final int ACTIVITY_WALKING = 1;
+	public static final int ACTIVITY_VEHICLE = 2;
+	public static final int ACTIVITY_UNKNOWN = 3;
+	private static final String[] ACTIVITY_NAMES = { "still", "walking", "vehicle", "unknown" };
+
+	/** First of the WindowFeatures.COUNT acceleration magnitude features. */
+	public static final int F_ACCEL = 0;
+	/** First of the WindowFeatures.COUNT rotation rate magnitude features, 0 without a gyroscope. */
+	public static final int F_GYRO = F_ACCEL + WindowFeatures.COUNT;
+	/** Steps per minute over the last window, 0 without a step detector. */
+	public static final int F_STEPS_PER_MIN = F_GYRO + WindowFeatures.COUNT;
+	/** Number of features handed to the classifier. */
+	public static final int FEATURE_COUNT = F_STEPS_PER_MIN + 1;
+
+	/** Resampled rate: covers walking and vehicle vibration below 16 Hz. */
+	static final int RATE_HZ = 32;
+	/** Window of 4 s, long enough for several strides. */
+	static final int WINDOW = 128;
+	/** A new decision every 2 s. */
+	static final int HOP = 64;
+	/** Band searched for the dominant frequency. */
+	static final float MIN_HZ = 0.5f;
+	static final float MAX_HZ = 8f;
+
+	/** Step time stamps kept; more than a window can hold at any cadence. */
+	private static final int STEP_HISTORY = 64;
+
+	private final MonitoredSensor mOut;
+	private final SensorMetrics mMetrics;
+	private ActivityClassifier mClassifier;
+
+	private final WindowFeatures mAccel = newWindow();
+	private final WindowFeatures mGyro = newWindow();
+	private final long[] mStepNs = new long[STEP_HISTORY];
+	private int mSteps;
+
+	private final float[] mFeatures = new float[FEATURE_COUNT];
+	/** Published sample. */
+	private final float[] mValues = new float[5];
+
+	/**
+	 * Constructs ActivityRecognizer instance, using the default classifier.
+	 *
+	 * @param out virtual sensor receiving the activity.
+	 * @param metrics registry, recording the per-window time when enabled.
+	 */
+	ActivityRecognizer(MonitoredSensor out, SensorMetrics metrics) {
+		mOut = out;
+		mMetrics = metrics;
+		mClassifier = ActivityModels.createDefault();
+	}
+
+	/**
+	 * Creates a window with the geometry used for recognition.
+	 *
+	 * @return A new, empty window.
+	 */
+	static WindowFeatures newWindow() {
+		return new WindowFeatures(RATE_HZ, WINDOW, HOP, MIN_HZ, MAX_HZ);
+	}
+
+	/**
+	 * Gets the name of an activity.
+	 *
+	 * @param activity one of the ACTIVITY_XXX constants.
+	 * @return Lower-case name, as used in model files.
+	 */
+	public static String getName(int activity) {
+		return activity >= 0 && activity < ACTIVITY_NAMES.length ? ACTIVITY_NAMES[activity] : "?";
+	}
+
+	/**
+	 * Looks up an activity by name.
+	 *
+	 * @param name name returned by {@link #getName(int)}.
+	 * @return One of the ACTIVITY_XXX constants, -1 if the name is unknown.
+	 */
+	public static int getActivity(String name) {
+		for (int i = 0; i < ACTIVITY_NAMES.length; i++) {
+			if (ACTIVITY_NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Replaces the classifier. Takes effect at the next window.
+	 *
+	 * @param classifier non-null classifier.
+	 */
+	void setClassifier(ActivityClassifier classifier) {
+		mClassifier = classifier;
+	}
+
+	@Override
+	public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+		switch (sensor.getType()) {
+		case 1: // Sensor.TYPE_ACCELEROMETER
+			if (count >= 3 && mAccel.add(timestampNs, magnitude(values))) {
+				onWindow(timestampNs);
+			}
+			break;
+		case 4: // Sensor.TYPE_GYROSCOPE
+			if (count >= 3) {
+				mGyro.add(timestampNs, magnitude(values));
+			}
+			break;
+		case 18: // Sensor.TYPE_STEP_DETECTOR
+			mStepNs[mSteps++ % STEP_HISTORY] = timestampNs;
+			break;
+		}
+	}
+
+	private static float magnitude(float[] values) {
+		return (float) Math.sqrt(values[0] * values[0] + values[1] * values[1]
+				+ values[2] * values[2]);
+	}
+
+	/**
+	 * Classifies the window ending at the given time and publishes the result.
+	 */
+	void onWindow(long timestampNs) {
+		final boolean metrics = mMetrics.isEnabled();
+		final long startNs = metrics ? LatencyTrace.now() : 0;
+		final float[] f = mFeatures;
+		final long windowNs = mAccel.getWindowNs();
+
+		mAccel.compute(f, F_ACCEL);
+		if (mGyro.isFull() && timestampNs - mGyro.getLastTimestampNs() < windowNs) {
+			mGyro.compute(f, F_GYRO);
+		} else {
+			for (int i = 0; i < WindowFeatures.COUNT; i++) {
+				f[F_GYRO + i] = 0;
+			}
+		}
+		int steps = 0;
+		for (int i = 0, n = Math.min(mSteps, STEP_HISTORY); i < n; i++) {
+			if (timestampNs - mStepNs[i] < windowNs) {
+				steps++;
+			}
+		}
+		f[F_STEPS_PER_MIN] = steps * 60e9f / windowNs;
+
+		final float[] out = mValues;
+		out[0] = mClassifier.classify(f);
+		out[1] = f[F_ACCEL + WindowFeatures.VARIANCE];
+		out[2] = f[F_ACCEL + WindowFeatures.DOMINANT_HZ];
+		out[3] = f[F_STEPS_PER_MIN];
+		out[4] = f[F_GYRO + WindowFeatures.VARIANCE];
+		if (metrics) mOut.getStats().onStage(LatencyTrace.now() - startNs);
+		mOut.publish(timestampNs, out, out.length);
+	}
+}
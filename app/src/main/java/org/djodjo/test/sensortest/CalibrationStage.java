@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+
+/**
+ * Streaming calibration of the uncalibrated gyroscope and magnetometer.
+ * Runs on every raw sample and publishes the corrected values, followed by
+ * the current bias or offset, as virtual sensors.
+ */
+class CalibrationStage implements SensorHelper.SampleListener {
+
+	private final MonitoredSensor mGyroOut;
+	private final MonitoredSensor mMagOut;
+	private final GyroBiasEstimator mGyroBias = new GyroBiasEstimator();
+	private final MagCalibrator mMag = new MagCalibrator();
+	/** Published sample: 3 corrected values, then 3 bias or offset values. */
+	private final float[] mOut = new float[6];
+
+	/**
+	 * Constructs CalibrationStage instance.
+	 *
+	 * @param gyroOut virtual sensor receiving the calibrated gyroscope, or null.
+	 * @param magOut virtual sensor receiving the calibrated magnetic field, or null.
+	 */
+	CalibrationStage(MonitoredSensor gyroOut, MonitoredSensor magOut) {
+		mGyroOut = gyroOut;
+		mMagOut = magOut;
+	}
+
+	@Override
+	public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+		if (count < 3) {
+			return;
+		}
+		final float[] out = mOut;
+		switch (sensor.getType()) {
+		case 16: // Sensor.TYPE_GYROSCOPE_UNCALIBRATED
+			if (mGyroOut == null) {
+				return;
+			}
+			mGyroBias.add(values[0], values[1], values[2]);
+			if (!mGyroBias.hasEstimate()) {
+				return;
+			}
+			float[] bias = mGyroBias.getBias();
+			for (int i = 0; i < 3; i++) {
+				out[i] = values[i] - bias[i];
+				out[3 + i] = bias[i];
+			}
+			mGyroOut.publish(timestampNs, out, 6);
+			break;
+		case 14: // Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED
+			if (mMagOut == null) {
+				return;
+			}
+			mMag.add(values[0], values[1], values[2]);
+			if (!mMag.isValid()) {
+				return;
+			}
+			mMag.apply(values[0], values[1], values[2], out);
+			float[] offset = mMag.getOffset();
+			out[3] = offset[0];
+			out[4] = offset[1];
+			out[5] = offset[2];
+			mMagOut.publish(timestampNs, out, 6);
+			break;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Change-suppression filter for one sensor. A sample is propagated only if
+ * one of its components moved far enough from the last propagated sample, or
+ * if the heartbeat period elapsed, so a silent sensor can still be told apart
+ * from a stalled one.
+ */
+public class Deadband {
+
+	/** Threshold is an absolute difference, in multiples of the sensor resolution. */
+	public static final int MODE_ABSOLUTE = 0;
+	/** Threshold is a fraction of the last propagated value. */
+	public static final int MODE_RELATIVE = 1;
+
+	/** Maximum number of components compared. */
+	private static final int MAX_VALUES = 6;
+
+	private final float mResolution;
+	/** Lets every sample through, whatever setEnabled says. */
+	private final boolean mPassAll;
+	private boolean mEnabled;
+	private int mMode = MODE_ABSOLUTE;
+	private float mThreshold = 1f;
+	private long mHeartbeatMs = 1000;
+
+	private final float[] mLast = new float[MAX_VALUES];
+	private int mLastCount = 0;
+	private long mLastPassMs = 0;
+
+	/**
+	 * Constructs Deadband instance.
+	 *
+	 * @param resolution sensor resolution, as reported by Sensor.getResolution().
+	 */
+	Deadband(float resolution) {
+		this(resolution, false);
+	}
+
+	private Deadband(float resolution, boolean passAll) {
+		mResolution = resolution > 0 ? resolution : 0;
+		mPassAll = passAll;
+		mEnabled = !passAll;
+	}
+
+	/**
+	 * Creates a filter that never suppresses, for sensors whose samples are
+	 * events, such as steps: a repeated value is another event, not an
+	 * unchanged reading.
+	 *
+	 * @return A filter that stays disabled.
+	 */
+	static Deadband forEvents() {
+		return new Deadband(0, true);
+	}
+
+	/**
+	 * Configures the filter. The next sample always passes.
+	 *
+	 * @param mode one of the MODE_XXX constants.
+	 * @param threshold for MODE_ABSOLUTE a multiple of the sensor resolution,
+	 *            for MODE_RELATIVE a fraction such as 0.01 for 1%.
+	 * @param heartbeatMs period after which a sample passes regardless of change,
+	 *            0 to disable the heartbeat.
+	 */
+	public void configure(int mode, float threshold, long heartbeatMs) {
+		mMode = mode;
+		mThreshold = threshold < 0 ? 0 : threshold;
+		mHeartbeatMs = heartbeatMs;
+		mLastCount = 0;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Enables or disables the filter. The next sample always passes. Filters
+	 * created with {@link #forEvents()} stay disabled.
+	 *
+	 * @param enabled false to propagate every sample.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled && !mPassAll;
+		mLastCount = 0;
+	}
+
+	/**
+	 * Decides whether a sample should be propagated, and remembers it if so.
+	 *
+	 * @param values sample values.
+	 * @param count number of valid values.
+	 * @param nowMs current time in milliseconds.
+	 * @return true if the sample should be propagated.
+	 */
+	public boolean accept(float[] values, int count, long nowMs) {
+		if (count > MAX_VALUES) {
+			count = MAX_VALUES;
+		}
+		if (mEnabled && count == mLastCount
+				&& (mHeartbeatMs <= 0 || nowMs - mLastPassMs < mHeartbeatMs)
+				&& !hasChanged(values, count)) {
+			return false;
+		}
+		System.arraycopy(values, 0, mLast, 0, count);
+		mLastCount = count;
+		mLastPassMs = nowMs;
+		return true;
+	}
+
+	private boolean hasChanged(float[] values, int count) {
+		final float[] last = mLast;
+		for (int i = 0; i < count; i++) {
+			float delta = Math.abs(values[i] - last[i]);
+			float threshold = mMode == MODE_RELATIVE ?
+							Math.max(Math.abs(last[i]) * mThreshold, mResolution) :
+							mResolution * mThreshold;
+			// With a zero threshold only identical values are suppressed.
+			if (delta != 0 && delta >= threshold) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
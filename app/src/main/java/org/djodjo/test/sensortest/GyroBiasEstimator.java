@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Estimates gyroscope bias from stationary intervals.
+ * <p/>
+ * Samples are accumulated in fixed-size blocks. A block whose per-axis
+ * variance and mean rate are both small is taken as stationary, and its mean
+ * is blended into the bias estimate. Memory use is constant and each sample
+ * costs a handful of additions.
+ */
+public class GyroBiasEstimator {
+
+	/** Samples per block. */
+	private final int mBlockSize;
+	/** Per-axis variance below which a block is stationary, in (rad/s)^2. */
+	private final double mMaxVariance;
+	/** Mean rate above which a block is taken as real rotation, in rad/s. */
+	private final double mMaxMean;
+	/** Weight of a new stationary block in the bias estimate. */
+	private final double mAlpha;
+
+	private final double[] mSum = new double[3];
+	private final double[] mSumSq = new double[3];
+	private int mCount;
+
+	private final float[] mBias = new float[3];
+	private int mStationaryBlocks;
+
+	/**
+	 * Constructs GyroBiasEstimator instance with defaults suited to phone gyros:
+	 * 50-sample blocks, 0.01 rad/s noise and 0.1 rad/s maximum bias.
+	 */
+	public GyroBiasEstimator() {
+		this(50, 0.01 * 0.01, 0.1, 0.2);
+	}
+
+	/**
+	 * Constructs GyroBiasEstimator instance.
+	 *
+	 * @param blockSize samples per block.
+	 * @param maxVariance per-axis variance below which a block is stationary.
+	 * @param maxMean absolute mean rate above which a block is not stationary.
+	 * @param alpha weight of a new stationary block, in (0, 1].
+	 */
+	public GyroBiasEstimator(int blockSize, double maxVariance, double maxMean, double alpha) {
+		mBlockSize = blockSize;
+		mMaxVariance = maxVariance;
+		mMaxMean = maxMean;
+		mAlpha = alpha;
+	}
+
+	/**
+	 * Feeds one raw gyroscope sample.
+	 *
+	 * @param x rate around x, in rad/s.
+	 * @param y rate around y, in rad/s.
+	 * @param z rate around z, in rad/s.
+	 * @return true if the bias estimate was updated by this sample.
+	 */
+	public boolean add(float x, float y, float z) {
+		accumulate(0, x);
+		accumulate(1, y);
+		accumulate(2, z);
+		if (++mCount < mBlockSize) {
+			return false;
+		}
+		boolean stationary = true;
+		for (int i = 0; i < 3 && stationary; i++) {
+			double mean = mSum[i] / mCount;
+			double variance = mSumSq[i] / mCount - mean * mean;
+			stationary = variance <= mMaxVariance && Math.abs(mean) <= mMaxMean;
+		}
+		if (stationary) {
+			// The first block sets the estimate, later ones refine it.
+			double alpha = mStationaryBlocks == 0 ? 1 : mAlpha;
+			for (int i = 0; i < 3; i++) {
+				mBias[i] += (float) (alpha * (mSum[i] / mCount - mBias[i]));
+			}
+			mStationaryBlocks++;
+		}
+		for (int i = 0; i < 3; i++) {
+			mSum[i] = 0;
+			mSumSq[i] = 0;
+		}
+		mCount = 0;
+		return stationary;
+	}
+
+	private void accumulate(int axis, float value) {
+		mSum[axis] += value;
+		mSumSq[axis] += (double) value * value;
+	}
+
+	/**
+	 * Checks whether at least one stationary block was seen.
+	 *
+	 * @return true if {@link #getBias()} holds an estimate.
+	 */
+	public boolean hasEstimate() {
+		return mStationaryBlocks > 0;
+	}
+
+	/**
+	 * Gets the current bias estimate. Valid until the next sample.
+	 *
+	 * @return Per-axis bias in rad/s.
+	 */
+	public float[] getBias() {
+		return mBias;
+	}
+}
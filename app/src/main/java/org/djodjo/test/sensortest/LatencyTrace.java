@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+/**
+ * Follows the displayed sample of one sensor from hardware time stamp to
+ * rendered frame, and aggregates each hop into a latency histogram.
+ * <p/>
+ * Only the sample that actually reaches the UI is traced; all stamps are taken
+ * on the main looper.
+ */
+public class LatencyTrace {
+
+	/** SensorEvent.timestamp to onSensorChanged entry. */
+	public static final int STAGE_SENSOR = 0;
+	/** onSensorChanged entry to notifyUiHandlers. */
+	public static final int STAGE_LISTENER = 1;
+	/** notifyUiHandlers to handleMessage, i.e. the Handler hop. */
+	public static final int STAGE_HANDLER = 2;
+	/** handleMessage to setText done, i.e. formatting. */
+	public static final int STAGE_FORMAT = 3;
+	/** setText done to the next pre-draw pass, i.e. layout. */
+	public static final int STAGE_DRAW = 4;
+	/** Oldest valid stamp to the next pre-draw pass. */
+	public static final int STAGE_TOTAL = 5;
+
+	private static final String[] STAGE_NAMES = {
+		"sensor", "listener", "handler", "format", "draw", "total"
+	};
+
+	/** Hardware stamps further away than this are from a different clock. */
+	private static final long MAX_SENSOR_DELAY_NS = 10000000000L; // 10s
+
+	private final SensorMetrics.Histogram[] mStages =
+			new SensorMetrics.Histogram[STAGE_NAMES.length];
+
+	/** Stamps of the sample currently on its way to the screen, 0 if none. */
+	private long mEventNs;
+	private long mEntryNs;
+	private long mDispatchNs;
+	private long mHandleNs;
+	private long mSetTextNs;
+
+	LatencyTrace() {
+		for (int i = 0; i < mStages.length; i++) {
+			mStages[i] = new SensorMetrics.Histogram();
+		}
+	}
+
+	/**
+	 * Gets the current time on the clock SensorEvent.timestamp is based on,
+	 * as far as the platform lets us know it.
+	 *
+	 * @return Current time in nanoseconds.
+	 */
+	@SuppressLint("NewApi")
+	public static long now() {
+		if (Build.VERSION.SDK_INT >= 17) {
+			return SystemClock.elapsedRealtimeNanos();
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Opens a systrace section, if the platform supports it.
+	 *
+	 * @param name section name.
+	 */
+	@SuppressLint("NewApi")
+	public static void beginSection(String name) {
+		if (Build.VERSION.SDK_INT >= 18) {
+			Trace.beginSection(name);
+		}
+	}
+
+	/**
+	 * Closes the section opened by {@link #beginSection(String)}.
+	 */
+	@SuppressLint("NewApi")
+	public static void endSection() {
+		if (Build.VERSION.SDK_INT >= 18) {
+			Trace.endSection();
+		}
+	}
+
+	/**
+	 * Stamps a sample handed to the UI handlers.
+	 *
+	 * @param eventNs SensorEvent.timestamp of the sample.
+	 * @param entryNs time onSensorChanged was entered.
+	 * @param dispatchNs time the sample was posted to the UI.
+	 */
+	public void onDispatch(long eventNs, long entryNs, long dispatchNs) {
+		mEventNs = eventNs;
+		mEntryNs = entryNs;
+		mDispatchNs = dispatchNs;
+		mHandleNs = 0;
+		mSetTextNs = 0;
+	}
+
+	/**
+	 * Stamps the UI handler picking the sample up.
+	 *
+	 * @param handleNs time handleMessage started.
+	 */
+	public void onHandle(long handleNs) {
+		if (mDispatchNs != 0 && mHandleNs == 0) {
+			mHandleNs = handleNs;
+		}
+	}
+
+	/**
+	 * Stamps the formatted value being set on its view.
+	 *
+	 * @param setTextNs time setText returned.
+	 */
+	public void onSetText(long setTextNs) {
+		if (mHandleNs != 0 && mSetTextNs == 0) {
+			mSetTextNs = setTextNs;
+		}
+	}
+
+	/**
+	 * Checks whether the sample waits for a frame to be drawn.
+	 *
+	 * @return true if {@link #onDraw(long)} would close a trace.
+	 */
+	public boolean isPendingDraw() {
+		return mSetTextNs != 0;
+	}
+
+	/**
+	 * Stamps the frame that renders the sample and records all stages.
+	 *
+	 * @param drawNs time of the pre-draw pass.
+	 */
+	public void onDraw(long drawNs) {
+		if (mSetTextNs == 0) {
+			return;
+		}
+		long sensorNs = mEntryNs - mEventNs;
+		boolean sensorValid = mEventNs > 0 && sensorNs >= 0 && sensorNs < MAX_SENSOR_DELAY_NS;
+		if (sensorValid) {
+			mStages[STAGE_SENSOR].record(sensorNs);
+		}
+		mStages[STAGE_LISTENER].record(mDispatchNs - mEntryNs);
+		mStages[STAGE_HANDLER].record(mHandleNs - mDispatchNs);
+		mStages[STAGE_FORMAT].record(mSetTextNs - mHandleNs);
+		mStages[STAGE_DRAW].record(drawNs - mSetTextNs);
+		mStages[STAGE_TOTAL].record(drawNs - (sensorValid ? mEventNs : mEntryNs));
+		mEventNs = mEntryNs = mDispatchNs = mHandleNs = mSetTextNs = 0;
+	}
+
+	/**
+	 * Gets the histogram of one stage.
+	 *
+	 * @param stage one of the STAGE_XXX constants.
+	 * @return Histogram of that stage.
+	 */
+	public SensorMetrics.Histogram getStage(int stage) {
+		return mStages[stage];
+	}
+
+	void reset() {
+		for (SensorMetrics.Histogram stage : mStages) {
+			stage.reset();
+		}
+		mEventNs = mEntryNs = mDispatchNs = mHandleNs = mSetTextNs = 0;
+	}
+
+	/**
+	 * Appends the mean of every stage, and the p99 of the total, in microseconds.
+	 */
+	void format(StringBuilder sb) {
+		for (int i = 0; i < STAGE_TOTAL; i++) {
+			sb.append(STAGE_NAMES[i]).append('=')
+			.append(mStages[i].getMeanNs() / 1000).append(' ');
+		}
+		sb.append("total=").append(mStages[STAGE_TOTAL].getMeanNs() / 1000)
+		.append(" p99<").append(mStages[STAGE_TOTAL].getPercentileNs(0.99) / 1000);
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Incremental hard-iron and soft-iron calibration of a magnetometer.
+ * <p/>
+ * Fits an axis-aligned ellipsoid
+ * {@code a x^2 + b y^2 + c z^2 + d x + e y + f z = 1} by least squares. Only
+ * the 6x6 normal matrix and its right hand side are kept, with a forgetting
+ * factor so the fit follows changes in the magnetic environment. The fit is
+ * solved every few accepted samples; in between each sample costs a fixed
+ * number of multiply-adds. Samples too close to the previous accepted one are
+ * ignored, so that holding the device still does not skew the fit.
+ * <p/>
+ * The ellipsoid center is the hard-iron offset, and the ratios of its radii to
+ * their mean give a diagonal soft-iron correction.
+ */
+public class MagCalibrator {
+
+	private static final int N = 6;
+
+	/** Minimum distance from the previous accepted sample, in uT. */
+	private final float mMinStep;
+	/** Accepted samples between two solves. */
+	private final int mSolveEvery;
+	/** Forgetting factor applied for every accepted sample. */
+	private final double mLambda;
+
+	private final double[][] mAtA = new double[N][N];
+	private final double[] mAtb = new double[N];
+	/** Scratch space for the solver, to avoid allocation. */
+	private final double[][] mWork = new double[N][N + 1];
+	private final double[] mRow = new double[N];
+	private final double[] mParams = new double[N];
+
+	private final float[] mLast = new float[3];
+	private int mAccepted;
+
+	private boolean mValid;
+	private final float[] mOffset = new float[3];
+	private final float[] mScale = { 1f, 1f, 1f };
+	private float mFieldStrength;
+
+	/**
+	 * Constructs MagCalibrator instance with defaults: 2 uT minimum step,
+	 * solve every 25 accepted samples and a memory of a few hundred samples.
+	 */
+	public MagCalibrator() {
+		this(2f, 25, 0.995);
+	}
+
+	/**
+	 * Constructs MagCalibrator instance.
+	 *
+	 * @param minStep minimum distance between accepted samples, in uT.
+	 * @param solveEvery accepted samples between two solves.
+	 * @param lambda forgetting factor in (0, 1], 1 to never forget.
+	 */
+	public MagCalibrator(float minStep, int solveEvery, double lambda) {
+		mMinStep = minStep;
+		mSolveEvery = solveEvery;
+		mLambda = lambda;
+	}
+
+	/**
+	 * Feeds one raw magnetometer sample.
+	 *
+	 * @param x field along x, in uT.
+	 * @param y field along y, in uT.
+	 * @param z field along z, in uT.
+	 * @return true if the calibration was updated by this sample.
+	 */
+	public boolean add(float x, float y, float z) {
+		float dx = x - mLast[0], dy = y - mLast[1], dz = z - mLast[2];
+		if (mAccepted > 0 && dx * dx + dy * dy + dz * dz < mMinStep * mMinStep) {
+			return false;
+		}
+		mLast[0] = x;
+		mLast[1] = y;
+		mLast[2] = z;
+
+		final double[] row = mRow;
+		row[0] = (double) x * x;
+		row[1] = (double) y * y;
+		row[2] = (double) z * z;
+		row[3] = x;
+		row[4] = y;
+		row[5] = z;
+		for (int i = 0; i < N; i++) {
+			final double[] ata = mAtA[i];
+			for (int j = i; j < N; j++) {
+				ata[j] = mLambda * ata[j] + row[i] * row[j];
+			}
+			mAtb[i] = mLambda * mAtb[i] + row[i];
+		}
+		if (++mAccepted % mSolveEvery != 0 || mAccepted < 2 * mSolveEvery) {
+			return false;
+		}
+		return solve();
+	}
+
+	/**
+	 * Solves the normal equations and updates the calibration if the fit is
+	 * an ellipsoid.
+	 */
+	private boolean solve() {
+		final double[][] w = mWork;
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < N; j++) {
+				w[i][j] = j >= i ? mAtA[i][j] : mAtA[j][i];
+			}
+			w[i][N] = mAtb[i];
+		}
+		// Gaussian elimination with partial pivoting.
+		for (int col = 0; col < N; col++) {
+			int pivot = col;
+			for (int r = col + 1; r < N; r++) {
+				if (Math.abs(w[r][col]) > Math.abs(w[pivot][col])) {
+					pivot = r;
+				}
+			}
+			if (Math.abs(w[pivot][col]) < 1e-12) {
+				return false;
+			}
+			double[] tmp = w[col];
+			w[col] = w[pivot];
+			w[pivot] = tmp;
+			for (int r = col + 1; r < N; r++) {
+				double f = w[r][col] / w[col][col];
+				for (int c = col; c <= N; c++) {
+					w[r][c] -= f * w[col][c];
+				}
+			}
+		}
+		for (int r = N - 1; r >= 0; r--) {
+			double s = w[r][N];
+			for (int c = r + 1; c < N; c++) {
+				s -= w[r][c] * mParams[c];
+			}
+			mParams[r] = s / w[r][r];
+		}
+
+		final double[] p = mParams;
+		if (p[0] <= 0 || p[1] <= 0 || p[2] <= 0) {
+			return false;
+		}
+		double cx = -p[3] / (2 * p[0]);
+		double cy = -p[4] / (2 * p[1]);
+		double cz = -p[5] / (2 * p[2]);
+		double g = 1 + p[0] * cx * cx + p[1] * cy * cy + p[2] * cz * cz;
+		if (g <= 0) {
+			return false;
+		}
+		double rx = Math.sqrt(g / p[0]);
+		double ry = Math.sqrt(g / p[1]);
+		double rz = Math.sqrt(g / p[2]);
+		double r = (rx + ry + rz) / 3;
+		mOffset[0] = (float) cx;
+		mOffset[1] = (float) cy;
+		mOffset[2] = (float) cz;
+		mScale[0] = (float) (r / rx);
+		mScale[1] = (float) (r / ry);
+		mScale[2] = (float) (r / rz);
+		mFieldStrength = (float) r;
+		mValid = true;
+		return true;
+	}
+
+	/**
+	 * Checks whether a calibration is available.
+	 *
+	 * @return true once the fit produced an ellipsoid.
+	 */
+	public boolean isValid() {
+		return mValid;
+	}
+
+	/**
+	 * Gets the hard-iron offset. Valid until the next sample.
+	 *
+	 * @return Per-axis offset in uT.
+	 */
+	public float[] getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * Gets the diagonal soft-iron scale. Valid until the next sample.
+	 *
+	 * @return Per-axis scale factors.
+	 */
+	public float[] getScale() {
+		return mScale;
+	}
+
+	/**
+	 * Gets the field strength of the fitted sphere.
+	 *
+	 * @return Mean ellipsoid radius in uT.
+	 */
+	public float getFieldStrength() {
+		return mFieldStrength;
+	}
+
+	/**
+	 * Applies the calibration to a raw sample.
+	 *
+	 * @param x raw field along x.
+	 * @param y raw field along y.
+	 * @param z raw field along z.
+	 * @param out receives the calibrated field; at least 3 elements.
+	 */
+	public void apply(float x, float y, float z, float[] out) {
+		out[0] = (x - mOffset[0]) * mScale[0];
+		out[1] = (y - mOffset[1]) * mScale[1];
+		out[2] = (z - mOffset[2]) * mScale[2];
+	}
+}
@@ -16,28 +16,43 @@
 
 package org.djodjo.test.sensortest;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
 
+import com.google.ads.AdRequest;
 import com.google.ads.AdView;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.graphics.Color;
 import android.graphics.PorterDuff.Mode;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Message;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnFocusChangeListener;
 import android.view.View.OnKeyListener;
+import android.view.ViewStub;
+import android.view.ViewTreeObserver;
+import android.widget.Toast;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TableLayout;
 import android.widget.TableRow;
@@ -50,17 +65,65 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
     private static boolean DEBUG = true;
 
     private static final int MSG_UPDATE_ACTUAL_HZ = 0x31415;
+    private static final int MSG_ADD_ROWS = 0x31416;
+    /** Sensor rows added per message, so frames are drawn while the table fills. */
+    private static final int ROWS_PER_PASS = 3;
+    /** Simulated capture length of the store benchmark. */
+    private static final int STORE_BENCHMARK_SECONDS = 60;
+    /** Windows classified per synthetic activity by the activity benchmark. */
+    private static final int ACTIVITY_BENCHMARK_WINDOWS = 500;
+    /** Activity model in the files directory, replacing the built-in classifier. */
+    private static final String ACTIVITY_MODEL_FILE = "activity-model.txt";
+    /** Longest batching latency a power plan may use. */
+    private static final int POWER_PLAN_MAX_LATENCY_MS = 30000;
+    /** Slowest rate a power plan may use. */
+    private static final float POWER_PLAN_MIN_HZ = 1;
+    /** Alert rules in the files directory, replacing the built-in ones. */
+    private static final String RULES_FILE = "rules.txt";
+    /** Built-in alert rules, as "name", "rule" pairs. */
+    private static final String[] DEFAULT_RULES = {
+        "high-g", "acceleration.mag > 2g for 200ms",
+        "pressure-drop", "max(pressure, 10min) - pressure > 3",
+        "pocket", "proximity < 1 and light < 5",
+    };
 
     private TableLayout mTableLayout;
     private TextView mTextTargetHz;
     private TextView mTextActualHz;
+    private TextView mTextAdaptiveMinHz;
+    private TextView mTextDiagnostics;
     private SensorHelper mSensorHelper;
 
     private final Map<MonitoredSensor, DisplayInfo> mDisplayedSensors =
         new HashMap<SensorHelper.MonitoredSensor, MainActivity.DisplayInfo>();
     private final android.os.Handler mUiHandler = new android.os.Handler(this);
     private int mTargetSampleRate;
+    private int mAdaptiveMinRate;
+    private boolean mShowDiagnostics;
+    private boolean mAdaptiveRate;
+    // Menu settings, kept to be applied once the sensors are ready.
+    private boolean mDeadband = true;
+    private boolean mSystrace;
+    private boolean mStoreEnabled;
+    private boolean mRecording;
+    private boolean mRulesEnabled;
+    /** Counts dropped frames for the adaptive rate controller, null before API 16. */
+    private FrameDropCounter mFrameDrops;
     private long mLastActualUpdateMs;
+    /** True when a traced sensor value waits for the next frame. */
+    private boolean mTracePendingDraw;
+    /** Local time-series store, null unless recording is enabled. */
+    private SensorStore mStore;
+    /** Session being recorded for offline analysis, or null. */
+    private SessionRecorder mRecorder;
+    /** Alert rules evaluated on the live samples, or null. */
+    private RuleEngine mRuleEngine;
+    /** Phases of this start, for the startup benchmark. */
+    private StartupBenchmark mStartup;
+    /** Number of sensors with a row, while the table fills. */
+    private int mRowsAdded;
+    private boolean mResumed;
+    private boolean mDestroyed;
     
     private AdView adView;
 
@@ -68,11 +131,14 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        mStartup = new StartupBenchmark();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.sensors);
         mTableLayout = (TableLayout) findViewById(R.id.tableLayout);
         mTextTargetHz = (TextView) findViewById(R.id.textSampleRate);
         mTextActualHz = (TextView) findViewById(R.id.textActualRate);
+        mTextDiagnostics = (TextView) findViewById(R.id.textDiagnostics);
+        mTextAdaptiveMinHz = (TextView) findViewById(R.id.textAdaptiveMinRate);
 
         mTextTargetHz.setOnKeyListener(new OnKeyListener() {
             @Override
@@ -87,6 +153,45 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
                 updateSampleRate();
             }
         });
+        mTextAdaptiveMinHz.setOnKeyListener(new OnKeyListener() {
+            @Override
+            public boolean onKey(View v, int keyCode, KeyEvent event) {
+                updateAdaptiveMinRate();
+                return false;
+            }
+        });
+        mTextAdaptiveMinHz.setOnFocusChangeListener(new OnFocusChangeListener() {
+            @Override
+            public void onFocusChange(View v, boolean hasFocus) {
+                updateAdaptiveMinRate();
+            }
+        });
+        if (Build.VERSION.SDK_INT >= 16) {
+            mFrameDrops = new FrameDropCounter();
+        }
+        mTableLayout.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (mStartup.mark(StartupBenchmark.PHASE_FIRST_FRAME)) {
+                    // Work the sensors do not need waits for the first frame.
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadAd();
+                        }
+                    });
+                }
+                if (mTracePendingDraw) {
+                    mTracePendingDraw = false;
+                    long now = LatencyTrace.now();
+                    for (MonitoredSensor sensor : mDisplayedSensors.keySet()) {
+                        sensor.getStats().getTrace().onDraw(now);
+                    }
+                }
+                return true;
+            }
+        });
         createSensorUi();
     }
 
@@ -97,8 +202,13 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
         super.onResume();
         //updateError();
        
-        mSensorHelper.onEnableSensor("all");
-        mSensorHelper.startSensors();
+        mResumed = true;
+        if (mSensorHelper != null) {
+            startSensors();
+        }
+        if (mAdaptiveRate && mFrameDrops != null) {
+            mFrameDrops.start();
+        }
     }
 
     @Override
@@ -106,12 +216,28 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
         if (DEBUG) Log.d(TAG, "onPause");
         // BaseBindingActivity.onResume will unbind from (but not stop) the service.
         super.onPause();
-        mSensorHelper.stopSensors();
+        mResumed = false;
+        if (mSensorHelper != null) {
+            mSensorHelper.stopSensors();
+        }
+        if (mStore != null) {
+            mStore.flush();
+        }
+        if (mRecorder != null) {
+            mRecorder.flush();
+        }
+        if (mFrameDrops != null) {
+            mFrameDrops.stop();
+        }
     }
 
     @Override
     protected void onDestroy() {
         if (DEBUG) Log.d(TAG, "onDestroy");
+        mDestroyed = true;
+        enableStore(false);
+        recordSession(false);
+        enableRules(false);
         removeSensorUi();
         if (adView != null) {
           adView.destroy();
@@ -120,33 +246,488 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
 
     }
 
-    private void createSensorUi() {
-        final LayoutInflater inflater = getLayoutInflater();
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.activity_main, menu);
+        return true;
+    }
 
-        if (!mDisplayedSensors.isEmpty()) {
-            removeSensorUi();
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.menu_diagnostics:
+            boolean show = !item.isChecked();
+            item.setChecked(show);
+            showDiagnostics(show);
+            return true;
+        case R.id.menu_adaptive_rate:
+            mAdaptiveRate = !item.isChecked();
+            item.setChecked(mAdaptiveRate);
+            if (mFrameDrops != null) {
+                if (mAdaptiveRate) {
+                    mFrameDrops.start();
+                } else {
+                    mFrameDrops.stop();
+                }
+            }
+            if (mSensorHelper != null) {
+                mSensorHelper.setAdaptiveRate(mAdaptiveRate);
+            }
+            updateMetricsEnabled();
+            return true;
+        case R.id.menu_deadband:
+            mDeadband = !item.isChecked();
+            item.setChecked(mDeadband);
+            if (mSensorHelper != null) {
+                mSensorHelper.setDeadbandEnabled(mDeadband);
+            }
+            return true;
+        case R.id.menu_systrace:
+            mSystrace = !item.isChecked();
+            item.setChecked(mSystrace);
+            if (mSensorHelper != null) {
+                mSensorHelper.getMetrics().setSystraceEnabled(mSystrace);
+            }
+            return true;
+        case R.id.menu_dump_metrics:
+            if (mSensorHelper != null) {
+                Log.i(TAG, mSensorHelper.getMetrics().dump());
+                Log.i(TAG, "Data quality:\n" + mSensorHelper.formatQualityLog(Integer.MAX_VALUE));
+            }
+            return true;
+        case R.id.menu_store:
+            mStoreEnabled = !item.isChecked();
+            item.setChecked(mStoreEnabled);
+            enableStore(mStoreEnabled);
+            return true;
+        case R.id.menu_store_benchmark:
+            runStoreBenchmark();
+            return true;
+        case R.id.menu_record_session:
+            mRecording = !item.isChecked();
+            item.setChecked(mRecording);
+            recordSession(mRecording);
+            return true;
+        case R.id.menu_activity_benchmark:
+            runActivityBenchmark();
+            return true;
+        case R.id.menu_power_plan:
+            showPowerPlanDialog();
+            return true;
+        case R.id.menu_rules:
+            mRulesEnabled = !item.isChecked();
+            item.setChecked(mRulesEnabled);
+            enableRules(mRulesEnabled);
+            return true;
+        case R.id.menu_startup_benchmark:
+            runStartupBenchmark();
+            return true;
         }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Shows or hides the diagnostics panel.
+     */
+    private void showDiagnostics(boolean show) {
+        mShowDiagnostics = show;
+        mTextDiagnostics.setVisibility(show ? View.VISIBLE : View.GONE);
+        updateMetricsEnabled();
+    }
 
-        mSensorHelper = new SensorHelper(this);
+    /**
+     * Metrics are only collected while the diagnostics panel is visible or
+     * the adaptive rate controller needs them, so the event path stays cheap
+     * otherwise.
+     */
+    private void updateMetricsEnabled() {
         if (mSensorHelper != null) {
-            mSensorHelper.addUiHandler(mUiHandler);
-            mUiHandler.sendEmptyMessage(MSG_UPDATE_ACTUAL_HZ);
+            boolean enabled = mShowDiagnostics || mAdaptiveRate;
+            SensorMetrics metrics = mSensorHelper.getMetrics();
+            if (enabled && !metrics.isEnabled()) {
+                metrics.reset();
+            }
+            metrics.setEnabled(enabled);
+        }
+    }
+
+    private void updateDiagnostics() {
+        if (mSensorHelper != null && mShowDiagnostics) {
+            String header = "adaptive level " + mSensorHelper.getAdaptiveLevel()
+                    + ": sample " + mSensorHelper.getEffectiveUpdateTargetMs()
+                    + "ms, ui " + mSensorHelper.getUiUpdateMs() + "ms, est. "
+                    + String.format("%.1f", mSensorHelper.estimatePowerMa()) + "mA\n";
+            mTextDiagnostics.setText(header + mSensorHelper.getMetrics().takeSnapshot().format()
+                    + mSensorHelper.formatQualityLog(5));
+        }
+    }
+
+    /**
+     * Starts or stops recording the sensor samples to the local store. Before
+     * the sensors are ready, onSensorsReady starts it.
+     */
+    private void enableStore(boolean enable) {
+        if (enable && mStore == null && mSensorHelper != null) {
+            mStore = new SensorStore(this, "sensors.db");
+            mSensorHelper.addSampleListener(mStore);
+        } else if (!enable && mStore != null) {
+            if (mSensorHelper != null) {
+                mSensorHelper.removeSampleListener(mStore);
+            }
+            mStore.close();
+            mStore = null;
+        }
+    }
+
+    /**
+     * Starts or stops recording a session file for offline analysis. Files go
+     * to the external files directory when available, so they can be pulled
+     * to a workstation. Before the sensors are ready, onSensorsReady starts it.
+     */
+    private void recordSession(boolean record) {
+        if (record && mRecorder == null && mSensorHelper != null) {
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            File file = new File(dir, "session-" + System.currentTimeMillis() + ".snsr");
+            mRecorder = new SessionRecorder(file, mSensorHelper.getSensors());
+            mSensorHelper.addSampleListener(mRecorder);
+            mSensorHelper.addQualityListener(mRecorder);
+            Toast.makeText(this, file.getPath(), Toast.LENGTH_SHORT).show();
+        } else if (!record && mRecorder != null) {
+            if (mSensorHelper != null) {
+                mSensorHelper.removeSampleListener(mRecorder);
+                mSensorHelper.removeQualityListener(mRecorder);
+            }
+            mRecorder.close();
+            if (DEBUG) Log.d(TAG, "Recorded " + mRecorder.getFile()
+                    + ", dropped " + mRecorder.getDropped());
+            mRecorder = null;
+        }
+    }
+
+    /**
+     * Starts or stops evaluating the alert rules. Rules come from the rules
+     * file if there is one, else the built-in ones; rules referencing sensors
+     * this device lacks are skipped. Fired rules are logged, shown, and
+     * recorded as events while a session is being recorded. Before the sensors
+     * are ready, onSensorsReady starts them.
+     */
+    private void enableRules(boolean enable) {
+        if (enable && mRuleEngine == null && mSensorHelper != null) {
+            final RuleEngine engine = new RuleEngine(mSensorHelper.getSensors());
+            File file = new File(getFilesDir(), RULES_FILE);
+            if (file.exists()) {
+                try {
+                    engine.load(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Ignoring rest of rules: " + e.getMessage());
+                }
+            } else {
+                for (int i = 0; i < DEFAULT_RULES.length; i += 2) {
+                    try {
+                        engine.addRule(DEFAULT_RULES[i], DEFAULT_RULES[i + 1]);
+                    } catch (ParseException e) {
+                        if (DEBUG) Log.d(TAG, "Skipping rule " + DEFAULT_RULES[i] + ": "
+                                + e.getMessage());
+                    }
+                }
+            }
+            engine.addRuleListener(new RuleEngine.RuleListener() {
+                @Override
+                public void onRuleFired(RuleEngine.Rule rule, long timestampNs) {
+                    Log.i(TAG, "Rule " + rule.getName() + " fired: " + rule.getText());
+                    Toast.makeText(MainActivity.this, rule.getName(), Toast.LENGTH_SHORT).show();
+                    if (mRecorder != null) {
+                        mRecorder.addEvent(rule.getSensor(), timestampNs, rule.getId());
+                    }
+                }
+            });
+            mSensorHelper.addRawSampleListener(engine);
+            mRuleEngine = engine;
+        } else if (!enable && mRuleEngine != null) {
+            if (mSensorHelper != null) {
+                mSensorHelper.removeRawSampleListener(mRuleEngine);
+            }
+            if (DEBUG) Log.d(TAG, "Rules:\n" + mRuleEngine.formatRules());
+            mRuleEngine = null;
+        }
+    }
+
+    /**
+     * Runs the store ingest benchmark in the background, simulating every
+     * monitored sensor at its maximum rate, and reports the result.
+     */
+    private void runStoreBenchmark() {
+        if (mSensorHelper == null) {
+            return;
+        }
+        List<MonitoredSensor> sensors = mSensorHelper.getSensors();
+        final int[] types = new int[sensors.size()];
+        final int[] hz = new int[sensors.size()];
+        for (int i = 0; i < types.length; i++) {
+            MonitoredSensor sensor = sensors.get(i);
+            int minDelayUs = sensor.getMinDelayUs();
+            types[i] = sensor.getType();
+            // On-change and virtual sensors are assumed to report at 10Hz.
+            hz[i] = minDelayUs > 0 ? 1000000 / minDelayUs : 10;
+        }
+        if (types.length == 0) {
+            return;
+        }
+        final android.content.Context context = getApplicationContext();
+        Toast.makeText(this, R.string.menu_store_benchmark, Toast.LENGTH_SHORT).show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String report = StoreBenchmark.run(context, types, hz,
+                        STORE_BENCHMARK_SECONDS);
+                Log.i(TAG, report);
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, report, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "store-benchmark").start();
+    }
+
+    /**
+     * Asks for a power budget and plans the sensor rates and batching for it.
+     */
+    private void showPowerPlanDialog() {
+        if (mSensorHelper == null) {
+            return;
+        }
+        final EditText input = new EditText(this);
+        input.setHint(R.string.power_plan_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_power_plan)
+                .setMessage(String.format("Estimated draw now: %.2f mA",
+                        mSensorHelper.estimatePowerMa()))
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        applyPowerPlan(input.getText().toString().trim());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Applies a power budget typed as a current in mA, or as a battery
+     * capacity and a duration, "mAh/hours". An empty budget drops the plan.
+     */
+    private void applyPowerPlan(String budget) {
+        if (mSensorHelper == null) {
+            return;
+        }
+        String report;
+        if (budget.length() == 0) {
+            mSensorHelper.clearPowerPlan();
+            report = String.format("Power plan cleared: %.2f mA", mSensorHelper.estimatePowerMa());
+        } else {
+            float budgetMa;
+            try {
+                int slash = budget.indexOf('/');
+                if (slash < 0) {
+                    budgetMa = Float.parseFloat(budget);
+                } else {
+                    budgetMa = PowerPlanner.getBudgetMa(
+                            Float.parseFloat(budget.substring(0, slash).trim()),
+                            Float.parseFloat(budget.substring(slash + 1).trim()),
+                            PowerPlanner.DEFAULT_BASELINE_MA);
+                }
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, R.string.power_plan_hint, Toast.LENGTH_LONG).show();
+                return;
+            }
+            report = mSensorHelper.applyPowerPlan(budgetMa, POWER_PLAN_MAX_LATENCY_MS,
+                    POWER_PLAN_MIN_HZ);
+        }
+        Log.i(TAG, report);
+        Toast.makeText(this, report, Toast.LENGTH_LONG).show();
+    }
 
-            assert mDisplayedSensors.isEmpty();
-            List<MonitoredSensor> sensors = mSensorHelper.getSensors();
-            for (MonitoredSensor sensor : sensors) {
-                final TableRow row = (TableRow) inflater.inflate(R.layout.sensor_row,
-                                                                 mTableLayout,
-                                                                 false);
-                mTableLayout.addView(row);
-                mDisplayedSensors.put(sensor, new DisplayInfo(sensor, row));
+    /**
+     * Loads the activity model file, if there is one.
+     *
+     * @return The classifier of the model file, or the built-in one if there
+     *         is no usable file.
+     */
+    private ActivityClassifier loadActivityClassifier() {
+        File file = new File(getFilesDir(), ACTIVITY_MODEL_FILE);
+        if (file.exists()) {
+            try {
+                return ActivityModels.load(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Ignoring activity model: " + e.getMessage());
             }
         }
+        return ActivityModels.createDefault();
+    }
+
+    /**
+     * Runs the activity recognition benchmark in the background with the
+     * classifier in use, and reports the result.
+     */
+    private void runActivityBenchmark() {
+        final ActivityClassifier classifier = loadActivityClassifier();
+        final android.content.Context context = getApplicationContext();
+        Toast.makeText(this, R.string.menu_activity_benchmark, Toast.LENGTH_SHORT).show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String report = ActivityBenchmark.run(classifier,
+                        ACTIVITY_BENCHMARK_WINDOWS);
+                Log.i(TAG, report);
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, report, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "activity-benchmark").start();
+    }
+
+    /**
+     * Reports the phases of this start and how they compare with their
+     * budgets. StartupBenchmarkTest measures repeated cold starts.
+     */
+    private void runStartupBenchmark() {
+        String over = mStartup.checkBudget();
+        String report = mStartup.format() + "\n"
+                + (over != null ? "over budget: " + over : "within budget");
+        Log.i(TAG, report);
+        Toast.makeText(this, report, Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Gets the phases of this start, for StartupBenchmarkTest. Only read them
+     * on the main thread.
+     */
+    StartupBenchmark getStartupBenchmark() {
+        return mStartup;
+    }
+
+    /**
+     * Inflates the ad banner and requests an ad. Called after the first
+     * frame, as showing the sensors does not need it.
+     */
+    private void loadAd() {
+        if (mDestroyed || adView != null) {
+            return;
+        }
+        ViewStub stub = (ViewStub) findViewById(R.id.adStub);
+        adView = (AdView) stub.inflate();
+        adView.loadAd(new AdRequest());
+    }
+
+    /**
+     * Gets the shared sensor helper in the background, as it enumerates the
+     * sensors on first use, so the first frame does not wait for the sensor
+     * service; rows are then added by onSensorsReady.
+     */
+    private void createSensorUi() {
+        if (!mDisplayedSensors.isEmpty()) {
+            removeSensorUi();
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final SensorHelper helper = SensorHelper.getInstance(MainActivity.this);
+                helper.setActivityClassifier(loadActivityClassifier());
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSensorsReady(helper);
+                    }
+                });
+            }
+        }, "sensor-enumeration").start();
+    }
+
+    /**
+     * Takes over the enumerated sensors: applies the settings made meanwhile,
+     * starts the sensors if resumed, and starts adding their rows.
+     */
+    private void onSensorsReady(SensorHelper helper) {
+        if (mDestroyed) {
+            return;
+        }
+        mStartup.mark(StartupBenchmark.PHASE_SENSORS_READY);
+        mSensorHelper = helper;
+        mSensorHelper.addUiHandler(mUiHandler);
+        if (mTargetSampleRate > 0) {
+            mSensorHelper.setUpdateTargetMs((int) (1000.0f / mTargetSampleRate));
+        }
+        if (mAdaptiveMinRate > 0) {
+            mSensorHelper.setAdaptiveMinHz(mAdaptiveMinRate);
+        }
+        if (mAdaptiveRate) {
+            mSensorHelper.setAdaptiveRate(true);
+        }
+        mSensorHelper.setDeadbandEnabled(mDeadband);
+        mSensorHelper.getMetrics().setSystraceEnabled(mSystrace);
+        updateMetricsEnabled();
+        enableStore(mStoreEnabled);
+        recordSession(mRecording);
+        enableRules(mRulesEnabled);
+        mUiHandler.sendEmptyMessage(MSG_UPDATE_ACTUAL_HZ);
+
+        assert mDisplayedSensors.isEmpty();
+        mRowsAdded = 0;
+        mUiHandler.sendEmptyMessage(MSG_ADD_ROWS);
+        if (mResumed) {
+            startSensors();
+        }
+    }
+
+    /**
+     * Adds the next few sensor rows, and schedules the rest, so the table
+     * fills progressively instead of holding up a frame.
+     */
+    private void addSensorRows() {
+        if (mSensorHelper == null) {
+            return;
+        }
+        final LayoutInflater inflater = getLayoutInflater();
+        List<MonitoredSensor> sensors = mSensorHelper.getSensors();
+        int end = Math.min(sensors.size(), mRowsAdded + ROWS_PER_PASS);
+        for (; mRowsAdded < end; mRowsAdded++) {
+            MonitoredSensor sensor = sensors.get(mRowsAdded);
+            final TableRow row = (TableRow) inflater.inflate(R.layout.sensor_row,
+                                                             mTableLayout,
+                                                             false);
+            mTableLayout.addView(row);
+            mDisplayedSensors.put(sensor, new DisplayInfo(sensor, row));
+        }
+        if (mRowsAdded < sensors.size()) {
+            mUiHandler.sendEmptyMessage(MSG_ADD_ROWS);
+        } else {
+            mStartup.mark(StartupBenchmark.PHASE_ROWS_ADDED);
+        }
+    }
+
+    private void startSensors() {
+        mSensorHelper.onEnableSensor("all");
+        mSensorHelper.startSensors();
     }
 
     private void removeSensorUi() {
+        mUiHandler.removeMessages(MSG_ADD_ROWS);
         if (mSensorHelper != null) {
+            // The helper is shared with the feed service: undo what the UI set.
             mSensorHelper.removeUiHandler(mUiHandler);
+            mSensorHelper.setAdaptiveRate(false);
+            mSensorHelper.setDeadbandEnabled(true);
+            mSensorHelper.clearPowerPlan();
             mSensorHelper = null;
         }
         mTableLayout.removeAllViews();
@@ -161,6 +742,7 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
         private CheckBox mChk;
         private TextView mVal;
         private TextView mInfo;
+        private TextView mStatus;
 
         public DisplayInfo(MonitoredSensor sensor, TableRow row) {
             mSensor = sensor;
@@ -177,8 +759,10 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
             mVal = (TextView) row.findViewById(R.id.row_textview);
             mVal.setText(sensor.getValue());
             
+            // The info text is only built when first shown.
             mInfo = (TextView) row.findViewById(R.id.row_infoview);
-            mInfo.setText(sensor.getInfo());
+
+            mStatus = (TextView) row.findViewById(R.id.row_statusview);
             
             final View imgInfo = row.findViewById(R.id.row_img_info);
             ((ImageView)imgInfo).getDrawable().setColorFilter(Color.GREEN | Color.GRAY, Mode.MULTIPLY);
@@ -191,6 +775,9 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
 						mInfo.setVisibility(View.GONE);
 						((ImageView)imgInfo).getDrawable().setColorFilter(Color.GREEN | Color.GRAY, Mode.MULTIPLY);
 					} else {
+						if (mInfo.getText().length() == 0 && mSensor != null) {
+							mInfo.setText(mSensor.getInfo());
+						}
 						mInfo.setVisibility(View.VISIBLE);
 						((ImageView)imgInfo).getDrawable().setColorFilter(0, Mode.DST);
 					}
@@ -213,6 +800,7 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
         public void release() {
             mChk = null;
             mVal = null;
+            mStatus = null;
             mSensor = null;
 
         }
@@ -229,6 +817,14 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
                 mVal.setText(mSensor.getValue());
             }
         }
+
+        public void updateQuality() {
+            if (mStatus != null && mSensor != null) {
+                int flags = mSensor.getQualityFlags();
+                mStatus.setText(SampleQuality.describe(flags));
+                mStatus.setVisibility(flags != 0 ? View.VISIBLE : View.GONE);
+            }
+        }
     }
 
     /** Implementation of Handler.Callback */
@@ -242,10 +838,37 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
                 info.updateState();
             }
             break;
+        case SensorHelper.SENSOR_QUALITY_CHANGED:
+            info = mDisplayedSensors.get(msg.obj);
+            if (info != null) {
+                info.updateQuality();
+            }
+            break;
         case SensorHelper.SENSOR_DISPLAY_MODIFIED:
+            SensorMetrics metrics = mSensorHelper != null ? mSensorHelper.getMetrics() : null;
+            boolean traced = metrics != null && metrics.isEnabled();
+            boolean systrace = traced && metrics.isSystraceEnabled();
+            LatencyTrace trace = ((MonitoredSensor) msg.obj).getStats().getTrace();
+            if (traced) {
+                ((MonitoredSensor) msg.obj).getStats().onHandled();
+                trace.onHandle(LatencyTrace.now());
+            }
             info = mDisplayedSensors.get(msg.obj);
             if (info != null) {
+                if (systrace) LatencyTrace.beginSection("sensor-update-value");
                 info.updateValue();
+                if (systrace) LatencyTrace.endSection();
+                if (mStartup.mark(StartupBenchmark.PHASE_FIRST_VALUE)) {
+                    Log.i(TAG, mStartup.format());
+                    String over = mStartup.checkBudget();
+                    if (over != null) {
+                        Log.e(TAG, "Slow startup: " + over);
+                    }
+                }
+            }
+            if (traced) {
+                trace.onSetText(LatencyTrace.now());
+                mTracePendingDraw |= trace.isPendingDraw();
             }
             if (mSensorHelper != null) {
                 // Update the "actual rate" field if the value has changed
@@ -258,6 +881,9 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
                 }
             }
             break;
+        case MSG_ADD_ROWS:
+            addSensorRows();
+            break;
         case MSG_UPDATE_ACTUAL_HZ:
             if (mSensorHelper != null) {
                 // Update the "actual rate" field if the value has changed
@@ -268,6 +894,18 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
                                     Integer.toString((int) Math.ceil(1000. / ms));
                     mTextActualHz.setText(hz);
                 }
+                if (mResumed) {
+                    // Nothing to measure while paused: it would all look calm.
+                    mSensorHelper.onLoadTick(mFrameDrops != null ? mFrameDrops.poll() : 0);
+                }
+                mSensorHelper.checkQuality();
+                if (mStore != null) {
+                    mStore.flush();
+                }
+                if (mRecorder != null) {
+                    mRecorder.flush();
+                }
+                updateDiagnostics();
                 mUiHandler.sendEmptyMessageDelayed(MSG_UPDATE_ACTUAL_HZ, 1000 /*1s*/);
             }
         }
@@ -297,5 +935,72 @@ public class MainActivity extends Activity implements android.os.Handler.Callbac
             }
         } catch (Exception ignore) {}
     }
+
+    private void updateAdaptiveMinRate() {
+        String str = mTextAdaptiveMinHz.getText().toString();
+        try {
+            int hz = Integer.parseInt(str.trim());
+
+            // The floor can't be faster than the sample rate cap.
+            if (hz <= 0) {
+                hz = 1;
+            }
+            hz = Math.min(hz, 50);
+
+            if (hz != mAdaptiveMinRate) {
+                mAdaptiveMinRate = hz;
+                if (mSensorHelper != null) {
+                    mSensorHelper.setAdaptiveMinHz(hz);
+                }
+            }
+        } catch (Exception ignore) {}
+    }
+
+    /**
+     * Counts frames the main thread failed to produce in time, by watching
+     * the interval between two consecutive vsync callbacks.
+     */
+    @TargetApi(16)
+    private static class FrameDropCounter implements Choreographer.FrameCallback {
+        private static final long FRAME_NS = 1000000000L / 60;
+        private long mLastFrameNs;
+        private int mDropped;
+        private boolean mRunning;
+
+        public void start() {
+            if (!mRunning) {
+                mRunning = true;
+                mLastFrameNs = 0;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        public void stop() {
+            mRunning = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        /** Returns the frames dropped since the previous call. */
+        public int poll() {
+            int dropped = mDropped;
+            mDropped = 0;
+            return dropped;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mRunning) {
+                return;
+            }
+            if (mLastFrameNs != 0) {
+                long skipped = (frameTimeNanos - mLastFrameNs) / FRAME_NS - 1;
+                if (skipped > 0) {
+                    mDropped += skipped;
+                }
+            }
+            mLastFrameNs = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
 }
 
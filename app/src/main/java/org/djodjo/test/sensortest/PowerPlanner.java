@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimates the current drawn by a sensor capture, and picks per-sensor
+ * rates and batching latencies that fit a budget.
+ * <p/>
+ * The model adds, as average currents:
+ * <ul>
+ * <li>the sensors: Sensor.getPower() at the fastest rate, scaled down
+ * linearly at slower rates but to no less than {@link #MIN_SENSOR_DUTY} of
+ * it, which a powered sensor keeps drawing whatever its rate;</li>
+ * <li>the application processor: awake {@link #WAKEUP_MS} per delivery and
+ * for the processing time of every event, at {@link #CPU_MA}. Unbatched
+ * events are delivered one by one; batched sensors share a delivery per
+ * latency, or per full FIFO if it fills first.</li>
+ * </ul>
+ * The screen, radios and the idle device are not part of the model, so a
+ * budget is what the capture may add to a device idling with the screen off.
+ * <p/>
+ * The planner first batches, which costs latency but no samples, then lowers
+ * the rate of whichever sensor saves the most, one step at a time.
+ * <p/>
+ * This class has no Android dependencies.
+ */
+public class PowerPlanner {
+
+	/** Current of the application processor while awake, in mA. */
+	public static final float CPU_MA = 100;
+	/** Time the application processor stays awake per delivery, in ms. */
+	public static final float WAKEUP_MS = 10;
+	/** Fraction of Sensor.getPower() drawn at any rate. */
+	public static final float MIN_SENSOR_DUTY = 0.25f;
+	/** Event rate assumed for on-change sensors, in Hz. */
+	public static final float ON_CHANGE_HZ = 1;
+	/** Current of an idle device with the screen off, in mA. */
+	public static final float DEFAULT_BASELINE_MA = 5;
+
+	/** Rates the planner steps through, fastest first, in Hz. */
+	private static final float[] RATE_STEPS = { 200, 100, 50, 25, 10, 5, 2, 1 };
+	/** Batching latencies the planner steps through, in ms. */
+	private static final int[] LATENCY_STEPS = { 0, 1000, 5000, 10000, 30000, 60000, 300000 };
+
+	/** One sensor of the capture. */
+	private static class Entry {
+		final String name;
+		final float powerMa;
+		/** Fastest rate, 0 for on-change sensors. */
+		final float maxHz;
+		/** Events the FIFO holds, 0 if the sensor cannot batch. */
+		final int fifoEvents;
+		float rateHz;
+		int latencyMs;
+
+		Entry(String name, float powerMa, float maxHz, int fifoEvents) {
+			this.name = name;
+			this.powerMa = powerMa;
+			this.maxHz = maxHz;
+			this.fifoEvents = fifoEvents;
+		}
+
+		float getEventHz() {
+			return maxHz > 0 ? rateHz : ON_CHANGE_HZ;
+		}
+
+		float getSensorMa() {
+			return maxHz > 0 ? powerMa * Math.max(MIN_SENSOR_DUTY, rateHz / maxHz) : powerMa;
+		}
+
+		/** Time between two deliveries of a batched sensor, in seconds. */
+		float getFlushS() {
+			float flushS = latencyMs / 1000f;
+			float hz = getEventHz();
+			return hz > 0 ? Math.min(flushS, fifoEvents / hz) : flushS;
+		}
+	}
+
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+	private float mEventCostUs;
+
+	/**
+	 * Constructs PowerPlanner instance.
+	 *
+	 * @param eventCostUs processing time of one event, e.g. the mean callback
+	 *            time measured by the metrics registry.
+	 */
+	public PowerPlanner(float eventCostUs) {
+		mEventCostUs = Math.max(0, eventCostUs);
+	}
+
+	/**
+	 * Adds a sensor to the capture.
+	 *
+	 * @param name name used in reports.
+	 * @param powerMa Sensor.getPower().
+	 * @param maxHz fastest rate, 0 for on-change sensors.
+	 * @param fifoEvents Sensor.getFifoMaxEventCount(), 0 if batching is not available.
+	 * @param rateHz current rate.
+	 * @param latencyMs current batching latency, 0 if not batched.
+	 * @return Index of the sensor.
+	 */
+	public int addSensor(String name, float powerMa, float maxHz, int fifoEvents,
+			float rateHz, int latencyMs) {
+		Entry entry = new Entry(name, Math.max(0, powerMa), Math.max(0, maxHz),
+				Math.max(0, fifoEvents));
+		entry.rateHz = maxHz > 0 ? Math.min(rateHz, maxHz) : 0;
+		entry.latencyMs = entry.fifoEvents > 0 ? Math.max(0, latencyMs) : 0;
+		mEntries.add(entry);
+		return mEntries.size() - 1;
+	}
+
+	public int getSensorCount() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Gets the rate of a sensor, as planned or added.
+	 *
+	 * @param index index returned by addSensor.
+	 * @return Rate in Hz, 0 for on-change sensors.
+	 */
+	public float getRateHz(int index) {
+		return mEntries.get(index).rateHz;
+	}
+
+	/**
+	 * Gets the batching latency of a sensor, as planned or added.
+	 *
+	 * @param index index returned by addSensor.
+	 * @return Latency in ms, 0 if not batched.
+	 */
+	public int getLatencyMs(int index) {
+		return mEntries.get(index).latencyMs;
+	}
+
+	/**
+	 * Estimates the current drawn by all sensors.
+	 *
+	 * @return Average current in mA.
+	 */
+	public float getSensorMa() {
+		float total = 0;
+		for (int i = 0, n = mEntries.size(); i < n; i++) {
+			total += mEntries.get(i).getSensorMa();
+		}
+		return total;
+	}
+
+	/**
+	 * Estimates the current drawn by the application processor to receive
+	 * and process the events.
+	 *
+	 * @return Average current in mA.
+	 */
+	public float getCpuMa() {
+		float deliveries = 0;
+		float events = 0;
+		float batchedHz = 0;
+		for (int i = 0, n = mEntries.size(); i < n; i++) {
+			Entry entry = mEntries.get(i);
+			float hz = entry.getEventHz();
+			events += hz;
+			if (entry.latencyMs > 0) {
+				// Batched sensors are flushed together, as often as the most urgent needs.
+				float flushS = entry.getFlushS();
+				batchedHz = Math.max(batchedHz, flushS > 0 ? 1 / flushS : hz);
+			} else {
+				deliveries += hz;
+			}
+		}
+		deliveries += batchedHz;
+		float duty = deliveries * WAKEUP_MS / 1000 + events * mEventCostUs / 1000000;
+		return CPU_MA * Math.min(1, duty);
+	}
+
+	/**
+	 * Estimates the current drawn by the capture.
+	 *
+	 * @return Average current in mA.
+	 */
+	public float estimateMa() {
+		return getSensorMa() + getCpuMa();
+	}
+
+	/**
+	 * Computes the current a capture may draw to last a given time.
+	 *
+	 * @param capacityMah battery capacity.
+	 * @param hours target duration.
+	 * @param baselineMa current of the idle device, e.g. DEFAULT_BASELINE_MA.
+	 * @return Budget in mA, 0 if the baseline alone exceeds it.
+	 */
+	public static float getBudgetMa(float capacityMah, float hours, float baselineMa) {
+		return hours > 0 ? Math.max(0, capacityMah / hours - baselineMa) : 0;
+	}
+
+	/**
+	 * Picks the rates and batching latencies of all sensors for a budget,
+	 * starting from the fastest rates without batching.
+	 *
+	 * @param budgetMa current the capture may draw.
+	 * @param maxLatencyMs longest batching latency acceptable.
+	 * @param minHz slowest rate acceptable.
+	 * @return true if the estimate fits the budget; otherwise the plan is the
+	 *         cheapest within the limits.
+	 */
+	public boolean plan(float budgetMa, int maxLatencyMs, float minHz) {
+		final List<Entry> entries = mEntries;
+		for (int i = 0, n = entries.size(); i < n; i++) {
+			Entry entry = entries.get(i);
+			entry.rateHz = entry.maxHz;
+			entry.latencyMs = 0;
+		}
+		// Batching first: all batching sensors share one latency, so one delivery.
+		for (int step = 1; step < LATENCY_STEPS.length && estimateMa() > budgetMa; step++) {
+			if (LATENCY_STEPS[step] > maxLatencyMs) {
+				break;
+			}
+			for (int i = 0, n = entries.size(); i < n; i++) {
+				Entry entry = entries.get(i);
+				if (entry.fifoEvents > 0) {
+					entry.latencyMs = LATENCY_STEPS[step];
+				}
+			}
+		}
+		// Then slow down whichever sensor saves the most, one step at a time.
+		float estimate;
+		while ((estimate = estimateMa()) > budgetMa) {
+			Entry best = null;
+			float bestRate = 0;
+			float bestSaving = 0;
+			for (int i = 0, n = entries.size(); i < n; i++) {
+				Entry entry = entries.get(i);
+				float current = entry.rateHz;
+				float slower = getSlowerRate(current, minHz);
+				if (entry.maxHz <= 0 || slower >= current) {
+					continue;
+				}
+				entry.rateHz = slower;
+				float saving = estimate - estimateMa();
+				entry.rateHz = current;
+				if (best == null || saving > bestSaving) {
+					best = entry;
+					bestRate = slower;
+					bestSaving = saving;
+				}
+			}
+			if (best == null) {
+				return false;
+			}
+			best.rateHz = bestRate;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the next rate step below a rate.
+	 *
+	 * @return The slower rate, or rateHz itself if minHz does not allow one.
+	 */
+	private static float getSlowerRate(float rateHz, float minHz) {
+		for (float step : RATE_STEPS) {
+			if (step < rateHz) {
+				return step >= minHz ? step : rateHz;
+			}
+		}
+		return rateHz;
+	}
+
+	/**
+	 * Formats the configuration and its estimate, one line per sensor.
+	 *
+	 * @return A human readable, multi-line report.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%.2f mA: sensors %.2f mA, cpu %.2f mA\n",
+				estimateMa(), getSensorMa(), getCpuMa()));
+		for (int i = 0, n = mEntries.size(); i < n; i++) {
+			Entry entry = mEntries.get(i);
+			sb.append(String.format(Locale.US, "  %s %s", entry.name,
+					entry.maxHz > 0 ? String.format(Locale.US, "%.0f Hz", entry.rateHz) : "on change"));
+			if (entry.latencyMs > 0) {
+				sb.append(String.format(Locale.US, " batch %.0f s", entry.getFlushS()));
+			}
+			sb.append(String.format(Locale.US, " %.2f mA\n", entry.getSensorMa()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Feedback controller that backs sampling and UI refresh periods off while
+ * the main looper is under pressure, and restores them once it calms down.
+ * <p/>
+ * The controller works in discrete levels: level 0 runs at the fastest
+ * periods allowed, each level above doubles both periods until they reach
+ * their slowest bound. A single pressured tick backs off one level, while
+ * recovering a level needs several calm ticks in a row, so the rate does not
+ * oscillate around the limit.
+ * <p/>
+ * This class has no Android dependencies; feed it with {@link #update} once
+ * per tick from the device, or from a simulated load model.
+ */
+public class RateController {
+
+	/** Mean callback time above which the listener is considered too slow. */
+	private long mCallbackBudgetNs = 2000000; // 2ms
+	/** UI messages queued above which the looper is considered congested. */
+	private long mMaxQueueDepth = 8;
+	/** Dropped frames per tick above which the UI is considered stuttering. */
+	private int mMaxDroppedFrames = 3;
+	/** Calm ticks in a row required before recovering one level. */
+	private int mCalmTicksToRecover = 3;
+
+	private long mMinSamplePeriodMs;
+	private long mMaxSamplePeriodMs;
+	private long mMinUiPeriodMs;
+	private long mMaxUiPeriodMs;
+
+	private int mLevel = 0;
+	private int mCalmTicks = 0;
+
+	/**
+	 * Constructs RateController instance.
+	 *
+	 * @param minSamplePeriodMs fastest sampling period, i.e. the user target.
+	 * @param maxSamplePeriodMs slowest sampling period the controller may use.
+	 * @param minUiPeriodMs fastest UI refresh period.
+	 * @param maxUiPeriodMs slowest UI refresh period.
+	 */
+	public RateController(long minSamplePeriodMs, long maxSamplePeriodMs,
+			long minUiPeriodMs, long maxUiPeriodMs) {
+		setSampleBounds(minSamplePeriodMs, maxSamplePeriodMs);
+		setUiBounds(minUiPeriodMs, maxUiPeriodMs);
+	}
+
+	/**
+	 * Sets the bounds for the sampling period. The current level is kept.
+	 *
+	 * @param minPeriodMs fastest period; 0 means no throttling at level 0.
+	 * @param maxPeriodMs slowest period, must be >= minPeriodMs.
+	 */
+	public void setSampleBounds(long minPeriodMs, long maxPeriodMs) {
+		mMinSamplePeriodMs = Math.max(0, minPeriodMs);
+		mMaxSamplePeriodMs = Math.max(mMinSamplePeriodMs, maxPeriodMs);
+	}
+
+	/**
+	 * Sets the bounds for the UI refresh period. The current level is kept.
+	 *
+	 * @param minPeriodMs fastest period.
+	 * @param maxPeriodMs slowest period, must be >= minPeriodMs.
+	 */
+	public void setUiBounds(long minPeriodMs, long maxPeriodMs) {
+		mMinUiPeriodMs = Math.max(0, minPeriodMs);
+		mMaxUiPeriodMs = Math.max(mMinUiPeriodMs, maxPeriodMs);
+	}
+
+	/**
+	 * Sets the pressure thresholds.
+	 *
+	 * @param callbackBudgetNs mean callback time considered too slow.
+	 * @param maxQueueDepth queued UI messages considered congested.
+	 * @param maxDroppedFrames dropped frames per tick considered stuttering.
+	 * @param calmTicksToRecover calm ticks required to recover one level.
+	 */
+	public void setThresholds(long callbackBudgetNs, long maxQueueDepth,
+			int maxDroppedFrames, int calmTicksToRecover) {
+		mCallbackBudgetNs = callbackBudgetNs;
+		mMaxQueueDepth = maxQueueDepth;
+		mMaxDroppedFrames = maxDroppedFrames;
+		mCalmTicksToRecover = Math.max(1, calmTicksToRecover);
+	}
+
+	/**
+	 * Feeds one tick worth of load measurements.
+	 *
+	 * @param callbackMeanNs worst per-sensor mean callback time in this tick.
+	 * @param queueDepth UI messages posted but not handled yet.
+	 * @param droppedFrames frames dropped during this tick.
+	 * @return true if the periods changed and should be applied.
+	 */
+	public boolean update(long callbackMeanNs, long queueDepth, int droppedFrames) {
+		boolean pressure = callbackMeanNs > mCallbackBudgetNs
+						|| queueDepth > mMaxQueueDepth
+						|| droppedFrames > mMaxDroppedFrames;
+		if (pressure) {
+			mCalmTicks = 0;
+			if (!isAtSlowestLevel()) {
+				mLevel++;
+				return true;
+			}
+			return false;
+		}
+		if (mLevel > 0 && ++mCalmTicks >= mCalmTicksToRecover) {
+			mCalmTicks = 0;
+			mLevel--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops back to the fastest periods.
+	 *
+	 * @return true if the periods changed and should be applied.
+	 */
+	public boolean reset() {
+		boolean changed = mLevel != 0;
+		mLevel = 0;
+		mCalmTicks = 0;
+		return changed;
+	}
+
+	/**
+	 * Gets the current back-off level, 0 being the fastest.
+	 *
+	 * @return Current level.
+	 */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * Gets the sampling period to use at the current level.
+	 *
+	 * @return Period in milliseconds; 0 if sampling is not throttled.
+	 */
+	public long getSamplePeriodMs() {
+		return scale(mMinSamplePeriodMs, mMaxSamplePeriodMs);
+	}
+
+	/**
+	 * Gets the slowest sampling period the controller may use.
+	 *
+	 * @return Period in milliseconds.
+	 */
+	public long getMaxSamplePeriodMs() {
+		return mMaxSamplePeriodMs;
+	}
+
+	/**
+	 * Gets the UI refresh period to use at the current level.
+	 *
+	 * @return Period in milliseconds.
+	 */
+	public long getUiPeriodMs() {
+		return scale(mMinUiPeriodMs, mMaxUiPeriodMs);
+	}
+
+	private boolean isAtSlowestLevel() {
+		return getSamplePeriodMs() >= mMaxSamplePeriodMs && getUiPeriodMs() >= mMaxUiPeriodMs;
+	}
+
+	private long scale(long min, long max) {
+		if (mLevel == 0) {
+			return min;
+		}
+		// An unthrottled minimum backs off from 1ms.
+		long period = Math.max(1, min);
+		for (int i = 0; i < mLevel && period < max; i++) {
+			period <<= 1;
+		}
+		return Math.min(period, max);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Aggregate of a signal over a sliding time window: average, minimum,
+ * maximum, or change since the oldest sample.
+ * <p/>
+ * The window is cut into {@link #BUCKETS} time buckets. Samples are folded
+ * into the open bucket; closed buckets go into a deque kept in primitive
+ * arrays, which for the minimum and maximum is monotonic, so the aggregate
+ * is always at its head. Adding a sample and reading the aggregate cost O(1)
+ * amortized and never allocate, and memory does not depend on the sample
+ * rate. The window edge is exact to one bucket, i.e. to 1/63 of the window;
+ * short windows with few samples per bucket are exact.
+ */
+class RollingWindow {
+
+	public static final int AVG = 0;
+	public static final int MIN = 1;
+	public static final int MAX = 2;
+	/** Latest value minus the oldest value in the window. */
+	public static final int DELTA = 3;
+
+	/** Buckets per window, the open one included. */
+	private static final int BUCKETS = 64;
+
+	private final int mOp;
+	private final long mBucketNs;
+	/** Closed buckets kept: those with an index above the current one minus this. */
+	private final long mSpan;
+
+	/** Deque of closed buckets: index, value and, for AVG, sample count. */
+	private final long[] mIndex = new long[BUCKETS];
+	private final double[] mValue = new double[BUCKETS];
+	private final int[] mCount = new int[BUCKETS];
+	private int mHead;
+	private int mSize;
+	/** Sum and count of the closed buckets, for AVG. */
+	private double mTotal;
+	private long mTotalCount;
+
+	private long mOpen = Long.MIN_VALUE;
+	/** Sum, minimum, maximum or first value of the open bucket. */
+	private double mOpenValue;
+	private int mOpenCount;
+	private double mLatest = Double.NaN;
+
+	/**
+	 * Constructs RollingWindow instance.
+	 *
+	 * @param op one of AVG, MIN, MAX or DELTA.
+	 * @param windowNs window length in nanoseconds.
+	 */
+	RollingWindow(int op, long windowNs) {
+		mOp = op;
+		mBucketNs = Math.max(1, (windowNs + BUCKETS - 2) / (BUCKETS - 1));
+		mSpan = Math.min(BUCKETS - 1, (windowNs + mBucketNs - 1) / mBucketNs);
+	}
+
+	/**
+	 * Adds one sample. Samples older than the open bucket are counted in it.
+	 *
+	 * @param timestampNs time stamp of the sample.
+	 * @param value sample value; NaN is ignored.
+	 */
+	void add(long timestampNs, double value) {
+		if (value != value) {
+			return;
+		}
+		long index = timestampNs / mBucketNs;
+		if (index > mOpen) {
+			evict(index);
+			if (mOpenCount > 0 && mOpen > index - mSpan) {
+				push(mOpen, mOpenValue, mOpenCount);
+			}
+			mOpen = index;
+			mOpenCount = 0;
+		}
+		if (mOpenCount == 0) {
+			mOpenValue = value;
+		} else {
+			switch (mOp) {
+			case AVG:
+				mOpenValue += value;
+				break;
+			case MIN:
+				mOpenValue = Math.min(mOpenValue, value);
+				break;
+			case MAX:
+				mOpenValue = Math.max(mOpenValue, value);
+				break;
+			}
+		}
+		mOpenCount++;
+		mLatest = value;
+	}
+
+	/**
+	 * Gets the aggregate of the window ending at a given time.
+	 *
+	 * @param nowNs end of the window, on the time stamp clock.
+	 * @return The aggregate, NaN if the window holds no sample.
+	 */
+	double get(long nowNs) {
+		long current = Math.max(nowNs / mBucketNs, mOpen);
+		evict(current);
+		boolean open = mOpenCount > 0 && mOpen > current - mSpan;
+		switch (mOp) {
+		case AVG: {
+			double sum = mTotal + (open ? mOpenValue : 0);
+			long count = mTotalCount + (open ? mOpenCount : 0);
+			return count > 0 ? sum / count : Double.NaN;
+		}
+		case MIN:
+		case MAX: {
+			if (mSize == 0) {
+				return open ? mOpenValue : Double.NaN;
+			}
+			double head = mValue[mHead];
+			if (!open) {
+				return head;
+			}
+			return mOp == MIN ? Math.min(head, mOpenValue) : Math.max(head, mOpenValue);
+		}
+		default: {
+			// DELTA: the open bucket holds its first value.
+			double oldest = mSize > 0 ? mValue[mHead] : open ? mOpenValue : Double.NaN;
+			return mLatest - oldest;
+		}
+		}
+	}
+
+	/**
+	 * Drops the closed buckets that fell out of the window ending in bucket
+	 * current.
+	 */
+	private void evict(long current) {
+		final long oldest = current - mSpan;
+		while (mSize > 0 && mIndex[mHead] <= oldest) {
+			if (mOp == AVG) {
+				mTotal -= mValue[mHead];
+				mTotalCount -= mCount[mHead];
+			}
+			mHead = (mHead + 1) % BUCKETS;
+			mSize--;
+		}
+		if (mSize == 0) {
+			// Cancel the rounding errors of the running sum.
+			mTotal = 0;
+			mTotalCount = 0;
+		}
+	}
+
+	private void push(long index, double value, int count) {
+		if (mOp == MIN || mOp == MAX) {
+			// Buckets dominated by the new one can never be the aggregate again.
+			while (mSize > 0) {
+				int tail = (mHead + mSize - 1) % BUCKETS;
+				if (mOp == MIN ? mValue[tail] < value : mValue[tail] > value) {
+					break;
+				}
+				mSize--;
+			}
+		} else if (mOp == AVG) {
+			mTotal += value;
+			mTotalCount += count;
+		}
+		int slot = (mHead + mSize) % BUCKETS;
+		mIndex[slot] = index;
+		mValue[slot] = value;
+		mCount[slot] = count;
+		mSize++;
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import org.djodjo.test.sensortest.RuleExpr.Channel;
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates alert rules over the live sensor samples.
+ * <p/>
+ * A rule is a condition over the latest values and sliding-window aggregates
+ * of one or more sensors, optionally held for a minimum time, e.g.:
+ * <pre>
+ * high-g: acceleration.mag &gt; 2g for 200ms
+ * pressure-drop: max(pressure, 10min) - pressure &gt; 3
+ * pocket: proximity &lt; 1 and light &lt; 5
+ * </pre>
+ * See {@link RuleParser} for the syntax. Rules are compiled once into
+ * expression trees; a sample updates the channels and windows of its sensor,
+ * then re-evaluates only the rules that reference that sensor, in O(1)
+ * amortized time and without allocating.
+ * <p/>
+ * A rule fires once when its condition has held for the "for" time, and
+ * re-arms when the condition becomes false. Register as a raw sample
+ * listener so that throttling and deadband do not hide samples. Called on
+ * the main looper, like all sample listeners.
+ */
+public class RuleEngine implements SensorHelper.SampleListener {
+
+	/**
+	 * Receives fired rules, e.g. to notify the user or annotate a recording.
+	 * Called on the main looper.
+	 */
+	public interface RuleListener {
+		/**
+		 * Handles a fired rule.
+		 *
+		 * @param rule rule that fired.
+		 * @param timestampNs time stamp of the sample that fired it.
+		 */
+		void onRuleFired(Rule rule, long timestampNs);
+	}
+
+	/** One compiled rule. */
+	public static final class Rule {
+		private final int mId;
+		private final String mName;
+		private final String mText;
+		private final RuleTrigger mTrigger;
+		/** Sensors referenced by the condition, first referenced first. */
+		private final MonitoredSensor[] mSensors;
+		private int mFireCount;
+
+		Rule(int id, String name, String text, RuleTrigger trigger, MonitoredSensor[] sensors) {
+			mId = id;
+			mName = name;
+			mText = text;
+			mTrigger = trigger;
+			mSensors = sensors;
+		}
+
+		/**
+		 * Gets the rule identifier, also used as the id of recorded events.
+		 *
+		 * @return Identifier, unique within the engine.
+		 */
+		public int getId() {
+			return mId;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public String getText() {
+			return mText;
+		}
+
+		/**
+		 * Gets the sensor a fired rule relates to.
+		 *
+		 * @return The first sensor referenced by the rule.
+		 */
+		public MonitoredSensor getSensor() {
+			return mSensors[0];
+		}
+
+		public int getFireCount() {
+			return mFireCount;
+		}
+
+		/**
+		 * Tells whether the rule fired and has not re-armed yet.
+		 *
+		 * @return true while the condition that fired the rule still holds.
+		 */
+		public boolean isFiring() {
+			return mTrigger.isFiring();
+		}
+	}
+
+	/** Channels and rules to update on a sample of one sensor. */
+	private static final class Dispatch {
+		Channel[] channels;
+		Rule[] rules;
+	}
+
+	private final List<MonitoredSensor> mSensors;
+	private final List<Channel> mChannels = new ArrayList<Channel>();
+	private final List<Rule> mRules = new ArrayList<Rule>();
+	private final List<RuleListener> mListeners = new ArrayList<RuleListener>();
+	private final HashMap<MonitoredSensor, Dispatch> mDispatch =
+			new HashMap<MonitoredSensor, Dispatch>();
+	private int mNextId = 1;
+
+	/** Sensors, channels and windows of the rule being parsed, committed if it compiles. */
+	private final List<MonitoredSensor> mParseSensors = new ArrayList<MonitoredSensor>();
+	private final List<Channel> mParseUsed = new ArrayList<Channel>();
+	private final List<Channel> mParseChannels = new ArrayList<Channel>();
+	private final List<RollingWindow> mParseWindows = new ArrayList<RollingWindow>();
+	private final RuleParser.Bindings mBindings = new RuleParser.Bindings() {
+		@Override
+		public Channel getChannel(String sensor, int component) {
+			return RuleEngine.this.getChannel(sensor, component);
+		}
+
+		@Override
+		public RollingWindow addWindow(Channel channel, int op, long windowNs) {
+			return RuleEngine.this.addWindow(channel, op, windowNs);
+		}
+	};
+
+	/**
+	 * Constructs RuleEngine instance.
+	 *
+	 * @param sensors sensors rules may reference, by friendly name.
+	 */
+	public RuleEngine(List<MonitoredSensor> sensors) {
+		mSensors = sensors;
+	}
+
+	/**
+	 * Compiles and adds a rule.
+	 *
+	 * @param name name of the rule.
+	 * @param text rule text.
+	 * @return The new rule.
+	 * @throws ParseException if the text is not a valid rule, or references a
+	 *             sensor that is not available.
+	 */
+	public Rule addRule(String name, String text) throws ParseException {
+		mParseSensors.clear();
+		mParseUsed.clear();
+		mParseChannels.clear();
+		mParseWindows.clear();
+		RuleParser parser = new RuleParser(text, mBindings);
+		RuleExpr condition = parser.parse();
+		if (mParseSensors.isEmpty()) {
+			throw new ParseException("rule references no sensor: " + text, 0);
+		}
+		for (int i = 0, n = mParseUsed.size(); i < n; i++) {
+			mParseUsed.get(i).used = true;
+		}
+		for (int i = 0, n = mParseWindows.size(); i < n; i++) {
+			Channel channel = mParseChannels.get(i);
+			RollingWindow[] windows = Arrays.copyOf(channel.windows, channel.windows.length + 1);
+			windows[windows.length - 1] = mParseWindows.get(i);
+			channel.windows = windows;
+		}
+		Rule rule = new Rule(mNextId++, name, text, new RuleTrigger(condition, parser.getForNs()),
+				mParseSensors.toArray(new MonitoredSensor[mParseSensors.size()]));
+		mRules.add(rule);
+		rebuildDispatch();
+		return rule;
+	}
+
+	/**
+	 * Loads rules from a text file: one "name: rule" per line; blank lines and
+	 * lines starting with '#' are ignored.
+	 *
+	 * @param file rule file.
+	 * @return Number of rules added.
+	 * @throws IOException if the file cannot be read or a rule does not
+	 *             compile; rules before it are kept.
+	 */
+	public int load(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int added = 0;
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					throw new IOException(file + ":" + lineNumber + ": expected \"name: rule\"");
+				}
+				try {
+					addRule(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+				} catch (ParseException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+				added++;
+			}
+			return added;
+		} finally {
+			reader.close();
+		}
+	}
+
+	public List<Rule> getRules() {
+		return mRules;
+	}
+
+	/**
+	 * Registers a new rule listener.
+	 *
+	 * @param listener A non-null listener to register. Ignored if the
+	 *            listener is null or already registered.
+	 */
+	public void addRuleListener(RuleListener listener) {
+		assert listener != null;
+		if (listener != null) {
+			if (!mListeners.contains(listener)) {
+				mListeners.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a rule listener.
+	 *
+	 * @param listener A non-null listener to unregister. Ignored if the
+	 *            listener is null or not registered.
+	 */
+	public void removeRuleListener(RuleListener listener) {
+		assert listener != null;
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Gets the channel of a sensor component, for the rule being parsed.
+	 *
+	 * @param friendlyName friendly name of the sensor.
+	 * @param component value index, or Channel.MAGNITUDE.
+	 * @return The channel, null if there is no such sensor.
+	 */
+	Channel getChannel(String friendlyName, int component) {
+		MonitoredSensor sensor = null;
+		for (int i = 0, n = mSensors.size(); i < n; i++) {
+			if (mSensors.get(i).getFriendlyName().equals(friendlyName)) {
+				sensor = mSensors.get(i);
+				break;
+			}
+		}
+		if (sensor == null) {
+			return null;
+		}
+		if (!mParseSensors.contains(sensor)) {
+			mParseSensors.add(sensor);
+		}
+		Channel channel = null;
+		for (int i = 0, n = mChannels.size(); i < n && channel == null; i++) {
+			if (mChannels.get(i).sensor == sensor && mChannels.get(i).component == component) {
+				channel = mChannels.get(i);
+			}
+		}
+		if (channel == null) {
+			channel = new Channel(sensor, component);
+			mChannels.add(channel);
+		}
+		mParseUsed.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Creates a window over a channel, for the rule being parsed. The window
+	 * is fed once the rule compiles.
+	 *
+	 * @param channel channel returned by getChannel.
+	 * @param op RollingWindow.AVG, MIN, MAX or DELTA.
+	 * @param windowNs window length.
+	 * @return The new window.
+	 */
+	RollingWindow addWindow(Channel channel, int op, long windowNs) {
+		RollingWindow window = new RollingWindow(op, windowNs);
+		mParseChannels.add(channel);
+		mParseWindows.add(window);
+		return window;
+	}
+
+	/**
+	 * Rebuilds the per-sensor arrays walked by onSample, so that a sample only
+	 * touches the channels and rules of its sensor.
+	 */
+	private void rebuildDispatch() {
+		mDispatch.clear();
+		HashMap<MonitoredSensor, List<Rule>> rules = new HashMap<MonitoredSensor, List<Rule>>();
+		for (Rule rule : mRules) {
+			for (MonitoredSensor sensor : rule.mSensors) {
+				List<Rule> list = rules.get(sensor);
+				if (list == null) {
+					list = new ArrayList<Rule>();
+					rules.put(sensor, list);
+				}
+				list.add(rule);
+			}
+		}
+		for (MonitoredSensor sensor : rules.keySet()) {
+			List<Channel> channels = new ArrayList<Channel>();
+			for (Channel channel : mChannels) {
+				// Channels of rules that failed to compile are left out.
+				if (channel.sensor == sensor && channel.used) {
+					channels.add(channel);
+				}
+			}
+			Dispatch dispatch = new Dispatch();
+			dispatch.channels = channels.toArray(new Channel[channels.size()]);
+			dispatch.rules = rules.get(sensor).toArray(new Rule[0]);
+			mDispatch.put(sensor, dispatch);
+		}
+	}
+
+	@Override
+	public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+		final Dispatch dispatch = mDispatch.get(sensor);
+		if (dispatch == null) {
+			return;
+		}
+		final Channel[] channels = dispatch.channels;
+		for (int i = 0; i < channels.length; i++) {
+			channels[i].update(timestampNs, values, count);
+		}
+		final Rule[] rules = dispatch.rules;
+		for (int i = 0; i < rules.length; i++) {
+			evaluate(rules[i], timestampNs);
+		}
+	}
+
+	private void evaluate(Rule rule, long timestampNs) {
+		if (rule.mTrigger.update(timestampNs)) {
+			rule.mFireCount++;
+			final List<RuleListener> listeners = mListeners;
+			for (int i = 0, n = listeners.size(); i < n; i++) {
+				listeners.get(i).onRuleFired(rule, timestampNs);
+			}
+		}
+	}
+
+	/**
+	 * Formats the rules and how often they fired.
+	 *
+	 * @return A human readable, multi-line report.
+	 */
+	public String formatRules() {
+		StringBuilder sb = new StringBuilder();
+		for (Rule rule : mRules) {
+			sb.append(String.format(Locale.US, "#%d %s: %s, fired %d%s\n", rule.mId,
+					rule.mName, rule.mText, rule.mFireCount, rule.isFiring() ? " (firing)" : ""));
+		}
+		return sb.toString();
+	}
+}
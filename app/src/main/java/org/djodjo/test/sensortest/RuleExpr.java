@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Compiled rule expression. Values and conditions are both doubles: a
+ * condition is 1 when true and 0 when false, and NaN, e.g. a sensor that
+ * has not reported yet, is never true. Evaluation does not allocate.
+ */
+abstract class RuleExpr {
+
+	/**
+	 * Evaluates the expression.
+	 *
+	 * @param nowNs time of the evaluation, on the SensorEvent.timestamp clock.
+	 * @return Value of the expression, possibly NaN.
+	 */
+	abstract double eval(long nowNs);
+
+	static boolean isTrue(double value) {
+		// False for NaN too.
+		return value != 0 && value == value;
+	}
+
+	/** Component of a sensor sample referenced by rules. */
+	static final class Channel {
+		/** Component index of the magnitude of the first three values. */
+		static final int MAGNITUDE = -1;
+
+		/** Sensor of the channel, compared by identity. */
+		final Object sensor;
+		final int component;
+		/** Latest value, NaN before the first sample. */
+		double value = Double.NaN;
+		/** Windows fed with every value. */
+		RollingWindow[] windows = new RollingWindow[0];
+		/** Whether a compiled rule references the channel. */
+		boolean used;
+
+		Channel(Object sensor, int component) {
+			this.sensor = sensor;
+			this.component = component;
+		}
+
+		/**
+		 * Updates the latest value and the windows from a sample of the sensor.
+		 *
+		 * @param timestampNs time stamp of the sample.
+		 * @param values sample values.
+		 * @param count number of valid values.
+		 */
+		void update(long timestampNs, float[] values, int count) {
+			if (component == MAGNITUDE) {
+				double sum = 0;
+				for (int j = 0, n = Math.min(count, 3); j < n; j++) {
+					sum += values[j] * values[j];
+				}
+				value = Math.sqrt(sum);
+			} else {
+				value = component < count ? values[component] : Double.NaN;
+			}
+			for (int j = 0; j < windows.length; j++) {
+				windows[j].add(timestampNs, value);
+			}
+		}
+	}
+
+	static final class Const extends RuleExpr {
+		private final double mValue;
+
+		Const(double value) {
+			mValue = value;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			return mValue;
+		}
+	}
+
+	/** Latest value of a sensor component. */
+	static final class Latest extends RuleExpr {
+		private final Channel mChannel;
+
+		Latest(Channel channel) {
+			mChannel = channel;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			return mChannel.value;
+		}
+	}
+
+	/** Aggregate of a sensor component over a sliding window. */
+	static final class Window extends RuleExpr {
+		private final RollingWindow mWindow;
+
+		Window(RollingWindow window) {
+			mWindow = window;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			return mWindow.get(nowNs);
+		}
+	}
+
+	static final class Arithmetic extends RuleExpr {
+		private final char mOp;
+		private final RuleExpr mLeft;
+		private final RuleExpr mRight;
+
+		Arithmetic(char op, RuleExpr left, RuleExpr right) {
+			mOp = op;
+			mLeft = left;
+			mRight = right;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			double a = mLeft.eval(nowNs);
+			double b = mRight.eval(nowNs);
+			switch (mOp) {
+			case '+':
+				return a + b;
+			case '-':
+				return a - b;
+			case '*':
+				return a * b;
+			default:
+				return a / b;
+			}
+		}
+	}
+
+	static final class Compare extends RuleExpr {
+		static final int LT = 0;
+		static final int LE = 1;
+		static final int GT = 2;
+		static final int GE = 3;
+		static final int EQ = 4;
+		static final int NE = 5;
+
+		private final int mOp;
+		private final RuleExpr mLeft;
+		private final RuleExpr mRight;
+
+		Compare(int op, RuleExpr left, RuleExpr right) {
+			mOp = op;
+			mLeft = left;
+			mRight = right;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			double a = mLeft.eval(nowNs);
+			double b = mRight.eval(nowNs);
+			if (a != a || b != b) {
+				return 0;
+			}
+			boolean result;
+			switch (mOp) {
+			case LT:
+				result = a < b;
+				break;
+			case LE:
+				result = a <= b;
+				break;
+			case GT:
+				result = a > b;
+				break;
+			case GE:
+				result = a >= b;
+				break;
+			case EQ:
+				result = a == b;
+				break;
+			default:
+				result = a != b;
+				break;
+			}
+			return result ? 1 : 0;
+		}
+	}
+
+	/** And, or, not; short-circuit. */
+	static final class Logic extends RuleExpr {
+		static final int AND = 0;
+		static final int OR = 1;
+		static final int NOT = 2;
+
+		private final int mOp;
+		private final RuleExpr mLeft;
+		/** Null for NOT. */
+		private final RuleExpr mRight;
+
+		Logic(int op, RuleExpr left, RuleExpr right) {
+			mOp = op;
+			mLeft = left;
+			mRight = right;
+		}
+
+		@Override
+		double eval(long nowNs) {
+			boolean left = isTrue(mLeft.eval(nowNs));
+			switch (mOp) {
+			case AND:
+				return left && isTrue(mRight.eval(nowNs)) ? 1 : 0;
+			case OR:
+				return left || isTrue(mRight.eval(nowNs)) ? 1 : 0;
+			default:
+				return left ? 0 : 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.text.ParseException;
+
+/**
+ * Recursive descent parser compiling one rule into a {@link RuleExpr}.
+ * <pre>
+ * rule       := or ["for" duration]
+ * or         := and {"or" and}
+ * and        := not {"and" not}
+ * not        := "not" not | comparison
+ * comparison := sum [("&lt;" | "&lt;=" | "&gt;" | "&gt;=" | "==" | "!=") sum]
+ * sum        := product {("+" | "-") product}
+ * product    := unary {("*" | "/") unary}
+ * unary      := "-" unary | primary
+ * primary    := number ["g"] | "(" or ")" | signal
+ *             | ("avg" | "min" | "max" | "delta") "(" signal "," duration ")"
+ * signal     := sensor ["." ("x" | "y" | "z" | "mag" | digit)]
+ * duration   := number ("ms" | "s" | "min" | "h")
+ * </pre>
+ * Sensors are named by their friendly name, e.g. "acceleration" or
+ * "pressure"; since names may contain '-', put spaces around a minus that
+ * follows one. The "g" suffix multiplies by standard gravity.
+ */
+class RuleParser {
+
+	/** Binds the signals and windows of a rule, e.g. to the sensors of a RuleEngine. */
+	interface Bindings {
+		/**
+		 * Gets the channel of a sensor component.
+		 *
+		 * @param sensor friendly name of the sensor.
+		 * @param component value index, or Channel.MAGNITUDE.
+		 * @return The channel, null if there is no such sensor.
+		 */
+		RuleExpr.Channel getChannel(String sensor, int component);
+
+		/**
+		 * Creates a window over a channel.
+		 *
+		 * @param channel channel returned by getChannel.
+		 * @param op RollingWindow.AVG, MIN, MAX or DELTA.
+		 * @param windowNs window length.
+		 * @return The new window.
+		 */
+		RollingWindow addWindow(RuleExpr.Channel channel, int op, long windowNs);
+	}
+
+	private static final double GRAVITY = 9.80665;
+
+	private final String mText;
+	private final Bindings mBindings;
+	private int mPos;
+	private long mForNs;
+
+	/**
+	 * Constructs RuleParser instance.
+	 *
+	 * @param text rule text.
+	 * @param bindings binds the signals and windows.
+	 */
+	RuleParser(String text, Bindings bindings) {
+		mText = text;
+		mBindings = bindings;
+	}
+
+	/**
+	 * Parses the whole rule.
+	 *
+	 * @return The condition of the rule.
+	 * @throws ParseException if the text is not a valid rule.
+	 */
+	RuleExpr parse() throws ParseException {
+		RuleExpr condition = parseOr();
+		if (acceptWord("for")) {
+			mForNs = parseDuration();
+		}
+		skipSpaces();
+		if (mPos < mText.length()) {
+			throw error("unexpected '" + mText.substring(mPos) + "'");
+		}
+		return condition;
+	}
+
+	/**
+	 * Gets the time the condition must hold before the rule fires.
+	 *
+	 * @return The "for" duration in nanoseconds, 0 if there is none.
+	 */
+	long getForNs() {
+		return mForNs;
+	}
+
+	private RuleExpr parseOr() throws ParseException {
+		RuleExpr left = parseAnd();
+		while (acceptWord("or")) {
+			left = new RuleExpr.Logic(RuleExpr.Logic.OR, left, parseAnd());
+		}
+		return left;
+	}
+
+	private RuleExpr parseAnd() throws ParseException {
+		RuleExpr left = parseNot();
+		while (acceptWord("and")) {
+			left = new RuleExpr.Logic(RuleExpr.Logic.AND, left, parseNot());
+		}
+		return left;
+	}
+
+	private RuleExpr parseNot() throws ParseException {
+		if (acceptWord("not")) {
+			return new RuleExpr.Logic(RuleExpr.Logic.NOT, parseNot(), null);
+		}
+		return parseComparison();
+	}
+
+	private RuleExpr parseComparison() throws ParseException {
+		RuleExpr left = parseSum();
+		int op;
+		if (accept("<=")) {
+			op = RuleExpr.Compare.LE;
+		} else if (accept(">=")) {
+			op = RuleExpr.Compare.GE;
+		} else if (accept("==")) {
+			op = RuleExpr.Compare.EQ;
+		} else if (accept("!=")) {
+			op = RuleExpr.Compare.NE;
+		} else if (accept("<")) {
+			op = RuleExpr.Compare.LT;
+		} else if (accept(">")) {
+			op = RuleExpr.Compare.GT;
+		} else {
+			return left;
+		}
+		return new RuleExpr.Compare(op, left, parseSum());
+	}
+
+	private RuleExpr parseSum() throws ParseException {
+		RuleExpr left = parseProduct();
+		while (true) {
+			if (accept("+")) {
+				left = new RuleExpr.Arithmetic('+', left, parseProduct());
+			} else if (accept("-")) {
+				left = new RuleExpr.Arithmetic('-', left, parseProduct());
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private RuleExpr parseProduct() throws ParseException {
+		RuleExpr left = parseUnary();
+		while (true) {
+			if (accept("*")) {
+				left = new RuleExpr.Arithmetic('*', left, parseUnary());
+			} else if (accept("/")) {
+				left = new RuleExpr.Arithmetic('/', left, parseUnary());
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private RuleExpr parseUnary() throws ParseException {
+		if (accept("-")) {
+			return new RuleExpr.Arithmetic('-', new RuleExpr.Const(0), parseUnary());
+		}
+		return parsePrimary();
+	}
+
+	private RuleExpr parsePrimary() throws ParseException {
+		skipSpaces();
+		if (mPos >= mText.length()) {
+			throw error("unexpected end of rule");
+		}
+		char c = mText.charAt(mPos);
+		if (Character.isDigit(c) || c == '.') {
+			int start = mPos;
+			double value = parseNumber();
+			String unit = parseWord();
+			if (unit.equals("g")) {
+				value *= GRAVITY;
+			} else if (unit.length() > 0) {
+				throw error("unknown unit '" + unit + "'", start);
+			}
+			return new RuleExpr.Const(value);
+		}
+		if (accept("(")) {
+			RuleExpr inner = parseOr();
+			expect(")");
+			return inner;
+		}
+		int start = mPos;
+		String name = parseName();
+		if (name.length() == 0) {
+			throw error("expected a value");
+		}
+		int op = getWindowOp(name);
+		if (op >= 0 && accept("(")) {
+			int signal = mPos;
+			String signalName = parseName();
+			expect(",");
+			long windowNs = parseDuration();
+			expect(")");
+			RuleExpr.Channel channel = bind(signalName, signal);
+			return new RuleExpr.Window(mBindings.addWindow(channel, op, windowNs));
+		}
+		return new RuleExpr.Latest(bind(name, start));
+	}
+
+	private static int getWindowOp(String name) {
+		if (name.equals("avg")) {
+			return RollingWindow.AVG;
+		} else if (name.equals("min")) {
+			return RollingWindow.MIN;
+		} else if (name.equals("max")) {
+			return RollingWindow.MAX;
+		} else if (name.equals("delta")) {
+			return RollingWindow.DELTA;
+		}
+		return -1;
+	}
+
+	/**
+	 * Binds "sensor[.component]" to a channel.
+	 */
+	private RuleExpr.Channel bind(String signal, int position) throws ParseException {
+		int dot = signal.lastIndexOf('.');
+		String sensor = dot < 0 ? signal : signal.substring(0, dot);
+		String component = dot < 0 ? "" : signal.substring(dot + 1);
+		int index;
+		if (component.length() == 0 || component.equals("x")) {
+			index = 0;
+		} else if (component.equals("y")) {
+			index = 1;
+		} else if (component.equals("z")) {
+			index = 2;
+		} else if (component.equals("mag")) {
+			index = RuleExpr.Channel.MAGNITUDE;
+		} else if (component.length() == 1 && component.charAt(0) >= '0' && component.charAt(0) <= '5') {
+			index = component.charAt(0) - '0';
+		} else {
+			throw error("unknown component '" + component + "'", position);
+		}
+		RuleExpr.Channel channel = mBindings.getChannel(sensor, index);
+		if (channel == null) {
+			throw error("unknown sensor '" + sensor + "'", position);
+		}
+		return channel;
+	}
+
+	private long parseDuration() throws ParseException {
+		skipSpaces();
+		int start = mPos;
+		double value = parseNumber();
+		String unit = parseWord();
+		double scale;
+		if (unit.equals("ms")) {
+			scale = 1e6;
+		} else if (unit.equals("s")) {
+			scale = 1e9;
+		} else if (unit.equals("min")) {
+			scale = 60e9;
+		} else if (unit.equals("h")) {
+			scale = 3600e9;
+		} else {
+			throw error("expected a duration such as 200ms, 10s, 10min or 1h", start);
+		}
+		return (long) (value * scale);
+	}
+
+	private double parseNumber() throws ParseException {
+		skipSpaces();
+		int start = mPos;
+		while (mPos < mText.length()
+				&& (Character.isDigit(mText.charAt(mPos)) || mText.charAt(mPos) == '.')) {
+			mPos++;
+		}
+		try {
+			return Double.parseDouble(mText.substring(start, mPos));
+		} catch (NumberFormatException e) {
+			throw error("expected a number", start);
+		}
+	}
+
+	/** Reads letters right after the current position, e.g. a unit. */
+	private String parseWord() {
+		int start = mPos;
+		while (mPos < mText.length() && Character.isLetter(mText.charAt(mPos))) {
+			mPos++;
+		}
+		return mText.substring(start, mPos);
+	}
+
+	/** Reads a name: a letter, then letters, digits, '_', '-' or '.'. */
+	private String parseName() {
+		skipSpaces();
+		int start = mPos;
+		if (mPos < mText.length() && Character.isLetter(mText.charAt(mPos))) {
+			mPos++;
+			while (mPos < mText.length()) {
+				char c = mText.charAt(mPos);
+				if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+					break;
+				}
+				mPos++;
+			}
+		}
+		return mText.substring(start, mPos);
+	}
+
+	private boolean accept(String token) {
+		skipSpaces();
+		if (mText.startsWith(token, mPos)) {
+			mPos += token.length();
+			return true;
+		}
+		return false;
+	}
+
+	/** Accepts a keyword, but not as the prefix of a longer name. */
+	private boolean acceptWord(String word) {
+		skipSpaces();
+		int end = mPos + word.length();
+		if (mText.startsWith(word, mPos)
+				&& (end == mText.length() || !Character.isLetterOrDigit(mText.charAt(end)))) {
+			mPos = end;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) throws ParseException {
+		if (!accept(token)) {
+			throw error("expected '" + token + "'");
+		}
+	}
+
+	private void skipSpaces() {
+		while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+			mPos++;
+		}
+	}
+
+	private ParseException error(String message) {
+		return error(message, mPos);
+	}
+
+	private ParseException error(String message, int position) {
+		return new ParseException(message + " at " + position + " in: " + mText, position);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Debounces the condition of a rule: fires once when the condition has held
+ * for a minimum time, and re-arms when the condition becomes false.
+ */
+final class RuleTrigger {
+
+	private static final long NOT_HOLDING = Long.MIN_VALUE;
+
+	private final RuleExpr mCondition;
+	private final long mForNs;
+	/** Time stamp since which the condition holds, or NOT_HOLDING. */
+	private long mSinceNs = NOT_HOLDING;
+	private boolean mFired;
+
+	/**
+	 * Constructs RuleTrigger instance.
+	 *
+	 * @param condition condition of the rule.
+	 * @param forNs time the condition must hold before firing, 0 to fire at once.
+	 */
+	RuleTrigger(RuleExpr condition, long forNs) {
+		mCondition = condition;
+		mForNs = forNs;
+	}
+
+	/**
+	 * Re-evaluates the condition after a sample.
+	 *
+	 * @param timestampNs time stamp of the sample.
+	 * @return true if the trigger fires at this sample.
+	 */
+	boolean update(long timestampNs) {
+		if (!RuleExpr.isTrue(mCondition.eval(timestampNs))) {
+			mSinceNs = NOT_HOLDING;
+			mFired = false;
+			return false;
+		}
+		if (mSinceNs == NOT_HOLDING) {
+			mSinceNs = timestampNs;
+		}
+		if (!mFired && timestampNs - mSinceNs >= mForNs) {
+			mFired = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether the trigger fired and has not re-armed yet.
+	 *
+	 * @return true while the condition that fired the trigger still holds.
+	 */
+	boolean isFiring() {
+		return mFired;
+	}
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Incremental data-quality checks for the raw stream of one sensor: gaps,
+ * stalls, stuck values, saturation, non-monotonic time stamps and accuracy.
+ * <p/>
+ * Every check costs O(1) per sample and keeps no history beyond the previous
+ * sample. A problem raises a flag that stays set for {@link #HOLD_NS} after
+ * the last occurrence, so short glitches remain visible in the UI.
+ * <p/>
+ * Two clocks are involved. Intervals and monotonicity are checked on the
+ * SensorEvent.timestamp of the samples, which some devices do not keep on
+ * the elapsed realtime clock. Stalls and the hold of the flags are tracked on
+ * the arrival time of the samples, on the {@link LatencyTrace#now} clock, the
+ * same as the times passed to {@link #checkStall} and {@link #getFlags}.
+ */
+public class SampleQuality {
+
+	/** Interval between two samples much longer than usual. */
+	public static final int FLAG_GAP = 1;
+	/** No sample for much longer than usual, checked from outside the event path. */
+	public static final int FLAG_STALLED = 1 << 1;
+	/** The same values repeated for many samples in a row. */
+	public static final int FLAG_STUCK = 1 << 2;
+	/** A value at the maximum range of the sensor. */
+	public static final int FLAG_SATURATED = 1 << 3;
+	/** A time stamp not after the previous one. */
+	public static final int FLAG_NON_MONOTONIC = 1 << 4;
+	/** The sensor reported SENSOR_STATUS_UNRELIABLE. */
+	public static final int FLAG_UNRELIABLE = 1 << 5;
+
+	private static final int FLAG_COUNT = 6;
+	private static final String[] FLAG_NAMES = {
+		"gap", "stalled", "stuck", "saturated", "non-monotonic", "unreliable"
+	};
+
+	/** How long a flag stays raised after the last occurrence. */
+	public static final long HOLD_NS = 5000000000L; // 5s
+	/** Interval, in multiples of the usual interval, considered a gap. */
+	private static final int GAP_FACTOR = 5;
+	/** Samples needed before the usual interval is trusted. */
+	private static final int WARMUP_SAMPLES = 16;
+	/** Long intervals in a row after which they are the new usual interval. */
+	private static final int RECONVERGE_SAMPLES = 8;
+	/** Identical samples in a row considered stuck. */
+	private static final int STUCK_SAMPLES = 100;
+	/** Fraction of the maximum range considered saturated. */
+	private static final float SATURATION = 0.999f;
+	/** Maximum number of components checked. */
+	private static final int MAX_VALUES = 6;
+
+	/** Only continuous sensors are expected to report at a steady pace. */
+	private final boolean mContinuous;
+	private final float mSaturationLimit;
+	/** Leading values checked for saturation. */
+	private final int mSaturationValues;
+
+	/** Time stamp of the last sample, on the SensorEvent.timestamp clock. */
+	private long mLastNs;
+	/** Arrival of the last sample, on the LatencyTrace.now() clock. */
+	private long mArrivalNs;
+	/** Exponential moving average of the sample interval. */
+	private long mIntervalNs;
+	/** Long intervals in a row, kept out of the average so far. */
+	private int mLongIntervals;
+	/** Batching latency, which delays the arrival of samples. */
+	private long mLatencyNs;
+	private int mSamples;
+	private final float[] mLast = new float[MAX_VALUES];
+	private int mRepeats;
+	private int mAccuracy = -1;
+
+	/** Arrival time of the last occurrence of each flag, 0 if never. */
+	private final long[] mRaisedNs = new long[FLAG_COUNT];
+	private final long[] mCounts = new long[FLAG_COUNT];
+
+	/**
+	 * Constructs SampleQuality instance.
+	 *
+	 * @param continuous true if the sensor reports at a steady rate, i.e. its
+	 *            minimum delay is not 0.
+	 * @param maximumRange Sensor.getMaximumRange(), 0 if unknown.
+	 * @param saturationValues number of leading values that measure a physical
+	 *            quantity up to maximumRange, see {@link #getSaturationValues}.
+	 */
+	public SampleQuality(boolean continuous, float maximumRange, int saturationValues) {
+		mContinuous = continuous;
+		mSaturationLimit = maximumRange > 0 ? maximumRange * SATURATION : Float.MAX_VALUE;
+		mSaturationValues = continuous ? Math.min(saturationValues, MAX_VALUES) : 0;
+	}
+
+	/**
+	 * Gets the values of a sensor type that can saturate. Only the axes of
+	 * the accelerometer, gyroscope and magnetometer, calibrated or not, are
+	 * clipped at the maximum range; other sensors may legitimately report it,
+	 * e.g. a proximity sensor reports "far" as its maximum range and a step
+	 * detector its only value, 1.
+	 *
+	 * @param type Sensor.getType().
+	 * @return Number of leading values to check, 0 for none.
+	 */
+	public static int getSaturationValues(int type) {
+		switch (type) {
+		case 1: // Sensor.TYPE_ACCELEROMETER
+		case 2: // Sensor.TYPE_MAGNETIC_FIELD
+		case 4: // Sensor.TYPE_GYROSCOPE
+		// The uncalibrated sensors are followed by their bias, which is not measured.
+		case 14: // Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED
+		case 16: // Sensor.TYPE_GYROSCOPE_UNCALIBRATED
+		case 35: // Sensor.TYPE_ACCELEROMETER_UNCALIBRATED
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Checks one sample.
+	 *
+	 * @param timestampNs SensorEvent.timestamp.
+	 * @param arrivalNs time the sample was received, on the LatencyTrace.now() clock.
+	 * @param values sample values.
+	 * @param count number of valid values.
+	 * @return Flags raised by this sample that were not raised before, 0 if none.
+	 */
+	public int onSample(long timestampNs, long arrivalNs, float[] values, int count) {
+		int raised = 0;
+		if (count > MAX_VALUES) {
+			count = MAX_VALUES;
+		}
+
+		if (mSamples > 0) {
+			long interval = timestampNs - mLastNs;
+			if (interval <= 0) {
+				raised |= raise(FLAG_NON_MONOTONIC, arrivalNs);
+			} else if (mContinuous) {
+				if (mSamples > WARMUP_SAMPLES && interval > GAP_FACTOR * mIntervalNs
+						&& ++mLongIntervals < RECONVERGE_SAMPLES) {
+					// Gaps are kept out of the average so that they keep standing out.
+					raised |= raise(FLAG_GAP, arrivalNs);
+				} else if (mLongIntervals >= RECONVERGE_SAMPLES) {
+					// Too many to be gaps: the rate dropped, e.g. to save power.
+					mIntervalNs = interval;
+					mLongIntervals = 0;
+				} else {
+					mIntervalNs = mIntervalNs == 0 ? interval : mIntervalNs + (interval - mIntervalNs) / 8;
+					mLongIntervals = 0;
+				}
+			}
+		}
+
+		boolean same = mSamples > 0;
+		boolean saturated = false;
+		for (int i = 0; i < count; i++) {
+			float v = values[i];
+			same &= v == mLast[i];
+			saturated |= i < mSaturationValues && Math.abs(v) >= mSaturationLimit;
+			mLast[i] = v;
+		}
+		if (saturated) {
+			raised |= raise(FLAG_SATURATED, arrivalNs);
+		}
+		mRepeats = same ? mRepeats + 1 : 0;
+		if (mContinuous && mRepeats >= STUCK_SAMPLES) {
+			raised |= raise(FLAG_STUCK, arrivalNs);
+		}
+
+		mLastNs = timestampNs;
+		mArrivalNs = arrivalNs;
+		mSamples++;
+		return raised;
+	}
+
+	/**
+	 * Tracks the accuracy reported through onAccuracyChanged.
+	 *
+	 * @param accuracy one of the SensorManager.SENSOR_STATUS_XXX constants.
+	 * @param nowNs current time, on the LatencyTrace.now() clock.
+	 * @return Flags raised by this change that were not raised before, 0 if none.
+	 */
+	public int onAccuracy(int accuracy, long nowNs) {
+		mAccuracy = accuracy;
+		return accuracy == 0 /* SENSOR_STATUS_UNRELIABLE */ ? raise(FLAG_UNRELIABLE, nowNs) : 0;
+	}
+
+	/**
+	 * Checks for a sensor that stopped reporting. Meant to be called
+	 * periodically, since a stalled sensor produces no samples to check.
+	 *
+	 * @param nowNs current time, on the LatencyTrace.now() clock.
+	 * @return Flags raised by this check that were not raised before, 0 if none.
+	 */
+	public int checkStall(long nowNs) {
+		if (mContinuous && mSamples > WARMUP_SAMPLES
+				&& nowNs - mArrivalNs > GAP_FACTOR * mIntervalNs + mLatencyNs) {
+			return raise(FLAG_STALLED, nowNs);
+		}
+		return 0;
+	}
+
+	/**
+	 * Restarts interval tracking, e.g. after the listener was re-registered,
+	 * so that the pause does not count as a gap. Flags and counts are kept.
+	 */
+	public void restart() {
+		mSamples = 0;
+		mIntervalNs = 0;
+		mLongIntervals = 0;
+		mRepeats = 0;
+	}
+
+	/**
+	 * Sets the batching latency of the sensor. Batched samples arrive in
+	 * bursts, up to the latency apart, which is not a stall.
+	 *
+	 * @param latencyNs batching latency, 0 for none.
+	 */
+	public void setLatency(long latencyNs) {
+		mLatencyNs = latencyNs;
+	}
+
+	/**
+	 * Gets the flags raised within {@link #HOLD_NS} of a given time.
+	 *
+	 * @param nowNs current time, on the LatencyTrace.now() clock.
+	 * @return Bit mask of FLAG_XXX constants.
+	 */
+	public int getFlags(long nowNs) {
+		int flags = 0;
+		for (int i = 0; i < FLAG_COUNT; i++) {
+			if (mRaisedNs[i] != 0 && nowNs - mRaisedNs[i] < HOLD_NS) {
+				flags |= 1 << i;
+			}
+		}
+		if (mAccuracy == 0) {
+			flags |= FLAG_UNRELIABLE;
+		}
+		return flags;
+	}
+
+	/**
+	 * Gets how often a flag was raised.
+	 *
+	 * @param flag one FLAG_XXX constant.
+	 * @return Occurrences since construction.
+	 */
+	public long getCount(int flag) {
+		return mCounts[Integer.numberOfTrailingZeros(flag)];
+	}
+
+	/**
+	 * Gets the last reported accuracy.
+	 *
+	 * @return One of the SensorManager.SENSOR_STATUS_XXX constants, -1 if none.
+	 */
+	public int getAccuracy() {
+		return mAccuracy;
+	}
+
+	/**
+	 * Formats a set of flags for display.
+	 *
+	 * @param flags bit mask of FLAG_XXX constants.
+	 * @return Comma separated flag names, empty if no flag is set.
+	 */
+	public static String describe(int flags) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < FLAG_COUNT; i++) {
+			if ((flags & (1 << i)) != 0) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(FLAG_NAMES[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Records one occurrence of a flag.
+	 *
+	 * @return The flag if it was not raised within HOLD_NS, 0 otherwise.
+	 */
+	private int raise(int flag, long nowNs) {
+		int i = Integer.numberOfTrailingZeros(flag);
+		boolean rising = mRaisedNs[i] == 0 || nowNs - mRaisedNs[i] >= HOLD_NS;
+		mRaisedNs[i] = nowNs;
+		mCounts[i]++;
+		return rising ? flag : 0;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single-writer ring of sensor samples laid out in a shared byte buffer, so
+ * that readers in other processes can map the same memory and read at their
+ * own pace without any call into this process.
+ * <p/>
+ * Layout, in native byte order:
+ * <pre>
+ * header (64 bytes):
+ *   0  int  MAGIC
+ *   4  int  VERSION
+ *   8  int  capacity, in slots, a power of two
+ *  12  int  SLOT_SIZE
+ *  16  long number of samples written so far
+ * slot i (SLOT_SIZE bytes) holds sample n where n % capacity == i:
+ *   0  long sequence: 2n+1 while being written, 2n+2 once complete
+ *   8  int  sensor type
+ *  12  int  value count
+ *  16  long SensorEvent.timestamp
+ *  24  float[MAX_VALUES] values
+ *  56  int  checksum of n and the sample, see {@link #checksum}
+ * </pre>
+ * A reader wanting sample n checks that the slot sequence is 2n+2 before and
+ * after copying the slot; anything else means the sample is not written yet,
+ * or was overwritten because the reader fell behind by more than capacity.
+ * The writer never blocks and never waits for readers.
+ * <p/>
+ * The sequence checks alone would need the stores of the writer and the
+ * loads of the reader to stay in program order, which plain accesses to
+ * shared memory do not promise, and nothing in the Java memory model orders
+ * them across processes. So the writer also stores a checksum after the
+ * sample, and the reader only accepts a copy that matches it: a slot read
+ * while being written, or holding another sample, is detected whatever the
+ * order in which the stores become visible.
+ */
+public class SampleRing {
+
+	public static final int MAGIC = 0x53524e47; // "SRNG"
+	public static final int VERSION = 2;
+	public static final int HEADER_SIZE = 64;
+	public static final int SLOT_SIZE = 64;
+	public static final int MAX_VALUES = 8;
+
+	static final int OFF_MAGIC = 0;
+	static final int OFF_VERSION = 4;
+	static final int OFF_CAPACITY = 8;
+	static final int OFF_SLOT_SIZE = 12;
+	static final int OFF_WRITTEN = 16;
+
+	static final int SLOT_SEQ = 0;
+	static final int SLOT_TYPE = 8;
+	static final int SLOT_COUNT = 12;
+	static final int SLOT_TIMESTAMP = 16;
+	static final int SLOT_VALUES = 24;
+	static final int SLOT_CHECKSUM = 56;
+
+	private final ByteBuffer mBuffer;
+	private final int mMask;
+	private long mWritten;
+
+	/**
+	 * Constructs SampleRing instance, and initializes the header.
+	 *
+	 * @param buffer shared buffer of at least {@link #bufferSize(int)} bytes.
+	 * @param capacity number of slots, a power of two.
+	 */
+	public SampleRing(ByteBuffer buffer, int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		if (buffer.capacity() < bufferSize(capacity)) {
+			throw new IllegalArgumentException("buffer too small for " + capacity + " slots");
+		}
+		mBuffer = buffer.order(ByteOrder.nativeOrder());
+		mMask = capacity - 1;
+		mBuffer.putInt(OFF_MAGIC, MAGIC);
+		mBuffer.putInt(OFF_VERSION, VERSION);
+		mBuffer.putInt(OFF_CAPACITY, capacity);
+		mBuffer.putInt(OFF_SLOT_SIZE, SLOT_SIZE);
+		mBuffer.putLong(OFF_WRITTEN, 0);
+	}
+
+	/**
+	 * Computes the buffer size needed for a ring.
+	 *
+	 * @param capacity number of slots.
+	 * @return Size in bytes.
+	 */
+	public static int bufferSize(int capacity) {
+		return HEADER_SIZE + capacity * SLOT_SIZE;
+	}
+
+	/**
+	 * Appends one sample, overwriting the oldest one if the ring is full.
+	 * Must only be called from a single thread.
+	 *
+	 * @param type sensor type.
+	 * @param timestampNs SensorEvent.timestamp.
+	 * @param values sample values; only the first MAX_VALUES are kept.
+	 * @param count number of valid values.
+	 */
+	public void write(int type, long timestampNs, float[] values, int count) {
+		final ByteBuffer buffer = mBuffer;
+		final long n = mWritten;
+		final int slot = HEADER_SIZE + (int) (n & mMask) * SLOT_SIZE;
+		if (count > MAX_VALUES) {
+			count = MAX_VALUES;
+		}
+
+		buffer.putLong(slot + SLOT_SEQ, 2 * n + 1);
+		buffer.putInt(slot + SLOT_TYPE, type);
+		buffer.putInt(slot + SLOT_COUNT, count);
+		buffer.putLong(slot + SLOT_TIMESTAMP, timestampNs);
+		int hash = checksum(n, type, count, timestampNs);
+		for (int i = 0; i < count; i++) {
+			float value = values[i];
+			buffer.putFloat(slot + SLOT_VALUES + 4 * i, value);
+			hash = checksum(hash, Float.floatToRawIntBits(value));
+		}
+		buffer.putInt(slot + SLOT_CHECKSUM, hash);
+		buffer.putLong(slot + SLOT_SEQ, 2 * n + 2);
+		mWritten = n + 1;
+		buffer.putLong(OFF_WRITTEN, n + 1);
+	}
+
+	/**
+	 * Starts the checksum of a sample. Sample number n is part of it, so that
+	 * an older sample left in the slot does not pass for sample n.
+	 *
+	 * @return Checksum of the fixed fields; add each value with
+	 *         {@link #checksum(int, int)}.
+	 */
+	public static int checksum(long n, int type, int count, long timestampNs) {
+		int hash = checksum((int) n, (int) (n >>> 32));
+		hash = checksum(hash, type);
+		hash = checksum(hash, count);
+		hash = checksum(hash, (int) timestampNs);
+		return checksum(hash, (int) (timestampNs >>> 32));
+	}
+
+	/**
+	 * Adds one word to a checksum.
+	 *
+	 * @param hash checksum so far.
+	 * @param word next word, e.g. Float.floatToRawIntBits of a value.
+	 * @return Updated checksum.
+	 */
+	public static int checksum(int hash, int word) {
+		// Murmur3 mixing: every bit of the word affects the whole hash.
+		word *= 0xcc9e2d51;
+		word = Integer.rotateLeft(word, 15) * 0x1b873593;
+		hash ^= word;
+		return Integer.rotateLeft(hash, 13) * 5 + 0xe6546b64;
+	}
+
+	/**
+	 * Gets the number of samples written so far.
+	 *
+	 * @return Samples written since construction.
+	 */
+	public long getWritten() {
+		return mWritten;
+	}
+}
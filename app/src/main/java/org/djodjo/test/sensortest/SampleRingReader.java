@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads samples from a {@link SampleRing} mapped into this process. Each
+ * reader keeps its own cursor, so any number of readers can follow the same
+ * ring at different paces. Readers that fall behind by more than the ring
+ * capacity skip ahead and count the samples they lost.
+ * <p/>
+ * Depends on java.nio only, so it can be copied into client apps as is.
+ */
+public class SampleRingReader {
+
+	/** Destination for one sample; reused across reads to avoid allocation. */
+	public static class Sample {
+		public int type;
+		public int count;
+		public long timestampNs;
+		public final float[] values = new float[SampleRing.MAX_VALUES];
+	}
+
+	private final ByteBuffer mBuffer;
+	private final int mCapacity;
+	private final int mMask;
+	private long mNext;
+	private long mLost;
+
+	/**
+	 * Constructs SampleRingReader instance, starting at the newest sample.
+	 *
+	 * @param buffer read-only mapping of the ring.
+	 * @throws IllegalArgumentException if the buffer does not hold a ring.
+	 */
+	public SampleRingReader(ByteBuffer buffer) {
+		mBuffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+		if (mBuffer.getInt(SampleRing.OFF_MAGIC) != SampleRing.MAGIC
+				|| mBuffer.getInt(SampleRing.OFF_VERSION) != SampleRing.VERSION
+				|| mBuffer.getInt(SampleRing.OFF_SLOT_SIZE) != SampleRing.SLOT_SIZE) {
+			throw new IllegalArgumentException("not a sample ring");
+		}
+		mCapacity = mBuffer.getInt(SampleRing.OFF_CAPACITY);
+		mMask = mCapacity - 1;
+		mNext = mBuffer.getLong(SampleRing.OFF_WRITTEN);
+	}
+
+	/**
+	 * Reads the next sample, if any.
+	 *
+	 * @param out receives the sample.
+	 * @return true if a sample was read, false if the reader caught up.
+	 */
+	public boolean poll(Sample out) {
+		final ByteBuffer buffer = mBuffer;
+		while (true) {
+			long written = buffer.getLong(SampleRing.OFF_WRITTEN);
+			if (mNext >= written) {
+				return false;
+			}
+			if (written - mNext > mCapacity) {
+				// Overwritten before we got to it.
+				mLost += written - mCapacity - mNext;
+				mNext = written - mCapacity;
+			}
+			final long n = mNext;
+			final int slot = SampleRing.HEADER_SIZE + (int) (n & mMask) * SampleRing.SLOT_SIZE;
+			final long expected = 2 * n + 2;
+			if (buffer.getLong(slot + SampleRing.SLOT_SEQ) != expected) {
+				// Being overwritten right now; skip it.
+				mNext++;
+				mLost++;
+				continue;
+			}
+			int count = buffer.getInt(slot + SampleRing.SLOT_COUNT);
+			if (count > SampleRing.MAX_VALUES || count < 0) {
+				count = 0;
+			}
+			out.type = buffer.getInt(slot + SampleRing.SLOT_TYPE);
+			out.timestampNs = buffer.getLong(slot + SampleRing.SLOT_TIMESTAMP);
+			int hash = SampleRing.checksum(n, out.type, count, out.timestampNs);
+			for (int i = 0; i < count; i++) {
+				int bits = buffer.getInt(slot + SampleRing.SLOT_VALUES + 4 * i);
+				out.values[i] = Float.intBitsToFloat(bits);
+				hash = SampleRing.checksum(hash, bits);
+			}
+			out.count = count;
+			mNext++;
+			// The checksum catches what the sequence misses when the copy
+			// raced the writer, whatever the memory ordering.
+			if (buffer.getInt(slot + SampleRing.SLOT_CHECKSUM) == hash
+					&& buffer.getLong(slot + SampleRing.SLOT_SEQ) == expected) {
+				return true;
+			}
+			// Torn read, the writer lapped us while copying.
+			mLost++;
+		}
+	}
+
+	/**
+	 * Gets the number of samples skipped because the reader fell behind.
+	 *
+	 * @return Lost samples since construction.
+	 */
+	public long getLost() {
+		return mLost;
+	}
+}
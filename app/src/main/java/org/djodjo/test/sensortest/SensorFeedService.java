@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Shares the samples of one set of sensor registrations with any number of
+ * processes.
+ * <p/>
+ * The registrations are those of the shared {@link SensorHelper}, also used
+ * by the UI, and every raw sample goes to the feed, before the UI throttle
+ * and the deadband. The sample rate is the one the helper registered with,
+ * e.g. lowered by the adaptive rate controller or a power plan.
+ * <p/>
+ * Samples are written into a {@link SampleRing} backed by a memory-mapped
+ * file. A client binds to this service once, calls {@link #getFeed(IBinder)}
+ * to receive a read-only descriptor of that file, maps it and follows the ring
+ * with a {@link SampleRingReader}. No Binder call is made per sample, and the
+ * sensors stay registered only while at least one client is bound.
+ */
+public class SensorFeedService extends Service {
+
+	private static final String TAG = SensorFeedService.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+	/** Binder interface descriptor. */
+	public static final String DESCRIPTOR = "org.djodjo.test.sensortest.ISensorFeed";
+	/** Returns the ring file descriptor. No arguments. */
+	public static final int TRANSACTION_GET_FEED = IBinder.FIRST_CALL_TRANSACTION;
+
+	/** Ring capacity in samples; several seconds of all sensors at full rate. */
+	private static final int CAPACITY = 4096;
+
+	private File mFile;
+	private SampleRing mRing;
+	private SensorHelper mSensorHelper;
+	/** Whether the feed holds a startSensors call on the shared helper. */
+	private boolean mStarted;
+
+	private final SensorHelper.SampleListener mWriter = new SensorHelper.SampleListener() {
+		@Override
+		public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+			mRing.write(sensor.getType(), timestampNs, values, count);
+		}
+	};
+
+	private final Binder mBinder = new Binder() {
+		@Override
+		protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+				throws RemoteException {
+			if (code != TRANSACTION_GET_FEED) {
+				return super.onTransact(code, data, reply, flags);
+			}
+			data.enforceInterface(DESCRIPTOR);
+			reply.writeNoException();
+			try {
+				ParcelFileDescriptor pfd = ParcelFileDescriptor.open(mFile,
+						ParcelFileDescriptor.MODE_READ_ONLY);
+				reply.writeInt(1);
+				pfd.writeToParcel(reply, Parcel.PARCELABLE_WRITE_RETURN_VALUE);
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot open sensor feed", e);
+				reply.writeInt(0);
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Client side of {@link #TRANSACTION_GET_FEED}.
+	 *
+	 * @param service binder received in onServiceConnected.
+	 * @return Read-only descriptor of the ring, to be mapped by the caller,
+	 *         or null if the service could not open it.
+	 * @throws RemoteException if the service died.
+	 */
+	public static ParcelFileDescriptor getFeed(IBinder service) throws RemoteException {
+		Parcel data = Parcel.obtain();
+		Parcel reply = Parcel.obtain();
+		try {
+			data.writeInterfaceToken(DESCRIPTOR);
+			service.transact(TRANSACTION_GET_FEED, data, reply, 0);
+			reply.readException();
+			return reply.readInt() != 0 ? reply.readFileDescriptor() : null;
+		} finally {
+			reply.recycle();
+			data.recycle();
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mFile = new File(getCacheDir(), "sensor-feed.ring");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+			try {
+				int size = SampleRing.bufferSize(CAPACITY);
+				raf.setLength(size);
+				mRing = new SampleRing(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size),
+						CAPACITY);
+			} finally {
+				// The mapping stays valid after the file is closed.
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot map sensor feed", e);
+			return;
+		}
+		mSensorHelper = SensorHelper.getInstance(this);
+		mSensorHelper.addRawSampleListener(mWriter);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		if (mSensorHelper == null) {
+			return null;
+		}
+		if (DEBUG) Log.d(TAG, "onBind");
+		if (!mStarted) {
+			mStarted = true;
+			mSensorHelper.onEnableSensor("all");
+			mSensorHelper.startSensors();
+		}
+		return mBinder;
+	}
+
+	@Override
+	public boolean onUnbind(Intent intent) {
+		if (DEBUG) Log.d(TAG, "onUnbind");
+		// Last client gone.
+		stopFeed();
+		return false;
+	}
+
+	@Override
+	public void onDestroy() {
+		stopFeed();
+		if (mSensorHelper != null) {
+			mSensorHelper.removeRawSampleListener(mWriter);
+			mSensorHelper = null;
+		}
+		if (mFile != null) {
+			mFile.delete();
+		}
+		super.onDestroy();
+	}
+
+	/**
+	 * Releases the sensors, which keep running if the UI still uses them.
+	 */
+	private void stopFeed() {
+		if (mStarted && mSensorHelper != null) {
+			mStarted = false;
+			mSensorHelper.stopSensors();
+		}
+	}
+}
@@ -2,14 +2,12 @@ package org.djodjo.test.sensortest;
 
 import java.util.ArrayList;
 import java.util.List;
-import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.hardware.TriggerEvent;
-import android.hardware.TriggerEventListener;
 import android.os.Build;
 import android.os.Message;
 import android.os.SystemClock;
@@ -33,19 +31,99 @@ public class SensorHelper {
 	 * Default value should match res/values/strings.xml > sensors_default_sample_rate.
 	 */
 	private long mUpdateTargetMs = 1000/20; // 20 fps in milliseconds
+	/**
+	 * The update time per sensor actually applied. Equals mUpdateTargetMs
+	 * unless the adaptive rate controller backed it off.
+	 */
+	private long mEffectiveUpdateTargetMs = mUpdateTargetMs;
+	/** Minimum time between two UI updates of the same sensor. */
+	private long mUiUpdateMs = 1000 / 4; // 4 fps in milliseconds
+	/** Backs sampling and UI periods off under load, when enabled. */
+	private final RateController mRateController =
+			new RateController(mUpdateTargetMs, 1000 / 2, mUiUpdateMs, 1000);
+	/** Whether the adaptive rate controller is in charge. */
+	private boolean mAdaptiveRate = false;
 	/** Accumulates average update frequency. */
 	private long mGlobalAvgUpdateMs = 0;
 
+	/** Instance shared by the consumers of this process, see getInstance. */
+	private static SensorHelper sInstance;
+
 	/** Array containing monitored sensors. */
 	private final List<MonitoredSensor> mSensors = new ArrayList<MonitoredSensor>();
+	/** startSensors calls not yet matched by stopSensors. */
+	private int mStartCount;
 	/** Sensor manager. */
 	private SensorManager mSenMan;
+	/** Counters and histograms for the event path. */
+	private final SensorMetrics mMetrics = new SensorMetrics();
+	/** Keeps one-shot sensors armed. Null before API 18. */
+	private TriggerSensorManager mTriggers;
 
 	/*
 	 * Messages exchanged with the UI.
 	 */
 	/** Lists UI handlers attached to this channel. */
 	private final List<android.os.Handler> mUiHandlers = new ArrayList<android.os.Handler>();
+	/** Lists consumers of the samples that pass the deadband. */
+	private final List<SampleListener> mSampleListeners = new ArrayList<SampleListener>();
+	/** Lists consumers of every sample, before throttling and deadband. */
+	private final List<SampleListener> mRawSampleListeners = new ArrayList<SampleListener>();
+	/** Lists consumers of data-quality problems. */
+	private final List<QualityListener> mQualityListeners = new ArrayList<QualityListener>();
+
+	/** Number of data-quality annotations kept for dumps. */
+	private static final int QUALITY_LOG_SIZE = 64;
+	/** Ring of recent data-quality annotations: time, sensor and flags raised. */
+	private final long[] mQualityLogNs = new long[QUALITY_LOG_SIZE];
+	private final MonitoredSensor[] mQualityLogSensor = new MonitoredSensor[QUALITY_LOG_SIZE];
+	private final int[] mQualityLogFlags = new int[QUALITY_LOG_SIZE];
+	private int mQualityLogCount;
+
+	/** Type of the virtual sensor publishing bias-corrected gyroscope rates. */
+	public static final int TYPE_VIRTUAL_GYROSCOPE_CALIBRATED = -100;
+	/** Type of the virtual sensor publishing hard/soft-iron corrected magnetic field. */
+	public static final int TYPE_VIRTUAL_MAGNETIC_FIELD_CALIBRATED = -101;
+	/** Type of the virtual sensor publishing the recognized motion state. */
+	public static final int TYPE_VIRTUAL_ACTIVITY = -102;
+
+	/** Processing time of one event assumed until the metrics measure it. */
+	private static final float DEFAULT_EVENT_COST_US = 20;
+
+	/** Classifies the motion state, null without an accelerometer. */
+	private ActivityRecognizer mActivity;
+
+	/**
+	 * Receives the samples of all monitored sensors that pass the throttle and
+	 * the deadband, e.g. to record or forward them.
+	 * Called on the thread that delivers sensor events, i.e. the main looper.
+	 */
+	public interface SampleListener {
+		/**
+		 * Handles one sample.
+		 *
+		 * @param sensor sensor that produced the sample.
+		 * @param timestampNs SensorEvent.timestamp of the sample.
+		 * @param values sample values. Only valid during this call.
+		 * @param count number of valid values.
+		 */
+		void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count);
+	}
+
+	/**
+	 * Receives data-quality problems as they are detected, e.g. to annotate a
+	 * recording. Called on the main looper.
+	 */
+	public interface QualityListener {
+		/**
+		 * Handles newly raised data-quality flags.
+		 *
+		 * @param sensor sensor with the problem.
+		 * @param timestampNs time of detection, on the SensorEvent.timestamp clock.
+		 * @param flags SampleQuality.FLAG_XXX constants raised.
+		 */
+		void onQualityEvent(MonitoredSensor sensor, long timestampNs, int flags);
+	}
 
 	/**
 	 * Sensor "enabled by emulator" state has changed. Parameter {@code obj} is
@@ -57,14 +135,24 @@ public class SensorHelper {
 	 * {@link MonitoredSensor}.
 	 */
 	public static final int SENSOR_DISPLAY_MODIFIED = 2;
+	/**
+	 * Sensor data-quality flags have changed. Parameter {@code obj} is the
+	 * {@link MonitoredSensor}.
+	 */
+	public static final int SENSOR_QUALITY_CHANGED = 3;
 
 	/**
-	 * Constructs SensorHelper instance.
+	 * Constructs SensorHelper instance, enumerating the sensors. This queries
+	 * the sensor service and may take a while, so it can run on a background
+	 * thread; hand the instance to the main looper before starting sensors.
 	 *
 	 * @param context app context.
 	 */
 	public SensorHelper(Context context) {
 		mSenMan = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		if (TriggerSensorManager.isSupported()) {
+			mTriggers = new TriggerSensorManager(mSenMan);
+		}
 		// Iterate through the available sensors, adding them to the array.
 		List<Sensor> sensors = mSenMan.getSensorList(Sensor.TYPE_ALL);
 		int cur_index = 0;
@@ -86,6 +174,33 @@ public class SensorHelper {
 				//                            cur_index, def_sens.getName(), def_sens.getType()));
 			}
 		}
+		addCalibrationStage();
+		addActivityStage();
+	}
+
+	/**
+	 * Gets the instance shared by all consumers in this process, such as the
+	 * UI and the feed service, so that one set of sensor registrations serves
+	 * them all. Enumerates the sensors on first use, so it may block: call it
+	 * from a background thread when possible.
+	 *
+	 * @param context any context; the application context is kept.
+	 * @return The shared instance.
+	 */
+	public static synchronized SensorHelper getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new SensorHelper(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Drops the shared instance, so that the next getInstance enumerates the
+	 * sensors again, as a new process would. For startup measurements; the
+	 * instance must be stopped and no longer used.
+	 */
+	static synchronized void releaseInstance() {
+		sInstance = null;
 	}
 
 	/**
@@ -96,6 +211,20 @@ public class SensorHelper {
 		return mSensors;
 	}
 
+	/**
+	 * Replaces the classifier of the activity virtual sensor.
+	 *
+	 * @param classifier non-null classifier, e.g. loaded with ActivityModels.load().
+	 * @return false if there is no activity virtual sensor.
+	 */
+	public boolean setActivityClassifier(ActivityClassifier classifier) {
+		if (mActivity == null) {
+			return false;
+		}
+		mActivity.setClassifier(classifier);
+		return true;
+	}
+
 	/**
 	 * Set the target update delay throttling per-sensor, in milliseconds.
 	 * <p/>
@@ -107,6 +236,160 @@ public class SensorHelper {
 	 */
 	public void setUpdateTargetMs(long updateTargetMs) {
 		mUpdateTargetMs = updateTargetMs;
+		mRateController.setSampleBounds(updateTargetMs,
+				Math.max(updateTargetMs, mRateController.getMaxSamplePeriodMs()));
+		applyRates();
+	}
+
+	/**
+	 * Enables or disables the adaptive rate controller. When disabled the
+	 * user target applies unchanged.
+	 * <p/>
+	 * The controller is fed from the metrics registry, which has to be
+	 * enabled for it to see any load.
+	 *
+	 * @param adaptive true to let the controller back rates off under load.
+	 */
+	public void setAdaptiveRate(boolean adaptive) {
+		mAdaptiveRate = adaptive;
+		if (!adaptive && mRateController.reset()) {
+			applyRates();
+		}
+	}
+
+	/**
+	 * Sets the slowest update time the adaptive rate controller may use.
+	 *
+	 * @param minHz lowest per-sensor rate in Hz, must be > 0.
+	 */
+	public void setAdaptiveMinHz(int minHz) {
+		if (minHz > 0) {
+			mRateController.setSampleBounds(mUpdateTargetMs, Math.max(mUpdateTargetMs, 1000 / minHz));
+			applyRates();
+		}
+	}
+
+	/**
+	 * Gets the current back-off level of the adaptive rate controller.
+	 *
+	 * @return 0 when running at the user target.
+	 */
+	public int getAdaptiveLevel() {
+		return mRateController.getLevel();
+	}
+
+	/**
+	 * Returns the update time per sensor currently applied.
+	 *
+	 * @return The effective target update time in milliseconds.
+	 */
+	public long getEffectiveUpdateTargetMs() {
+		return mEffectiveUpdateTargetMs;
+	}
+
+	/**
+	 * Returns the minimum time between two UI updates of a sensor currently applied.
+	 *
+	 * @return The UI update time in milliseconds.
+	 */
+	public long getUiUpdateMs() {
+		return mUiUpdateMs;
+	}
+
+	/**
+	 * Feeds one tick of load measurements to the adaptive rate controller.
+	 * Should be called about once per second from the UI thread.
+	 *
+	 * @param droppedFrames frames dropped since the previous tick.
+	 */
+	public void onLoadTick(int droppedFrames) {
+		if (!mAdaptiveRate) {
+			return;
+		}
+		if (mRateController.update(mMetrics.pollCallbackMeanNs(),
+				mMetrics.getTotalPending(), droppedFrames)) {
+			if (DEBUG) Log.d(TAG, "Adaptive rate level " + mRateController.getLevel());
+			applyRates();
+		}
+	}
+
+	/**
+	 * Runs the data-quality checks that do not depend on incoming samples,
+	 * i.e. stall detection and expiry of old flags.
+	 * Should be called about once per second from the UI thread.
+	 */
+	public void checkQuality() {
+		long now = LatencyTrace.now();
+		for (int i = 0, n = mSensors.size(); i < n; i++) {
+			mSensors.get(i).checkQuality(now);
+		}
+	}
+
+	/**
+	 * Formats the recent data-quality annotations, oldest first.
+	 *
+	 * @param max maximum number of annotations to include.
+	 * @return One line per annotation, empty if there are none.
+	 */
+	public String formatQualityLog(int max) {
+		int count = Math.min(Math.min(mQualityLogCount, QUALITY_LOG_SIZE), max);
+		StringBuilder sb = new StringBuilder();
+		for (int i = mQualityLogCount - count; i < mQualityLogCount; i++) {
+			int slot = i % QUALITY_LOG_SIZE;
+			sb.append(String.format("%.3fs %s: %s\n", mQualityLogNs[slot] / 1e9,
+					mQualityLogSensor[slot].getFriendlyName(),
+					SampleQuality.describe(mQualityLogFlags[slot])));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Estimates the current drawn by the capture as currently configured.
+	 *
+	 * @return Average current in mA, see {@link PowerPlanner}.
+	 */
+	public float estimatePowerMa() {
+		return createPowerPlanner(new ArrayList<MonitoredSensor>()).estimateMa();
+	}
+
+	/**
+	 * Picks and applies the rates and batching latencies of the enabled
+	 * sensors that fit a current budget. The planned rates are upper bounds:
+	 * the user target and the adaptive rate controller may still slow a
+	 * sensor further. Batching needs API 19 and a sensor FIFO. Sensors left out
+	 * of the plan, e.g. disabled since the last one, lose their old plan.
+	 *
+	 * @param budgetMa current the capture may draw.
+	 * @param maxLatencyMs longest batching latency acceptable.
+	 * @param minHz slowest rate acceptable.
+	 * @return A human readable report of the plan.
+	 */
+	public String applyPowerPlan(float budgetMa, int maxLatencyMs, float minHz) {
+		List<MonitoredSensor> sensors = new ArrayList<MonitoredSensor>();
+		PowerPlanner planner = createPowerPlanner(sensors);
+		boolean met = planner.plan(budgetMa, maxLatencyMs, minHz);
+		for (MonitoredSensor sensor : mSensors) {
+			if (!sensors.contains(sensor)) {
+				// Would otherwise come back with the rate of an outdated plan.
+				sensor.setPlan(0, 0);
+			}
+		}
+		for (int i = 0; i < sensors.size(); i++) {
+			float hz = planner.getRateHz(i);
+			sensors.get(i).setPlan(hz > 0 ? (int) (1000000 / hz) : 0, planner.getLatencyMs(i) * 1000);
+		}
+		return String.format("Power plan for %.2f mA%s: ", budgetMa, met ? "" : " not reachable")
+				+ planner.format();
+	}
+
+	/**
+	 * Drops the plan applied by {@link #applyPowerPlan}: sensors go back to
+	 * the rates set by the user and the rate controller, without batching.
+	 */
+	public void clearPowerPlan() {
+		for (MonitoredSensor sensor : mSensors) {
+			sensor.setPlan(0, 0);
+		}
 	}
 
 	/**
@@ -118,6 +401,37 @@ public class SensorHelper {
 		return mGlobalAvgUpdateMs;
 	}
 
+	/**
+	 * Returns the metrics registry of the sensor pipeline.
+	 *
+	 * @return A non-null metrics registry, disabled by default.
+	 */
+	public SensorMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Enables or disables the deadband of all monitored sensors.
+	 *
+	 * @param enabled false to propagate every sample that passes the throttle.
+	 */
+	public void setDeadbandEnabled(boolean enabled) {
+		for (MonitoredSensor sensor : mSensors) {
+			sensor.getDeadband().setEnabled(enabled);
+		}
+	}
+
+	/**
+	 * Configures the deadband of all monitored sensors.
+	 *
+	 * @see Deadband#configure(int, float, long)
+	 */
+	public void setDeadband(int mode, float threshold, long heartbeatMs) {
+		for (MonitoredSensor sensor : mSensors) {
+			sensor.getDeadband().configure(mode, threshold, heartbeatMs);
+		}
+	}
+
 	/**
 	 * Handles 'enable' message.
 	 *
@@ -161,18 +475,26 @@ public class SensorHelper {
 	}
 
 	/**
-	 * Start listening to all monitored sensors.
+	 * Start listening to all monitored sensors. Calls nest: each consumer
+	 * calls stopSensors once when done, and the sensors stop with the last.
 	 */
 	public void startSensors() {
+		if (mStartCount++ > 0) {
+			return;
+		}
 		for (MonitoredSensor sensor : mSensors) {
 			sensor.startListening();
 		}
 	}
 
 	/**
-	 * Stop listening to all monitored sensors.
+	 * Stop listening to all monitored sensors, unless another consumer still
+	 * needs them.
 	 */
 	public void stopSensors() {
+		if (mStartCount == 0 || --mStartCount > 0) {
+			return;
+		}
 		for (MonitoredSensor sensor : mSensors) {
 			sensor.stopListening();
 		}
@@ -182,6 +504,91 @@ public class SensorHelper {
 	 * Internals
 	 **************************************************************************/
 
+	/**
+	 * Publishes calibrated virtual sensors for the uncalibrated gyroscope and
+	 * magnetometer, if the device has them.
+	 */
+	private void addCalibrationStage() {
+		MonitoredSensor gyro = null;
+		MonitoredSensor mag = null;
+		if (isSensorTypeAlreadyMonitored(16)) {
+			gyro = new MonitoredSensor(TYPE_VIRTUAL_GYROSCOPE_CALIBRATED,
+					"Gyroscope Calibrated by app (rad/s)",
+					"%+.2f %+.2f %+.2f\nbias %+.3f %+.3f %+.3f",
+					"gyroscope-app-calibrated",
+					"Bias estimated from stationary intervals of the uncalibrated gyroscope.");
+			mSensors.add(gyro);
+		}
+		if (isSensorTypeAlreadyMonitored(14)) {
+			mag = new MonitoredSensor(TYPE_VIRTUAL_MAGNETIC_FIELD_CALIBRATED,
+					"Magnetic field Calibrated by app (μT)",
+					"%+.2f %+.2f %+.2f\noffset %+.1f %+.1f %+.1f",
+					"magnetic-field-app-calibrated",
+					"Hard/soft-iron ellipsoid fitted to the uncalibrated magnetometer.");
+			mSensors.add(mag);
+		}
+		if (gyro != null || mag != null) {
+			addRawSampleListener(new CalibrationStage(gyro, mag));
+		}
+	}
+
+	/**
+	 * Publishes the motion state recognized from the accelerometer, helped by
+	 * the gyroscope and step detector when present, as a virtual sensor.
+	 */
+	private void addActivityStage() {
+		if (!isSensorTypeAlreadyMonitored(Sensor.TYPE_ACCELEROMETER)) {
+			return;
+		}
+		MonitoredSensor activity = new MonitoredSensor(TYPE_VIRTUAL_ACTIVITY,
+				"Activity recognized by app",
+				"%s\nvar %.3f  %.2f Hz  %.0f steps/min  gyro var %.3f",
+				"activity",
+				"Motion state classified from 4 s windows of acceleration, rotation and steps.");
+		mSensors.add(activity);
+		mActivity = new ActivityRecognizer(activity, mMetrics);
+		addRawSampleListener(mActivity);
+	}
+
+	/**
+	 * Builds the power model of the enabled hardware sensors, at the rates
+	 * and latencies currently requested.
+	 *
+	 * @param sensors receives the modelled sensors, in model order.
+	 */
+	private PowerPlanner createPowerPlanner(List<MonitoredSensor> sensors) {
+		long eventNs = 0;
+		for (MonitoredSensor sensor : mSensors) {
+			eventNs = Math.max(eventNs, sensor.mStats.getCallbackHistogram().getMeanNs());
+		}
+		PowerPlanner planner = new PowerPlanner(eventNs > 0 ? eventNs / 1000f : DEFAULT_EVENT_COST_US);
+		for (MonitoredSensor sensor : mSensors) {
+			if (sensor.isVirtual() || !sensor.mEnabledByApp || !sensor.mEnabledByUser) {
+				continue;
+			}
+			int minDelayUs = sensor.getMinDelayUs();
+			planner.addSensor(sensor.getFriendlyName(), sensor.getPower(),
+					minDelayUs > 0 ? 1e6f / minDelayUs : 0, sensor.getFifoMaxEventCount(),
+					sensor.getRateHz(), sensor.mLatencyUs / 1000);
+			sensors.add(sensor);
+		}
+		return planner;
+	}
+
+	/**
+	 * Applies the periods chosen by the rate controller to the throttles and
+	 * to the sensor registrations.
+	 */
+	private void applyRates() {
+		mEffectiveUpdateTargetMs = mRateController.getSamplePeriodMs();
+		mUiUpdateMs = mRateController.getUiPeriodMs();
+		int rateUs = mRateController.getLevel() == 0 ?
+						SensorManager.SENSOR_DELAY_FASTEST : (int) (mEffectiveUpdateTargetMs * 1000);
+		for (MonitoredSensor sensor : mSensors) {
+			sensor.setRate(rateUs);
+		}
+	}
+
 	/**
 	 * Checks if a sensor for the given type is already monitored.
 	 *
@@ -223,8 +630,12 @@ public class SensorHelper {
 	 * text view where current sensor value is displayed.
 	 */
 	public class MonitoredSensor {
-		/** Sensor to monitor. */
+		/** Sensor to monitor. Null for virtual sensors. */
 		private final Sensor mSensor;
+		/** Sensor type, one of the Sensor.TYPE_XXX or TYPE_VIRTUAL_XXX constants. */
+		private final int mType;
+		/** Description of a virtual sensor, shown instead of the sensor info. */
+		private String mVirtualInfo;
 		/** The sensor name to display in the UI. */
 		private String mUiName = "";
 		/** Text view displaying the value of the sensor. */
@@ -233,8 +644,8 @@ public class SensorHelper {
 		private String mFriendlyName;
 		/** Formats string to show in the TextView. */
 		private String mTextFmt;
-		/** Sensor values. */
-		private float[] mValues = new float[3];
+		/** Sensor values, including the bias fields of uncalibrated sensors. */
+		private float[] mValues = new float[6];
 		/**
 		 * Enabled state. This state is controlled by the emulator, that
 		 * maintains its own list of sensors. So, if a sensor is missing, or is
@@ -245,6 +656,47 @@ public class SensorHelper {
 		private boolean mEnabledByUser = true;
 		/** Sensor event listener for this sensor. */
 		private final OurSensorEventListener mListener = new OurSensorEventListener();
+		/** Event path statistics for this sensor. */
+		private final SensorMetrics.Stats mStats;
+		/** Rate set by the rate controller, as delay constant or microseconds. */
+		private int mRateUs = SensorManager.SENSOR_DELAY_FASTEST;
+		/** Slowest period allowed by the power plan, in microseconds, 0 without a plan. */
+		private int mPlannedRateUs;
+		/** Batching latency of the power plan, in microseconds, 0 without batching. */
+		private int mLatencyUs;
+		/** Suppresses samples that did not change enough to be worth propagating. */
+		private final Deadband mDeadband;
+		/** One-shot sensors are armed through mTriggers instead of mListener. */
+		private final boolean mOneShot;
+		/** True while mListener is registered, or the trigger armed. */
+		private boolean mListening;
+		/** Data-quality checks on the raw samples. */
+		private final SampleQuality mQuality;
+		/** Data-quality flags last reported to the UI. */
+		private int mQualityFlags;
+		/** Receives the triggers of a one-shot sensor. */
+		private final TriggerSensorManager.Callback mTriggerCallback = new TriggerSensorManager.Callback() {
+			@Override
+			public void onTrigger(Sensor sensor, long timestampNs, float[] values) {
+				if (mMetrics.isEnabled()) {
+					mStats.onReceived();
+					mStats.onTrigger(LatencyTrace.now() - timestampNs);
+				}
+				mValues[0] = values[0];
+				mValues[1] = System.currentTimeMillis();
+				mValues[2] = timestampNs;
+				notifySampleListeners(MonitoredSensor.this, timestampNs, values, values.length);
+
+				if (hasUiHandler()) {
+					mValue = null;
+
+					Message msg = Message.obtain();
+					msg.what = SENSOR_DISPLAY_MODIFIED;
+					msg.obj = MonitoredSensor.this;
+					notifyUiHandlers(msg);
+				}
+			}
+		};
 
 		/**
 		 * Constructs MonitoredSensor instance, and register the listeners.
@@ -253,7 +705,14 @@ public class SensorHelper {
 		 */
 		MonitoredSensor(Sensor sensor) {
 			mSensor = sensor;
+			mType = sensor.getType();
 			mEnabledByUser = true;
+			mDeadband = TriggerSensorManager.hasEventSamples(sensor) ?
+						Deadband.forEvents() : new Deadband(sensor.getResolution());
+			mOneShot = mTriggers != null && TriggerSensorManager.isOneShot(sensor);
+			// On-change sensors report a minimum delay of 0, one-shot sensors -1.
+			mQuality = new SampleQuality(!mOneShot && sensor.getMinDelay() > 0,
+					sensor.getMaximumRange(), SampleQuality.getSaturationValues(mType));
 
 			// Set appropriate sensor name depending on the type. Unfortunately,
 			// we can't really use sensor.getName() here, since the value it
@@ -329,7 +788,7 @@ public class SensorHelper {
 				//android 4.3 api18
 			case 14://Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED: 
 				mUiName = "Magnetic field Uncalibrated (μT)";
-				mTextFmt = "%+.2f %+.2f %+.2f";
+				mTextFmt = "%+.2f %+.2f %+.2f\nbias %+.2f %+.2f %+.2f";
 				mFriendlyName = "magnetic-field-uncalibrated";
 				break;    
 			case 15://Sensor.TYPE_GAME_ROTATION_VECTOR: 
@@ -339,7 +798,7 @@ public class SensorHelper {
 				break;    
 			case 16://Sensor.TYPE_GYROSCOPE_UNCALIBRATED : 
 				mUiName = "Gyroscope Uncalibrated (rad/s)";
-				mTextFmt = "%+.2f %+.2f %+.2f";
+				mTextFmt = "%+.2f %+.2f %+.2f\nbias %+.3f %+.3f %+.3f";
 				mFriendlyName = "gyroscope-uncalibrated";
 				break;
 			case 17://Sensor.TYPE_SIGNIFICANT_MOTION : 
@@ -372,6 +831,184 @@ public class SensorHelper {
 						" for sensor " + mSensor.getName());
 				break;
 			}
+			mStats = mMetrics.register(mFriendlyName);
+		}
+
+		/**
+		 * Constructs a virtual MonitoredSensor, whose samples are computed by
+		 * the app and handed in through {@link #publish(long, float[], int)}.
+		 *
+		 * @param type one of the TYPE_VIRTUAL_XXX constants.
+		 * @param uiName name to display.
+		 * @param textFmt format of the displayed value.
+		 * @param friendlyName friendly name.
+		 * @param info description shown instead of the sensor info.
+		 */
+		MonitoredSensor(int type, String uiName, String textFmt, String friendlyName, String info) {
+			mSensor = null;
+			mType = type;
+			mEnabledByUser = true;
+			mDeadband = new Deadband(0);
+			mOneShot = false;
+			mQuality = new SampleQuality(false, 0, 0);
+			mUiName = uiName;
+			mTextFmt = textFmt;
+			mFriendlyName = friendlyName;
+			mVirtualInfo = info;
+			mStats = mMetrics.register(mFriendlyName);
+		}
+
+		/**
+		 * Checks whether this sensor is computed by the app.
+		 *
+		 * @return true for virtual sensors.
+		 */
+		public boolean isVirtual() {
+			return mSensor == null;
+		}
+
+		/**
+		 * Hands a sample of a virtual sensor to the same pipeline hardware
+		 * samples go through.
+		 *
+		 * @param timestampNs time stamp of the sample, on the SensorEvent.timestamp clock.
+		 * @param values sample values.
+		 * @param count number of valid values.
+		 */
+		void publish(long timestampNs, float[] values, int count) {
+			if (mEnabledByApp && mEnabledByUser) {
+				mListener.onSample(timestampNs, values, count);
+			}
+		}
+
+		/**
+		 * Gets the minimum delay between two samples of this sensor.
+		 *
+		 * @return Sensor.getMinDelay() in microseconds, 0 for on-change and
+		 *         virtual sensors.
+		 */
+		public int getMinDelayUs() {
+			return mSensor != null ? Math.max(mSensor.getMinDelay(), 0) : 0;
+		}
+
+		/**
+		 * Gets the current drawn by this sensor while active.
+		 *
+		 * @return Sensor.getPower() in mA, 0 for virtual sensors.
+		 */
+		public float getPower() {
+			return mSensor != null ? mSensor.getPower() : 0;
+		}
+
+		/**
+		 * Gets the number of events the hardware FIFO can batch for this sensor.
+		 *
+		 * @return Sensor.getFifoMaxEventCount(), 0 before API 19 or if the
+		 *         sensor cannot batch.
+		 */
+		@TargetApi(19)
+		public int getFifoMaxEventCount() {
+			return mSensor != null && Build.VERSION.SDK_INT >= 19 ? mSensor.getFifoMaxEventCount() : 0;
+		}
+
+		/**
+		 * Gets the rate requested from the sensor manager.
+		 *
+		 * @return Rate in Hz, 0 for on-change and virtual sensors.
+		 */
+		public float getRateHz() {
+			int minDelayUs = getMinDelayUs();
+			if (minDelayUs <= 0) {
+				return 0;
+			}
+			int rateUs = getRateUs();
+			switch (rateUs) {
+			case SensorManager.SENSOR_DELAY_FASTEST:
+				rateUs = minDelayUs;
+				break;
+			case SensorManager.SENSOR_DELAY_GAME:
+				rateUs = 20000;
+				break;
+			case SensorManager.SENSOR_DELAY_UI:
+				rateUs = 66667;
+				break;
+			case SensorManager.SENSOR_DELAY_NORMAL:
+				rateUs = 200000;
+				break;
+			}
+			return 1e6f / Math.max(rateUs, minDelayUs);
+		}
+
+		/**
+		 * Gets the maximum range of this sensor.
+		 *
+		 * @return Sensor.getMaximumRange(), 0 for virtual sensors.
+		 */
+		public float getMaximumRange() {
+			return mSensor != null ? mSensor.getMaximumRange() : 0;
+		}
+
+		/**
+		 * Gets the data-quality checks of this sensor.
+		 *
+		 * @return Data-quality state, for counts and accuracy.
+		 */
+		public SampleQuality getQuality() {
+			return mQuality;
+		}
+
+		/**
+		 * Gets the data-quality flags last reported through
+		 * SENSOR_QUALITY_CHANGED.
+		 *
+		 * @return Bit mask of SampleQuality.FLAG_XXX constants, 0 if all is well.
+		 */
+		public int getQualityFlags() {
+			return mQualityFlags;
+		}
+
+		/**
+		 * Records newly raised data-quality flags and tells the listeners.
+		 *
+		 * @param timestampNs time stamp of the sample with the problem, else nowNs.
+		 * @param nowNs current time, on the LatencyTrace.now() clock.
+		 */
+		private void onQualityRaised(long timestampNs, long nowNs, int raised) {
+			int slot = mQualityLogCount++ % QUALITY_LOG_SIZE;
+			mQualityLogNs[slot] = nowNs;
+			mQualityLogSensor[slot] = this;
+			mQualityLogFlags[slot] = raised;
+			if (DEBUG) Log.w(TAG, getFriendlyName() + ": " + SampleQuality.describe(raised));
+			final List<QualityListener> listeners = mQualityListeners;
+			for (int i = 0, n = listeners.size(); i < n; i++) {
+				listeners.get(i).onQualityEvent(this, timestampNs, raised);
+			}
+			checkQuality(nowNs);
+		}
+
+		/**
+		 * Checks for a stall and posts SENSOR_QUALITY_CHANGED if the flags
+		 * changed since the last report. A sensor that is not listening is
+		 * silent on purpose, not stalled.
+		 */
+		private void checkQuality(long nowNs) {
+			if (mListening && mEnabledByApp) {
+				int raised = mQuality.checkStall(nowNs);
+				if (raised != 0) {
+					onQualityRaised(nowNs, nowNs, raised);
+					return;
+				}
+			}
+			int flags = mQuality.getFlags(nowNs);
+			if (flags != mQualityFlags) {
+				mQualityFlags = flags;
+				if (hasUiHandler()) {
+					Message msg = Message.obtain();
+					msg.what = SENSOR_QUALITY_CHANGED;
+					msg.obj = MonitoredSensor.this;
+					notifyUiHandlers(msg);
+				}
+			}
 		}
 
 		/**
@@ -389,6 +1026,9 @@ public class SensorHelper {
 		 * @return Name for this sensor to display.
 		 */
 		public String getInfo() {
+			if (mSensor == null) {
+				return "Virtual sensor\n" + mVirtualInfo + "\n";
+			}
 			String res = "";
 			res += "Name:         " + mSensor.getName() + "\n";
 			res += "Type:         " + mSensor.getType() + "\n";
@@ -409,15 +1049,37 @@ public class SensorHelper {
 		public String getValue() {
 			if (mValue == null) {
 				float[] values = mValues;
-				if(mSensor.getType()==17) {
+				if(mType==17) {
 					mValue = String.format(mTextFmt, values[0], (long)values[1], (long)values[2]);
+				} else if (mType == TYPE_VIRTUAL_ACTIVITY) {
+					mValue = String.format(mTextFmt, ActivityRecognizer.getName((int) values[0]),
+							values[1], values[2], values[3], values[4]);
 				} else {
-					mValue = String.format(mTextFmt, values[0], values[1], values[2]);
+					mValue = String.format(mTextFmt, values[0], values[1], values[2],
+							values[3], values[4], values[5]);
 				}
 			}
 			return mValue == null ? "??" : mValue;
 		}
 
+		/**
+		 * Gets event path statistics for this sensor.
+		 *
+		 * @return Statistics registered with {@link SensorHelper#getMetrics()}.
+		 */
+		public SensorMetrics.Stats getStats() {
+			return mStats;
+		}
+
+		/**
+		 * Gets the change-suppression filter of this sensor.
+		 *
+		 * @return The deadband applied before UI and sample listeners.
+		 */
+		public Deadband getDeadband() {
+			return mDeadband;
+		}
+
 		/**
 		 * Checks if monitoring of this this sensor has been enabled by
 		 * emulator.
@@ -447,7 +1109,9 @@ public class SensorHelper {
 		public void onCheckedChanged(boolean isChecked) {
 			mEnabledByUser = isChecked;
 			if (isChecked) {
-				startListening();
+				if (mStartCount > 0) {
+					startListening();
+				}
 			} else {
 				stopListening();
 			}
@@ -458,8 +1122,8 @@ public class SensorHelper {
 		 *
 		 * @return Sensor type as one of the Sensor.TYPE_XXX constants.
 		 */
-		private int getType() {
-			return mSensor.getType();
+		public int getType() {
+			return mType;
 		}
 
 		/**
@@ -467,7 +1131,7 @@ public class SensorHelper {
 		 *
 		 * @return Sensor's friendly name.
 		 */
-		private String getFriendlyName() {
+		public String getFriendlyName() {
 			return mFriendlyName;
 		}
 
@@ -475,35 +1139,16 @@ public class SensorHelper {
 		 * Starts monitoring the sensor.
 		 * NOTE: This method is called from outside of the UI thread.
 		 */
-		@SuppressLint("NewApi")
 		private void startListening() {
-			if (mEnabledByApp && mEnabledByUser) {
+			if (mSensor != null && mEnabledByApp && mEnabledByUser) {
 				if (DEBUG) Log.d(TAG, "+++ Sensor " + getFriendlyName() + " is started.");
-				if(mSensor.getType()==17 && Build.VERSION.SDK_INT > 17) {
-					TriggerEventListener tgev = new TriggerEventListener() {
-
-						@Override
-						public void onTrigger(TriggerEvent event) {
-							if (hasUiHandler()) {
-
-								mValues[0] = event.values[0];
-								mValues[1] = System.currentTimeMillis();
-								mValues[2] = event.timestamp;
-
-								mValue = null;
-
-								Message msg = Message.obtain();
-								msg.what = SENSOR_DISPLAY_MODIFIED;
-								msg.obj = MonitoredSensor.this;
-								notifyUiHandlers(msg);
-
-								mSenMan.requestTriggerSensor(this, mSensor);
-							}
-						}
-					};
-					mSenMan.requestTriggerSensor(tgev, mSensor);
+				// The time spent unregistered is not a gap.
+				mQuality.restart();
+				mListening = true;
+				if (mOneShot) {
+					mTriggers.arm(mSensor, mTriggerCallback);
 				} else {
-					mSenMan.registerListener(mListener, mSensor, SensorManager.SENSOR_DELAY_FASTEST);
+					register();
 				}
 
 			}
@@ -515,8 +1160,85 @@ public class SensorHelper {
 		 */
 		private void stopListening() {
 			if (DEBUG) Log.d(TAG, "--- Sensor " + getFriendlyName() + " is stopped.");
-			if(mListener != null)
+			mListening = false;
+			if (mSensor == null) {
+				return;
+			} else if (mOneShot) {
+				mTriggers.cancel(mSensor);
+			} else if (mListener != null) {
+				mSenMan.unregisterListener(mListener);
+			}
+		}
+
+		/**
+		 * Changes the rate requested from the sensor manager, re-registering
+		 * the listener if it is currently registered.
+		 *
+		 * @param rateUs a SENSOR_DELAY_XXX constant or a period in microseconds.
+		 */
+		private void setRate(int rateUs) {
+			int before = getRateUs();
+			mRateUs = rateUs;
+			if (getRateUs() != before) {
+				reregister();
+			}
+		}
+
+		/**
+		 * Applies the rate and batching latency of a power plan.
+		 *
+		 * @param rateUs slowest period allowed, 0 for no limit.
+		 * @param latencyUs batching latency, 0 for none.
+		 */
+		private void setPlan(int rateUs, int latencyUs) {
+			if (rateUs == mPlannedRateUs && latencyUs == mLatencyUs) {
+				return;
+			}
+			mPlannedRateUs = rateUs;
+			mLatencyUs = latencyUs;
+			// Batched samples are throttled on their time stamps, not on arrival.
+			mListener.mLastUpdateTS = 0;
+			mQuality.setLatency(latencyUs * 1000L);
+			mQuality.restart();
+			reregister();
+		}
+
+		/**
+		 * Gets the rate to request: the rate controller's, unless the power
+		 * plan asks for a slower one.
+		 */
+		private int getRateUs() {
+			if (mPlannedRateUs > 0
+					&& (mRateUs == SensorManager.SENSOR_DELAY_FASTEST || mRateUs < mPlannedRateUs)) {
+				return mPlannedRateUs;
+			}
+			return mRateUs;
+		}
+
+		/**
+		 * Registers the listener again with the current rate and latency, if
+		 * it is registered: a stopped sensor picks them up when started.
+		 */
+		private void reregister() {
+			if (mListening && !mOneShot && mEnabledByApp) {
+				// The new rate is not a gap, nor the time spent re-registering.
+				mQuality.restart();
 				mSenMan.unregisterListener(mListener);
+				register();
+			}
+		}
+
+		private void register() {
+			if (mLatencyUs > 0 && Build.VERSION.SDK_INT >= 19) {
+				registerBatched();
+			} else {
+				mSenMan.registerListener(mListener, mSensor, getRateUs());
+			}
+		}
+
+		@TargetApi(19)
+		private void registerBatched() {
+			mSenMan.registerListener(mListener, mSensor, getRateUs(), mLatencyUs);
 		}
 
 		/**
@@ -551,7 +1273,7 @@ public class SensorHelper {
 
 
 		private class OurSensorEventListener implements SensorEventListener {
-			/** Last update's time-stamp in local thread millisecond time. */
+			/** Last update's time-stamp in milliseconds, of the sample itself when batched. */
 			private long mLastUpdateTS = 0;
 			/** Last display update time-stamp. */
 			private long mLastDisplayTS = 0;
@@ -562,21 +1284,40 @@ public class SensorHelper {
 			 */
 			@Override
 			public void onSensorChanged(SensorEvent event) {
+				onSample(event.timestamp, event.values, event.values.length);
+			}
+
+			/**
+			 * Runs one sample, hardware or virtual, through throttling,
+			 * deadband and UI update.
+			 */
+			void onSample(long eventNs, float[] values, int len) {
+				final boolean metrics = mMetrics.isEnabled();
+				// Also the arrival time, for the stall checks.
+				final long startNs = LatencyTrace.now();
+				if (metrics) mStats.onReceived();
+
+				int raised = mQuality.onSample(eventNs, startNs, values, len);
+				if (raised != 0) {
+					onQualityRaised(eventNs, startNs, raised);
+				}
+
+				notifyRawSampleListeners(MonitoredSensor.this, eventNs, values, len);
+
 				long now = SystemClock.elapsedRealtime();
+				// Batched samples arrive in bursts; throttle them on their own clock.
+				long sampleMs = mLatencyUs > 0 ? eventNs / 1000000 : now;
 
 				long deltaMs = 0;
 				if (mLastUpdateTS != 0) {
-					deltaMs = now - mLastUpdateTS;
-					if (mUpdateTargetMs > 0 && deltaMs < mUpdateTargetMs) {
+					deltaMs = sampleMs - mLastUpdateTS;
+					if (mEffectiveUpdateTargetMs > 0 && deltaMs < mEffectiveUpdateTargetMs) {
 						// New sample is arriving too fast. Discard it.
+						if (metrics) mStats.onThrottled();
 						return;
 					}
 				}
 
-				// Format and post message for the emulator.
-				float[] values = event.values;
-				final int len = values.length;
-
 				// Computes average update time for this sensor and average globally.
 				if (mLastUpdateTS != 0) {
 					if (mGlobalAvgUpdateMs != 0) {
@@ -585,40 +1326,52 @@ public class SensorHelper {
 						mGlobalAvgUpdateMs = deltaMs;
 					}
 				}
-				mLastUpdateTS = now;
+				mLastUpdateTS = sampleMs;
+
+				// Drop samples that did not change enough, except for a heartbeat.
+				if (!mDeadband.accept(values, len, now)) {
+					if (metrics) {
+						mStats.onSuppressed();
+						mStats.onCallback(LatencyTrace.now() - startNs);
+					}
+					return;
+				}
+				notifySampleListeners(MonitoredSensor.this, eventNs, values, len);
 
-				// Update the UI for the sensor, with a static throttling of 10 fps max.
+				// Update the UI for the sensor, throttled to mUiUpdateMs.
 				if (hasUiHandler()) {
 					if (mLastDisplayTS != 0) {
 						long uiDeltaMs = now - mLastDisplayTS;
-						if (uiDeltaMs < 1000 / 4 /* 4fps in ms */) {
+						if (uiDeltaMs < mUiUpdateMs) {
 							// Skip this UI update
+							if (metrics) {
+								mStats.onUiDropped();
+								mStats.onCallback(LatencyTrace.now() - startNs);
+							}
 							return;
 						}
 					}
 					mLastDisplayTS = now;
 
-					mValues[0] = values[0];
-					if (len > 1) {
-						mValues[1] = values[1];
-						if (len > 2) {
-							mValues[2] = values[2];
-						}
-					}
+					// Format and post message for the UI.
+					System.arraycopy(values, 0, mValues, 0, Math.min(len, mValues.length));
 					mValue = null;
 
+					if (metrics) mStats.getTrace().onDispatch(eventNs, startNs, LatencyTrace.now());
 					Message msg = Message.obtain();
 					msg.what = SENSOR_DISPLAY_MODIFIED;
 					msg.obj = MonitoredSensor.this;
 					notifyUiHandlers(msg);
 				}
 
+				if (metrics) mStats.onCallback(LatencyTrace.now() - startNs);
+
 				if (DEBUG) {
 					long now2 = SystemClock.elapsedRealtime();
 					long processingTimeMs = now2 - now;
 					Log.d(TAG, String.format("glob %d - local %d > target %d - processing %d -- %s",
-							mGlobalAvgUpdateMs, deltaMs, mUpdateTargetMs, processingTimeMs,
-							mSensor.getName()));
+							mGlobalAvgUpdateMs, deltaMs, mEffectiveUpdateTargetMs, processingTimeMs,
+							getFriendlyName()));
 				}
 			}
 
@@ -628,6 +1381,14 @@ public class SensorHelper {
 			 */
 			@Override
 			public void onAccuracyChanged(Sensor sensor, int accuracy) {
+				long now = LatencyTrace.now();
+				int raised = mQuality.onAccuracy(accuracy, now);
+				if (raised != 0) {
+					onQualityRaised(now, now, raised);
+				} else {
+					// Clears the flag as soon as the sensor recovers.
+					checkQuality(now);
+				}
 			}
 		}
 	} // MonitoredSensor
@@ -676,6 +1437,108 @@ public class SensorHelper {
 		mUiHandlers.remove(uiHandler);
 	}
 
+	/**
+	 * Registers a new sample listener.
+	 *
+	 * @param listener A non-null listener to register. Ignored if the
+	 *            listener is null or already registered.
+	 */
+	public void addSampleListener(SampleListener listener) {
+		assert listener != null;
+		if (listener != null) {
+			if (!mSampleListeners.contains(listener)) {
+				mSampleListeners.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a sample listener.
+	 *
+	 * @param listener A non-null listener to unregister. Ignored if the
+	 *            listener is null or not registered.
+	 */
+	public void removeSampleListener(SampleListener listener) {
+		assert listener != null;
+		mSampleListeners.remove(listener);
+	}
+
+	/**
+	 * Registers a new raw sample listener, that sees every sample of every
+	 * sensor before throttling and deadband. Keep it cheap, it runs at the
+	 * full hardware rate.
+	 *
+	 * @param listener A non-null listener to register. Ignored if the
+	 *            listener is null or already registered.
+	 */
+	public void addRawSampleListener(SampleListener listener) {
+		assert listener != null;
+		if (listener != null) {
+			if (!mRawSampleListeners.contains(listener)) {
+				mRawSampleListeners.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a raw sample listener.
+	 *
+	 * @param listener A non-null listener to unregister. Ignored if the
+	 *            listener is null or not registered.
+	 */
+	public void removeRawSampleListener(SampleListener listener) {
+		assert listener != null;
+		mRawSampleListeners.remove(listener);
+	}
+
+	/**
+	 * Registers a new data-quality listener.
+	 *
+	 * @param listener A non-null listener to register. Ignored if the
+	 *            listener is null or already registered.
+	 */
+	public void addQualityListener(QualityListener listener) {
+		assert listener != null;
+		if (listener != null) {
+			if (!mQualityListeners.contains(listener)) {
+				mQualityListeners.add(listener);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a data-quality listener.
+	 *
+	 * @param listener A non-null listener to unregister. Ignored if the
+	 *            listener is null or not registered.
+	 */
+	public void removeQualityListener(QualityListener listener) {
+		assert listener != null;
+		mQualityListeners.remove(listener);
+	}
+
+	/**
+	 * Hands a sample to all raw sample listeners.
+	 */
+	protected void notifyRawSampleListeners(MonitoredSensor sensor, long timestampNs,
+			float[] values, int count) {
+		final List<SampleListener> listeners = mRawSampleListeners;
+		for (int i = 0, n = listeners.size(); i < n; i++) {
+			listeners.get(i).onSample(sensor, timestampNs, values, count);
+		}
+	}
+
+	/**
+	 * Hands a sample that passed the deadband to all sample listeners.
+	 */
+	protected void notifySampleListeners(MonitoredSensor sensor, long timestampNs,
+			float[] values, int count) {
+		final List<SampleListener> listeners = mSampleListeners;
+		for (int i = 0, n = listeners.size(); i < n; i++) {
+			listeners.get(i).onSample(sensor, timestampNs, values, count);
+		}
+	}
+
 	/**
 	 * Protected method to be used by handlers to send an event to all UI
 	 * handlers.
@@ -699,6 +1562,9 @@ public class SensorHelper {
 		for (android.os.Handler uiHandler : mUiHandlers) {
 			uiHandler.sendMessage(msg);
 		}
+		if (msg.what == SENSOR_DISPLAY_MODIFIED && mMetrics.isEnabled()) {
+			((MonitoredSensor) msg.obj).mStats.onPosted();
+		}
 	}
 
 }
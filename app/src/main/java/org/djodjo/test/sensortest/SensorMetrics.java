@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * Registry of counters, gauges and latency histograms for the sensor pipeline.
+ * <p/>
+ * All sensor callbacks are delivered on the main looper, so every counter has a
+ * single writer and is kept as a plain field. Readers (the diagnostics panel,
+ * dumps) only take approximate snapshots, which is all they need.
+ * When the registry is disabled the event path pays a single boolean check.
+ */
+public class SensorMetrics {
+
+	/** Master switch, checked by the event path before touching any counter. */
+	private volatile boolean mEnabled = false;
+	/** Emits systrace sections around the traced stages when set. */
+	private volatile boolean mSystrace = false;
+
+	/** Registered per-sensor statistics, in registration order. */
+	private final List<Stats> mStats = new ArrayList<Stats>();
+
+	/** Previous snapshot, used to compute rates between two snapshots. */
+	private Snapshot mLastSnapshot;
+
+	/**
+	 * Checks whether instrumentation is currently enabled.
+	 *
+	 * @return true if the event path should record metrics.
+	 */
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Enables or disables instrumentation. Counters are kept when disabled so a
+	 * later dump still shows what was collected.
+	 *
+	 * @param enabled true to start recording metrics.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * Checks whether systrace sections should be emitted.
+	 *
+	 * @return true if the traced stages should open systrace sections.
+	 */
+	public boolean isSystraceEnabled() {
+		return mSystrace;
+	}
+
+	/**
+	 * Enables or disables systrace sections around the traced stages. Has no
+	 * effect before API 18.
+	 *
+	 * @param systrace true to emit sections.
+	 */
+	public void setSystraceEnabled(boolean systrace) {
+		mSystrace = systrace;
+	}
+
+	/**
+	 * Registers statistics for a new sensor.
+	 *
+	 * @param name name used in snapshots and dumps.
+	 * @return A new, zeroed, statistics holder.
+	 */
+	public Stats register(String name) {
+		Stats stats = new Stats(name);
+		synchronized (mStats) {
+			mStats.add(stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Removes statistics registered with {@link #register(String)}.
+	 *
+	 * @param stats statistics holder to drop. Ignored if null or unknown.
+	 */
+	public void unregister(Stats stats) {
+		synchronized (mStats) {
+			mStats.remove(stats);
+		}
+	}
+
+	/**
+	 * Resets all counters and histograms.
+	 */
+	public void reset() {
+		synchronized (mStats) {
+			for (Stats stats : mStats) {
+				stats.reset();
+			}
+			mLastSnapshot = null;
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all registered statistics. Rates are computed
+	 * against the previous snapshot taken by this method.
+	 *
+	 * @return A new snapshot; never null.
+	 */
+	public Snapshot takeSnapshot() {
+		synchronized (mStats) {
+			Snapshot snapshot = new Snapshot(SystemClock.elapsedRealtime(), mStats, mLastSnapshot);
+			mLastSnapshot = snapshot;
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Gets the worst per-sensor mean callback time since the previous call,
+	 * and starts a new measurement window.
+	 *
+	 * @return Worst mean callback time in nanoseconds, 0 if there were none.
+	 */
+	public long pollCallbackMeanNs() {
+		long worst = 0;
+		synchronized (mStats) {
+			for (Stats stats : mStats) {
+				if (stats.mWindowCount > 0) {
+					long mean = stats.mWindowSumNs / stats.mWindowCount;
+					if (mean > worst) {
+						worst = mean;
+					}
+				}
+				stats.mWindowSumNs = 0;
+				stats.mWindowCount = 0;
+			}
+		}
+		return worst;
+	}
+
+	/**
+	 * Gets the number of UI messages posted but not yet handled, across all
+	 * sensors.
+	 *
+	 * @return Current UI queue depth.
+	 */
+	public long getTotalPending() {
+		long total = 0;
+		synchronized (mStats) {
+			for (Stats stats : mStats) {
+				total += stats.getPending();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Formats all statistics collected so far, for logging on demand.
+	 *
+	 * @return A human readable, multi-line dump.
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("metrics ").append(mEnabled ? "enabled" : "disabled").append('\n');
+		synchronized (mStats) {
+			for (Stats stats : mStats) {
+				stats.dump(sb);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Counters and histograms for one monitored sensor.
+	 */
+	public static class Stats {
+		private final String mName;
+		/** Events delivered by the sensor manager. */
+		long mReceived;
+		/** Events discarded by the per-sensor update target throttle. */
+		long mThrottled;
+		/** Accepted events that did not reach the UI because of the UI throttle. */
+		long mUiDropped;
+		/** Accepted events not propagated because of the deadband. */
+		long mSuppressed;
+		/** Messages posted to UI handlers. */
+		long mPosted;
+		/** Messages handled by the UI. */
+		long mHandled;
+		/** Time spent in onSensorChanged. */
+		final Histogram mCallbackNs = new Histogram();
+		/** Staged latency of the displayed samples. */
+		final LatencyTrace mTrace = new LatencyTrace();
+		/** Trigger time stamp to trigger callback, for one-shot sensors. */
+		final Histogram mTriggerNs = new Histogram();
+		/** Time spent computing one sample, for virtual sensors. */
+		final Histogram mStageNs = new Histogram();
+		/** Callback time accumulated since the last {@link SensorMetrics#pollCallbackMeanNs()}. */
+		long mWindowSumNs;
+		long mWindowCount;
+
+		Stats(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public void onReceived() {
+			mReceived++;
+		}
+
+		public void onThrottled() {
+			mThrottled++;
+		}
+
+		public void onUiDropped() {
+			mUiDropped++;
+		}
+
+		public void onSuppressed() {
+			mSuppressed++;
+		}
+
+		/**
+		 * Gets the fraction of samples that passed the throttle but were
+		 * suppressed by the deadband.
+		 *
+		 * @return Suppression ratio in [0, 1].
+		 */
+		public float getSuppressionRatio() {
+			long accepted = mReceived - mThrottled;
+			return accepted <= 0 ? 0 : (float) mSuppressed / accepted;
+		}
+
+		public void onPosted() {
+			mPosted++;
+		}
+
+		public void onHandled() {
+			mHandled++;
+		}
+
+		public void onCallback(long nanos) {
+			mCallbackNs.record(nanos);
+			mWindowSumNs += nanos;
+			mWindowCount++;
+		}
+
+		/**
+		 * Gets the number of UI messages posted but not yet handled.
+		 *
+		 * @return Current UI queue depth for this sensor.
+		 */
+		public long getPending() {
+			long pending = mPosted - mHandled;
+			return pending < 0 ? 0 : pending;
+		}
+
+		public void onTrigger(long latencyNs) {
+			mTriggerNs.record(latencyNs);
+		}
+
+		/**
+		 * Records the time a virtual sensor spent computing one sample.
+		 *
+		 * @param nanos duration in nanoseconds.
+		 */
+		public void onStage(long nanos) {
+			mStageNs.record(nanos);
+		}
+
+		public Histogram getStageHistogram() {
+			return mStageNs;
+		}
+
+		public Histogram getCallbackHistogram() {
+			return mCallbackNs;
+		}
+
+		public LatencyTrace getTrace() {
+			return mTrace;
+		}
+
+		void reset() {
+			mReceived = mThrottled = mUiDropped = mSuppressed = mPosted = mHandled = 0;
+			mWindowSumNs = mWindowCount = 0;
+			mCallbackNs.reset();
+			mTriggerNs.reset();
+			mStageNs.reset();
+			mTrace.reset();
+		}
+
+		void dump(StringBuilder sb) {
+			sb.append(mName)
+			.append(" rx=").append(mReceived)
+			.append(" throttled=").append(mThrottled)
+			.append(" suppressed=").append(mSuppressed)
+			.append(" uiDropped=").append(mUiDropped)
+			.append(" posted=").append(mPosted)
+			.append(" pending=").append(getPending())
+			.append(" cb ");
+			mCallbackNs.format(sb);
+			if (mTriggerNs.getCount() > 0) {
+				sb.append(" trigger ");
+				mTriggerNs.format(sb);
+			}
+			if (mStageNs.getCount() > 0) {
+				sb.append(" stage ");
+				mStageNs.format(sb);
+			}
+			sb.append("\n  latency(us) ");
+			mTrace.format(sb);
+			sb.append('\n');
+		}
+	}
+
+	/**
+	 * Fixed-size latency histogram with power-of-two microsecond buckets.
+	 * Recording never allocates.
+	 */
+	public static class Histogram {
+		/** Bucket i counts values in [2^(i-1), 2^i) microseconds, bucket 0 is < 1us. */
+		private static final int BUCKETS = 32;
+		private final long[] mBuckets = new long[BUCKETS];
+		private long mCount;
+		private long mSumNs;
+		private long mMaxNs;
+
+		/**
+		 * Records one value.
+		 *
+		 * @param nanos duration in nanoseconds. Negative values are ignored.
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) {
+				return;
+			}
+			long us = nanos / 1000;
+			int bucket = us == 0 ? 0 : 64 - Long.numberOfLeadingZeros(us);
+			if (bucket >= BUCKETS) {
+				bucket = BUCKETS - 1;
+			}
+			mBuckets[bucket]++;
+			mCount++;
+			mSumNs += nanos;
+			if (nanos > mMaxNs) {
+				mMaxNs = nanos;
+			}
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getMeanNs() {
+			return mCount == 0 ? 0 : mSumNs / mCount;
+		}
+
+		public long getMaxNs() {
+			return mMaxNs;
+		}
+
+		/**
+		 * Estimates a percentile as the upper bound of the bucket containing it.
+		 *
+		 * @param fraction percentile in [0, 1], e.g. 0.99.
+		 * @return Estimated value in nanoseconds, 0 if nothing was recorded.
+		 */
+		public long getPercentileNs(double fraction) {
+			long count = mCount;
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank) {
+					return (1L << i) * 1000;
+				}
+			}
+			return mMaxNs;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				mBuckets[i] = 0;
+			}
+			mCount = mSumNs = mMaxNs = 0;
+		}
+
+		void format(StringBuilder sb) {
+			sb.append("n=").append(mCount)
+			.append(" avg=").append(getMeanNs() / 1000).append("us")
+			.append(" p99<").append(getPercentileNs(0.99) / 1000).append("us")
+			.append(" max=").append(mMaxNs / 1000).append("us");
+		}
+	}
+
+	/**
+	 * Immutable copy of the counters at a point in time.
+	 */
+	public static class Snapshot {
+		private final long mTakenMs;
+		private final long mPeriodMs;
+		private final String[] mNames;
+		/** Statistics the rows were taken from, to match them with the next snapshot. */
+		private final Stats[] mSources;
+		private final long[] mReceived;
+		private final long[] mThrottled;
+		private final long[] mUiDropped;
+		private final int[] mSuppressedPct;
+		private final long[] mPending;
+		private final long[] mCallbackP99Ns;
+		private final long[] mRxPerSec;
+		private final String[] mLatency;
+
+		Snapshot(long takenMs, List<Stats> stats, Snapshot previous) {
+			final int n = stats.size();
+			mTakenMs = takenMs;
+			mPeriodMs = previous == null ? 0 : takenMs - previous.mTakenMs;
+			mNames = new String[n];
+			mSources = stats.toArray(new Stats[n]);
+			mReceived = new long[n];
+			mThrottled = new long[n];
+			mUiDropped = new long[n];
+			mSuppressedPct = new int[n];
+			mPending = new long[n];
+			mCallbackP99Ns = new long[n];
+			mRxPerSec = new long[n];
+			mLatency = new String[n];
+			StringBuilder latency = new StringBuilder(96);
+			for (int i = 0; i < n; i++) {
+				Stats s = stats.get(i);
+				if (s.mTrace.getStage(LatencyTrace.STAGE_TOTAL).getCount() > 0) {
+					latency.setLength(0);
+					s.mTrace.format(latency);
+					mLatency[i] = latency.toString();
+				}
+				mNames[i] = s.mName;
+				mReceived[i] = s.mReceived;
+				mThrottled[i] = s.mThrottled;
+				mUiDropped[i] = s.mUiDropped;
+				mSuppressedPct[i] = Math.round(s.getSuppressionRatio() * 100);
+				mPending[i] = s.getPending();
+				mCallbackP99Ns[i] = s.mCallbackNs.getPercentileNs(0.99);
+				long prev = previous == null ? -1 : previous.getReceived(s);
+				mRxPerSec[i] = prev < 0 || mPeriodMs <= 0 ? 0 :
+								(mReceived[i] - prev) * 1000 / mPeriodMs;
+			}
+		}
+
+		/**
+		 * Gets the received count of a sensor. Matches by instance, as sensors
+		 * of unknown type all share the same name.
+		 *
+		 * @param stats statistics of the sensor.
+		 * @return The count, -1 if the statistics were not registered then.
+		 */
+		private long getReceived(Stats stats) {
+			for (int i = 0; i < mSources.length; i++) {
+				if (mSources[i] == stats) {
+					return mReceived[i];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Gets the total number of UI messages still queued across all sensors.
+		 *
+		 * @return Sum of per-sensor pending UI messages.
+		 */
+		public long getTotalPending() {
+			long total = 0;
+			for (long pending : mPending) {
+				total += pending;
+			}
+			return total;
+		}
+
+		/**
+		 * Gets the worst per-sensor p99 callback latency.
+		 *
+		 * @return Maximum p99 callback latency in nanoseconds.
+		 */
+		public long getMaxCallbackP99Ns() {
+			long max = 0;
+			for (long p99 : mCallbackP99Ns) {
+				if (p99 > max) {
+					max = p99;
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Formats the snapshot for the diagnostics panel, one line per sensor.
+		 *
+		 * @return Formatted snapshot.
+		 */
+		public String format() {
+			StringBuilder sb = new StringBuilder(64 * (mNames.length + 1));
+			sb.append("sensor  rx/s  rx  throttled  supp%  uiDrop  pending  cb-p99(us)\n");
+			for (int i = 0; i < mNames.length; i++) {
+				sb.append(mNames[i])
+				.append("  ").append(mRxPerSec[i])
+				.append("  ").append(mReceived[i])
+				.append("  ").append(mThrottled[i])
+				.append("  ").append(mSuppressedPct[i])
+				.append("  ").append(mUiDropped[i])
+				.append("  ").append(mPending[i])
+				.append("  ").append(mCallbackP99Ns[i] / 1000)
+				.append('\n');
+				if (mLatency[i] != null) {
+					sb.append("  latency(us) ").append(mLatency[i]).append('\n');
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Local time-series store of sensor samples, queryable on the device.
+ * <p/>
+ * Samples are copied into preallocated batches on the producer thread and
+ * written by a background thread, one transaction per batch, through
+ * compiled statements. Per-minute and per-hour rollups (count, sum, min and
+ * max of the first three values) are accumulated in memory on ingest and
+ * upserted at the end of every batch, so range queries over long periods read
+ * a few rows per bucket through the primary key instead of scanning raw
+ * samples. A bucket already in the database, e.g. written before the store
+ * was reopened, is read back when it is opened and merged into. Old rows are
+ * deleted periodically according to per-table retention, and the freed pages
+ * are returned to the file system.
+ * <p/>
+ * Samples are stored in wall clock time. The SensorEvent.timestamp clock
+ * differs between devices, so its offset to the wall clock is taken from the
+ * first sample, as the wall clock time at arrival minus its time stamp.
+ * <p/>
+ * {@link #add} must always be called from the same thread. Queries can be
+ * made from any thread but block on the database; keep them off the UI
+ * thread.
+ */
+public class SensorStore implements SensorHelper.SampleListener {
+
+	private static final String TAG = SensorStore.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+	/** Query resolution: individual samples. */
+	public static final int RESOLUTION_RAW = 0;
+	/** Query resolution: one point per minute. */
+	public static final int RESOLUTION_MINUTE = 1;
+	/** Query resolution: one point per hour. */
+	public static final int RESOLUTION_HOUR = 2;
+
+	private static final String[] TABLES = { "raw", "minute", "hour" };
+	private static final long[] BUCKET_MS = { 0, 60 * 1000L, 60 * 60 * 1000L };
+
+	private static final int DB_VERSION = 1;
+	/** Values stored per raw sample. */
+	private static final int MAX_VALUES = 6;
+	/** Values rolled up per sample. */
+	private static final int ROLLUP_VALUES = 3;
+
+	/** Samples per batch; one transaction each. */
+	private static final int BATCH_SIZE = 2048;
+	/** Batches in flight; when all are queued, new samples are dropped. */
+	private static final int BATCH_COUNT = 4;
+	/** Interval between two retention passes. */
+	private static final long RETENTION_INTERVAL_MS = 10 * 60 * 1000L;
+	/** Pages returned to the file system per retention pass. */
+	private static final int VACUUM_PAGES = 1024;
+
+	private static final int MSG_WRITE = 1;
+	private static final int MSG_RETENTION = 2;
+	private static final int MSG_CLOSE = 3;
+
+	/** Preallocated samples handed from the producer to the writer. */
+	private static class Batch {
+		int size;
+		final int[] types = new int[BATCH_SIZE];
+		final long[] timeMs = new long[BATCH_SIZE];
+		final int[] counts = new int[BATCH_SIZE];
+		final float[] values = new float[BATCH_SIZE * MAX_VALUES];
+	}
+
+	/** Running aggregate of one sensor over one bucket. */
+	private static class Rollup {
+		long bucket = -1;
+		int n;
+		final double[] sum = new double[ROLLUP_VALUES];
+		final float[] min = new float[ROLLUP_VALUES];
+		final float[] max = new float[ROLLUP_VALUES];
+		boolean dirty;
+	}
+
+	/**
+	 * Result of a range query over one value of one sensor. For raw samples
+	 * average, minimum and maximum are the same.
+	 */
+	public static class Series {
+		public final int size;
+		/** Sample time or bucket start, in milliseconds since the epoch. */
+		public final long[] timeMs;
+		public final float[] avg;
+		public final float[] min;
+		public final float[] max;
+
+		Series(int size) {
+			this.size = size;
+			timeMs = new long[size];
+			avg = new float[size];
+			min = new float[size];
+			max = new float[size];
+		}
+	}
+
+	private final Helper mHelper;
+	private final HandlerThread mThread;
+	private final Handler mWriter;
+	private final ArrayBlockingQueue<Batch> mFree = new ArrayBlockingQueue<Batch>(BATCH_COUNT);
+	/** Batch being filled by the producer thread. */
+	private Batch mBatch;
+	/** Offset from SensorEvent.timestamp milliseconds to wall clock milliseconds. */
+	private volatile long mEpochOffsetMs = NO_OFFSET;
+	private static final long NO_OFFSET = Long.MIN_VALUE;
+
+	private final long[] mRetentionMs = { 60 * 60 * 1000L, 7 * 24 * 60 * 60 * 1000L,
+			365 * 24 * 60 * 60 * 1000L };
+
+	// Writer thread state.
+	private SQLiteDatabase mDb;
+	private SQLiteStatement mInsertRaw;
+	private final SQLiteStatement[] mUpsertRollup = new SQLiteStatement[TABLES.length];
+	private final String[] mSelectRollup = new String[TABLES.length];
+	private final String[] mRollupArgs = new String[2];
+	/** Per sensor type, minute and hour rollups. */
+	private final Map<Integer, Rollup[]> mRollups = new HashMap<Integer, Rollup[]>();
+	private long mLastRetentionMs;
+	private final SensorMetrics.Histogram mCommitNs = new SensorMetrics.Histogram();
+
+	private volatile long mWritten;
+	private volatile long mDropped;
+
+	private static class Helper extends SQLiteOpenHelper {
+		Helper(Context context, String name) {
+			super(context, name, null, DB_VERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase db) {
+			// Must precede the first table for incremental vacuum to be available.
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			db.execSQL("CREATE TABLE raw (sensor INTEGER NOT NULL, ts INTEGER NOT NULL,"
+					+ " n INTEGER NOT NULL, v0 REAL, v1 REAL, v2 REAL, v3 REAL, v4 REAL, v5 REAL)");
+			db.execSQL("CREATE INDEX raw_sensor_ts ON raw (sensor, ts)");
+			db.execSQL("CREATE INDEX raw_ts ON raw (ts)");
+			for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+				String table = TABLES[r];
+				db.execSQL("CREATE TABLE " + table + " (sensor INTEGER NOT NULL,"
+						+ " bucket INTEGER NOT NULL, n INTEGER NOT NULL,"
+						+ " s0 REAL, lo0 REAL, hi0 REAL, s1 REAL, lo1 REAL, hi1 REAL,"
+						+ " s2 REAL, lo2 REAL, hi2 REAL, PRIMARY KEY (sensor, bucket))");
+				db.execSQL("CREATE INDEX " + table + "_bucket ON " + table + " (bucket)");
+			}
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			for (String table : TABLES) {
+				db.execSQL("DROP TABLE IF EXISTS " + table);
+			}
+			onCreate(db);
+		}
+	}
+
+	private final Handler.Callback mWriterCallback = new Handler.Callback() {
+		@Override
+		public boolean handleMessage(Message msg) {
+			switch (msg.what) {
+			case MSG_WRITE:
+				Batch batch = (Batch) msg.obj;
+				write(batch);
+				batch.size = 0;
+				mFree.offer(batch);
+				break;
+			case MSG_RETENTION:
+				applyRetention(System.currentTimeMillis());
+				break;
+			case MSG_CLOSE:
+				close(msg.obj != null ? (Batch) msg.obj : null);
+				break;
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Constructs SensorStore instance and opens the database in the background.
+	 *
+	 * @param context app context.
+	 * @param name database file name.
+	 */
+	public SensorStore(Context context, String name) {
+		mHelper = new Helper(context.getApplicationContext(), name);
+		for (int i = 0; i < BATCH_COUNT; i++) {
+			mFree.offer(new Batch());
+		}
+		mThread = new HandlerThread("sensor-store", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mWriter = new Handler(mThread.getLooper(), mWriterCallback);
+		mWriter.post(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		});
+	}
+
+	/**
+	 * Sets how long samples and rollups are kept. Applied on the next
+	 * retention pass.
+	 *
+	 * @param resolution one of the RESOLUTION_XXX constants.
+	 * @param retentionMs age after which rows are deleted, 0 to keep nothing.
+	 */
+	public void setRetention(int resolution, long retentionMs) {
+		synchronized (mRetentionMs) {
+			mRetentionMs[resolution] = retentionMs;
+		}
+	}
+
+	@Override
+	public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+		add(sensor.getType(), timestampNs, values, count);
+	}
+
+	/**
+	 * Queues one sample for writing.
+	 *
+	 * @param type sensor type.
+	 * @param timestampNs SensorEvent.timestamp of the sample.
+	 * @param values sample values.
+	 * @param count number of valid values.
+	 * @return false if the sample was dropped because the writer fell behind.
+	 */
+	public boolean add(int type, long timestampNs, float[] values, int count) {
+		Batch batch = mBatch;
+		if (batch == null) {
+			batch = mBatch = mFree.poll();
+			if (batch == null) {
+				mDropped++;
+				return false;
+			}
+		}
+		int i = batch.size++;
+		if (count > MAX_VALUES) {
+			count = MAX_VALUES;
+		}
+		batch.types[i] = type;
+		batch.timeMs[i] = toEpochMs(timestampNs);
+		batch.counts[i] = count;
+		System.arraycopy(values, 0, batch.values, i * MAX_VALUES, count);
+		if (batch.size == BATCH_SIZE) {
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Converts a sample time stamp to the wall clock time it is stored at.
+	 * Before the first sample, the offset is estimated from the current time.
+	 *
+	 * @param timestampNs SensorEvent.timestamp of a sample.
+	 * @return Milliseconds since the epoch.
+	 */
+	public long toEpochMs(long timestampNs) {
+		long offsetMs = mEpochOffsetMs;
+		if (offsetMs == NO_OFFSET) {
+			offsetMs = System.currentTimeMillis() - timestampNs / 1000000;
+			mEpochOffsetMs = offsetMs;
+		}
+		return timestampNs / 1000000 + offsetMs;
+	}
+
+	/**
+	 * Hands the current partial batch to the writer. Call it periodically from
+	 * the producer thread so that slow sensors do not wait for a full batch.
+	 */
+	public void flush() {
+		if (mBatch != null && mBatch.size > 0) {
+			mWriter.obtainMessage(MSG_WRITE, mBatch).sendToTarget();
+			mBatch = null;
+		}
+	}
+
+	/**
+	 * Writes the pending samples and closes the database. Must be called from
+	 * the producer thread; the store cannot be used afterwards.
+	 */
+	public void close() {
+		Batch batch = mBatch;
+		mBatch = null;
+		mWriter.obtainMessage(MSG_CLOSE, batch != null && batch.size > 0 ? batch : null)
+				.sendToTarget();
+	}
+
+	/**
+	 * Gets the number of samples committed so far.
+	 *
+	 * @return Samples written since construction.
+	 */
+	public long getWritten() {
+		return mWritten;
+	}
+
+	/**
+	 * Gets the number of samples dropped because all batches were queued.
+	 *
+	 * @return Samples dropped since construction.
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * Gets the time taken by each batch transaction. Updated by the writer
+	 * thread, so readings from other threads are approximate.
+	 *
+	 * @return Commit time histogram.
+	 */
+	public SensorMetrics.Histogram getCommitTimes() {
+		return mCommitNs;
+	}
+
+	/**
+	 * Reads one value of one sensor over a time range.
+	 *
+	 * @param type sensor type.
+	 * @param resolution one of the RESOLUTION_XXX constants.
+	 * @param index value index; 0 to 2 for rollups, 0 to 5 for raw samples.
+	 * @param fromMs start of the range, in milliseconds since the epoch.
+	 * @param toMs end of the range, inclusive.
+	 * @return Points in time order.
+	 */
+	public Series query(int type, int resolution, int index, long fromMs, long toMs) {
+		String sql;
+		if (resolution == RESOLUTION_RAW) {
+			sql = "SELECT ts, 1, v" + index + ", v" + index + ", v" + index
+					+ " FROM raw WHERE sensor = ? AND ts BETWEEN ? AND ? ORDER BY ts";
+		} else {
+			sql = "SELECT bucket, n, s" + index + ", lo" + index + ", hi" + index
+					+ " FROM " + TABLES[resolution]
+					+ " WHERE sensor = ? AND bucket BETWEEN ? AND ? ORDER BY bucket";
+		}
+		Cursor c = mHelper.getReadableDatabase().rawQuery(sql, new String[] {
+				Integer.toString(type), Long.toString(fromMs), Long.toString(toMs) });
+		try {
+			Series series = new Series(c.getCount());
+			for (int i = 0; c.moveToNext(); i++) {
+				series.timeMs[i] = c.getLong(0);
+				series.avg[i] = (float) (c.getDouble(2) / c.getInt(1));
+				series.min[i] = (float) c.getDouble(3);
+				series.max[i] = (float) c.getDouble(4);
+			}
+			return series;
+		} finally {
+			c.close();
+		}
+	}
+
+	/***************************************************************************
+	 * Writer thread
+	 **************************************************************************/
+
+	private void open() {
+		mDb = mHelper.getWritableDatabase();
+		if (Build.VERSION.SDK_INT >= 11) {
+			mDb.enableWriteAheadLogging();
+		}
+		mInsertRaw = mDb.compileStatement("INSERT INTO raw VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+			mUpsertRollup[r] = mDb.compileStatement("INSERT OR REPLACE INTO " + TABLES[r]
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			mSelectRollup[r] = "SELECT n, s0, lo0, hi0, s1, lo1, hi1, s2, lo2, hi2 FROM "
+					+ TABLES[r] + " WHERE sensor = ? AND bucket = ?";
+		}
+		mLastRetentionMs = System.currentTimeMillis();
+		applyRetention(mLastRetentionMs);
+	}
+
+	private void write(Batch batch) {
+		final long startNs = LatencyTrace.now();
+		final boolean keepRaw = getRetention(RESOLUTION_RAW) > 0;
+		final SQLiteStatement insert = mInsertRaw;
+		Rollup[] rollups = null;
+		int lastType = 0;
+		beginTransaction();
+		try {
+			for (int i = 0; i < batch.size; i++) {
+				final int type = batch.types[i];
+				final long timeMs = batch.timeMs[i];
+				final int count = batch.counts[i];
+				final int base = i * MAX_VALUES;
+				if (keepRaw) {
+					insert.bindLong(1, type);
+					insert.bindLong(2, timeMs);
+					insert.bindLong(3, count);
+					for (int v = 0; v < MAX_VALUES; v++) {
+						if (v < count) {
+							insert.bindDouble(4 + v, batch.values[base + v]);
+						} else {
+							insert.bindNull(4 + v);
+						}
+					}
+					insert.executeInsert();
+				}
+				if (rollups == null || type != lastType) {
+					rollups = getRollups(type);
+					lastType = type;
+				}
+				for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+					accumulate(type, r, rollups[r], timeMs, batch.values, base, count);
+				}
+			}
+			// Make the current buckets visible to queries.
+			for (Map.Entry<Integer, Rollup[]> entry : mRollups.entrySet()) {
+				for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+					Rollup rollup = entry.getValue()[r];
+					if (rollup.dirty) {
+						writeRollup(entry.getKey(), r, rollup);
+					}
+				}
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		mWritten += batch.size;
+		mCommitNs.record(LatencyTrace.now() - startNs);
+		if (DEBUG) Log.d(TAG, "Wrote " + batch.size + " samples");
+
+		long now = System.currentTimeMillis();
+		if (now - mLastRetentionMs >= RETENTION_INTERVAL_MS) {
+			mLastRetentionMs = now;
+			mWriter.sendEmptyMessage(MSG_RETENTION);
+		}
+	}
+
+	private void beginTransaction() {
+		if (Build.VERSION.SDK_INT >= 11) {
+			// Lets queries proceed on other connections while we write.
+			mDb.beginTransactionNonExclusive();
+		} else {
+			mDb.beginTransaction();
+		}
+	}
+
+	private Rollup[] getRollups(int type) {
+		Rollup[] rollups = mRollups.get(type);
+		if (rollups == null) {
+			rollups = new Rollup[TABLES.length];
+			for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+				rollups[r] = new Rollup();
+			}
+			mRollups.put(type, rollups);
+		}
+		return rollups;
+	}
+
+	private void accumulate(int type, int resolution, Rollup rollup, long timeMs,
+			float[] values, int base, int count) {
+		long bucket = timeMs - timeMs % BUCKET_MS[resolution];
+		if (bucket != rollup.bucket) {
+			if (rollup.dirty) {
+				writeRollup(type, resolution, rollup);
+			}
+			rollup.bucket = bucket;
+			rollup.n = 0;
+			readRollup(type, resolution, rollup);
+		}
+		int n = Math.min(count, ROLLUP_VALUES);
+		for (int v = 0; v < n; v++) {
+			float value = values[base + v];
+			if (rollup.n == 0) {
+				rollup.sum[v] = value;
+				rollup.min[v] = value;
+				rollup.max[v] = value;
+			} else {
+				rollup.sum[v] += value;
+				if (value < rollup.min[v]) rollup.min[v] = value;
+				if (value > rollup.max[v]) rollup.max[v] = value;
+			}
+		}
+		rollup.n++;
+		rollup.dirty = true;
+	}
+
+	/**
+	 * Continues a bucket already in the database, which the upsert would
+	 * otherwise replace. Runs once per bucket and sensor.
+	 */
+	private void readRollup(int type, int resolution, Rollup rollup) {
+		mRollupArgs[0] = Integer.toString(type);
+		mRollupArgs[1] = Long.toString(rollup.bucket);
+		Cursor c = mDb.rawQuery(mSelectRollup[resolution], mRollupArgs);
+		try {
+			if (c.moveToFirst()) {
+				rollup.n = c.getInt(0);
+				for (int v = 0; v < ROLLUP_VALUES; v++) {
+					rollup.sum[v] = c.getDouble(1 + 3 * v);
+					rollup.min[v] = (float) c.getDouble(2 + 3 * v);
+					rollup.max[v] = (float) c.getDouble(3 + 3 * v);
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	private void writeRollup(int type, int resolution, Rollup rollup) {
+		final SQLiteStatement upsert = mUpsertRollup[resolution];
+		upsert.bindLong(1, type);
+		upsert.bindLong(2, rollup.bucket);
+		upsert.bindLong(3, rollup.n);
+		for (int v = 0; v < ROLLUP_VALUES; v++) {
+			upsert.bindDouble(4 + 3 * v, rollup.sum[v]);
+			upsert.bindDouble(5 + 3 * v, rollup.min[v]);
+			upsert.bindDouble(6 + 3 * v, rollup.max[v]);
+		}
+		upsert.executeInsert();
+		rollup.dirty = false;
+	}
+
+	private long getRetention(int resolution) {
+		synchronized (mRetentionMs) {
+			return mRetentionMs[resolution];
+		}
+	}
+
+	/**
+	 * Deletes rows past their retention and returns free pages to the file
+	 * system, a bounded amount at a time.
+	 */
+	private void applyRetention(long nowMs) {
+		for (int r = RESOLUTION_RAW; r <= RESOLUTION_HOUR; r++) {
+			String column = r == RESOLUTION_RAW ? "ts" : "bucket";
+			mDb.delete(TABLES[r], column + " < ?",
+					new String[] { Long.toString(nowMs - getRetention(r)) });
+		}
+		Cursor c = mDb.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+		try {
+			// The pragma runs one page per step.
+			while (c.moveToNext()) {
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	private void close(Batch last) {
+		if (mDb != null) {
+			if (last != null) {
+				// Also writes the current rollup buckets.
+				write(last);
+			}
+			mInsertRaw.close();
+			for (int r = RESOLUTION_MINUTE; r <= RESOLUTION_HOUR; r++) {
+				mUpsertRollup[r].close();
+			}
+			mHelper.close();
+			mDb = null;
+		}
+		mThread.quit();
+	}
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.djodjo.test.sensortest.SensorHelper.MonitoredSensor;
+import org.djodjo.test.sensortest.analysis.SessionFormat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Records a session of sensor samples and data-quality annotations to a file
+ * in the {@link SessionFormat}, for offline analysis.
+ * <p/>
+ * Records are encoded into large direct buffers on the producer thread and
+ * written by a background thread, so the event path never blocks on storage.
+ * {@link #onSample} and {@link #onQualityEvent} must always be called from
+ * the same thread, which is the case for SensorHelper listeners.
+ */
+public class SessionRecorder implements SensorHelper.SampleListener, SensorHelper.QualityListener {
+
+	private static final String TAG = SessionRecorder.class.getSimpleName();
+
+	/** Size of one buffer; about 26000 records. */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	/** Buffers in flight; when all are queued, new records are dropped. */
+	private static final int BUFFER_COUNT = 4;
+
+	private static final int MSG_WRITE = 1;
+	private static final int MSG_CLOSE = 2;
+
+	private final File mFile;
+	private final Map<MonitoredSensor, Integer> mIndex = new HashMap<MonitoredSensor, Integer>();
+	private final ArrayBlockingQueue<ByteBuffer> mFree =
+			new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+	/** Buffer being filled by the producer thread. */
+	private ByteBuffer mBuffer;
+	private final HandlerThread mThread;
+	private final Handler mWriter;
+	private volatile long mDropped;
+
+	// Writer thread state.
+	private FileOutputStream mOut;
+	private FileChannel mChannel;
+	/** Whether the header holds the time stamp of the first sample yet. */
+	private boolean mFirstStamped;
+
+	private final Handler.Callback mWriterCallback = new Handler.Callback() {
+		@Override
+		public boolean handleMessage(Message msg) {
+			ByteBuffer buffer = (ByteBuffer) msg.obj;
+			if (buffer != null) {
+				if (!mFirstStamped) {
+					stampFirstSample(buffer);
+				}
+				write(buffer);
+				buffer.clear();
+				mFree.offer(buffer);
+			}
+			if (msg.what == MSG_CLOSE) {
+				closeFile();
+				mThread.quit();
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Constructs SessionRecorder instance and starts writing the session
+	 * header. The set of recorded sensors is fixed from now on.
+	 *
+	 * @param file destination; overwritten if it exists.
+	 * @param sensors sensors to record.
+	 */
+	public SessionRecorder(File file, List<MonitoredSensor> sensors) {
+		mFile = file;
+		SessionFormat.SensorEntry[] entries = new SessionFormat.SensorEntry[sensors.size()];
+		for (int i = 0; i < entries.length; i++) {
+			MonitoredSensor sensor = sensors.get(i);
+			mIndex.put(sensor, i);
+			entries[i] = new SessionFormat.SensorEntry(sensor.getType(),
+					sensor.getFriendlyName(), sensor.getUiName(), sensor.getMinDelayUs(),
+					sensor.getMaximumRange());
+		}
+		// The time stamp of the first sample is filled in when it is written.
+		final ByteBuffer header = SessionFormat.encodeHeader(new SessionFormat.Header(
+				System.currentTimeMillis(), 0, entries));
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			mFree.offer(ByteBuffer.allocateDirect(BUFFER_SIZE).order(SessionFormat.ORDER));
+		}
+
+		mThread = new HandlerThread("session-recorder", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mWriter = new Handler(mThread.getLooper(), mWriterCallback);
+		mWriter.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mOut = new FileOutputStream(mFile);
+					mChannel = mOut.getChannel();
+				} catch (IOException e) {
+					Log.e(TAG, "Cannot create " + mFile, e);
+					return;
+				}
+				write(header);
+			}
+		});
+	}
+
+	/**
+	 * Gets the file the session is recorded to.
+	 *
+	 * @return Session file.
+	 */
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Gets the number of records dropped because the writer fell behind.
+	 *
+	 * @return Dropped records since construction.
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	@Override
+	public void onSample(MonitoredSensor sensor, long timestampNs, float[] values, int count) {
+		Integer index = mIndex.get(sensor);
+		ByteBuffer buffer = index != null ? reserve() : null;
+		if (buffer != null) {
+			SessionFormat.putSample(buffer, index, timestampNs, values, count);
+		}
+	}
+
+	@Override
+	public void onQualityEvent(MonitoredSensor sensor, long timestampNs, int flags) {
+		addMarker(SessionFormat.KIND_QUALITY, sensor, timestampNs, flags);
+	}
+
+	/**
+	 * Records an app event, such as a fired rule.
+	 *
+	 * @param sensor sensor the event relates to.
+	 * @param timestampNs time of the event, on the SensorEvent.timestamp clock.
+	 * @param id event identifier.
+	 */
+	public void addEvent(MonitoredSensor sensor, long timestampNs, int id) {
+		addMarker(SessionFormat.KIND_EVENT, sensor, timestampNs, id);
+	}
+
+	private void addMarker(int kind, MonitoredSensor sensor, long timestampNs, int flags) {
+		Integer index = mIndex.get(sensor);
+		ByteBuffer buffer = index != null ? reserve() : null;
+		if (buffer != null) {
+			SessionFormat.putMarker(buffer, kind, index, timestampNs, flags);
+		}
+	}
+
+	/**
+	 * Gets a buffer with room for one record, handing the current one to the
+	 * writer if it is full.
+	 *
+	 * @return Buffer to append to, or null if the record must be dropped.
+	 */
+	private ByteBuffer reserve() {
+		ByteBuffer buffer = mBuffer;
+		if (buffer != null && buffer.remaining() < SessionFormat.RECORD_SIZE) {
+			flush();
+			buffer = null;
+		}
+		if (buffer == null) {
+			buffer = mBuffer = mFree.poll();
+			if (buffer == null) {
+				mDropped++;
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hands the current partial buffer to the writer. Call it periodically
+	 * from the producer thread so that a crash loses little data.
+	 */
+	public void flush() {
+		if (mBuffer != null && mBuffer.position() > 0) {
+			mBuffer.flip();
+			mWriter.obtainMessage(MSG_WRITE, mBuffer).sendToTarget();
+			mBuffer = null;
+		}
+	}
+
+	/**
+	 * Writes the pending records and closes the file. Must be called from
+	 * the producer thread; the recorder cannot be used afterwards.
+	 */
+	public void close() {
+		ByteBuffer buffer = mBuffer;
+		mBuffer = null;
+		if (buffer != null) {
+			buffer.flip();
+		}
+		mWriter.obtainMessage(MSG_CLOSE, buffer).sendToTarget();
+	}
+
+	/***************************************************************************
+	 * Writer thread
+	 **************************************************************************/
+
+	private void write(ByteBuffer buffer) {
+		if (mChannel == null) {
+			return;
+		}
+		try {
+			while (buffer.hasRemaining()) {
+				mChannel.write(buffer);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write " + mFile, e);
+			closeFile();
+		}
+	}
+
+	/**
+	 * Writes the time stamp of the first sample of a buffer into the header,
+	 * if the buffer holds any.
+	 */
+	private void stampFirstSample(ByteBuffer buffer) {
+		int base = buffer.position();
+		while (base + SessionFormat.RECORD_SIZE <= buffer.limit()
+				&& buffer.get(base + SessionFormat.OFF_KIND) != SessionFormat.KIND_SAMPLE) {
+			base += SessionFormat.RECORD_SIZE;
+		}
+		if (mChannel == null || base + SessionFormat.RECORD_SIZE > buffer.limit()) {
+			return;
+		}
+		ByteBuffer timestamp = ByteBuffer.allocate(8).order(SessionFormat.ORDER);
+		timestamp.putLong(0, buffer.getLong(base + SessionFormat.OFF_TIMESTAMP));
+		try {
+			while (timestamp.hasRemaining()) {
+				mChannel.write(timestamp,
+						SessionFormat.OFF_HEADER_FIRST_TIMESTAMP + timestamp.position());
+			}
+			mFirstStamped = true;
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write " + mFile, e);
+		}
+	}
+
+	private void closeFile() {
+		if (mOut != null) {
+			try {
+				mOut.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot close " + mFile, e);
+			}
+			mOut = null;
+			mChannel = null;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.util.Locale;
+
+/**
+ * Measures the start of the sensor screen.
+ * <p/>
+ * The activity stamps each phase of its start as it is reached, from
+ * onCreate: the first frame, the sensors being enumerated, all rows added
+ * and the first sensor value shown. The first frame and the first value
+ * have a budget; the activity logs an error when a start exceeds it, and
+ * StartupBenchmarkTest fails when cold starts do. The time from process
+ * start to onCreate is not included; "adb shell am start -W" reports it.
+ */
+class StartupBenchmark {
+
+	/** Budget of the first frame, which must not wait for the sensors. */
+	static final long FIRST_FRAME_BUDGET_MS = 500;
+	/** Budget of the first value, sensor enumeration included. */
+	static final long FIRST_VALUE_BUDGET_MS = 1500;
+
+	static final int PHASE_FIRST_FRAME = 0;
+	static final int PHASE_SENSORS_READY = 1;
+	static final int PHASE_ROWS_ADDED = 2;
+	static final int PHASE_FIRST_VALUE = 3;
+
+	private static final String[] PHASE_NAMES = {
+		"first frame", "sensors enumerated", "rows added", "first value"
+	};
+
+	private final long mStartNs;
+	/** Time of each phase since mStartNs, -1 until reached. */
+	private final long[] mPhaseNs = new long[PHASE_NAMES.length];
+
+	/**
+	 * Constructs StartupBenchmark instance. Call it first thing in onCreate.
+	 */
+	StartupBenchmark() {
+		mStartNs = LatencyTrace.now();
+		for (int i = 0; i < mPhaseNs.length; i++) {
+			mPhaseNs[i] = -1;
+		}
+	}
+
+	/**
+	 * Stamps a phase as reached now, unless it already was.
+	 *
+	 * @param phase one of the PHASE_XXX constants.
+	 * @return true the first time the phase is reached.
+	 */
+	boolean mark(int phase) {
+		if (mPhaseNs[phase] >= 0) {
+			return false;
+		}
+		mPhaseNs[phase] = LatencyTrace.now() - mStartNs;
+		return true;
+	}
+
+	boolean isReached(int phase) {
+		return mPhaseNs[phase] >= 0;
+	}
+
+	/**
+	 * Gets the time a phase was reached.
+	 *
+	 * @param phase one of the PHASE_XXX constants.
+	 * @return Nanoseconds since onCreate, -1 if not reached.
+	 */
+	long getPhaseNs(int phase) {
+		return mPhaseNs[phase];
+	}
+
+	/**
+	 * Checks the phases reached so far against their budgets.
+	 *
+	 * @return A description of the phases over budget, null if none is.
+	 */
+	String checkBudget() {
+		String over = checkBudget(PHASE_FIRST_FRAME, FIRST_FRAME_BUDGET_MS, null);
+		return checkBudget(PHASE_FIRST_VALUE, FIRST_VALUE_BUDGET_MS, over);
+	}
+
+	private String checkBudget(int phase, long budgetMs, String over) {
+		if (mPhaseNs[phase] <= budgetMs * 1000000) {
+			return over;
+		}
+		String message = String.format(Locale.US, "%s %.1f ms over its %d ms budget",
+				PHASE_NAMES[phase], mPhaseNs[phase] / 1e6, budgetMs);
+		return over == null ? message : over + ", " + message;
+	}
+
+	/**
+	 * Formats the phases reached so far.
+	 *
+	 * @return A one-line report, times in ms since onCreate.
+	 */
+	String format() {
+		StringBuilder sb = new StringBuilder("startup:");
+		for (int i = 0; i < mPhaseNs.length; i++) {
+			sb.append(i == 0 ? " " : ", ").append(PHASE_NAMES[i]);
+			if (mPhaseNs[i] >= 0) {
+				sb.append(String.format(Locale.US, " %.1f ms", mPhaseNs[i] / 1e6));
+			} else {
+				sb.append(" --");
+			}
+		}
+		return sb.toString();
+	}
+}
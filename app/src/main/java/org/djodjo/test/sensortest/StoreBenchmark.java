@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import android.content.Context;
+
+/**
+ * Measures the sustained ingest rate of {@link SensorStore} on the device.
+ * <p/>
+ * Feeds synthetic samples for a set of sensors, each at its own rate, as
+ * fast as the store accepts them, into a scratch database. The result is
+ * compared with the rate all sensors produce together in real time, then the
+ * query latency is measured on the data just written. The scratch database
+ * is kept until the next run.
+ */
+class StoreBenchmark {
+
+	private static final String DB_NAME = "store-benchmark.db";
+
+	private StoreBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark. Blocks for several seconds; never call it on the UI
+	 * thread.
+	 *
+	 * @param context app context.
+	 * @param types sensor types to simulate.
+	 * @param hz sample rate of each sensor.
+	 * @param seconds length of the simulated capture.
+	 * @return A human readable report.
+	 */
+	static String run(Context context, int[] types, int[] hz, int seconds) {
+		context.deleteDatabase(DB_NAME);
+		SensorStore store = new SensorStore(context, DB_NAME);
+		try {
+			// Interleave the sensors by time stamp, as the sensor manager would.
+			long totalHz = 0;
+			long[] periodNs = new long[types.length];
+			long[] nextNs = new long[types.length];
+			for (int i = 0; i < types.length; i++) {
+				periodNs[i] = 1000000000L / hz[i];
+				totalHz += hz[i];
+			}
+			final long startTs = LatencyTrace.now();
+			final long endTs = startTs + seconds * 1000000000L;
+			float[] values = new float[3];
+			long samples = 0;
+			long startNs = LatencyTrace.now();
+			while (true) {
+				int next = 0;
+				for (int i = 1; i < types.length; i++) {
+					if (nextNs[i] < nextNs[next]) {
+						next = i;
+					}
+				}
+				long ts = startTs + nextNs[next];
+				if (ts >= endTs) {
+					break;
+				}
+				nextNs[next] += periodNs[next];
+				values[0] = (float) Math.sin(ts * 1e-9);
+				values[1] = samples % 100;
+				values[2] = next;
+				while (!store.add(types[next], ts, values, values.length)) {
+					// The writer is behind; measure sustained rate, not queue size.
+					Thread.yield();
+				}
+				samples++;
+			}
+			store.flush();
+			while (store.getWritten() < samples) {
+				Thread.sleep(1);
+			}
+			long ingestNs = LatencyTrace.now() - startNs;
+
+			// The simulated capture, in the wall clock time it was stored at.
+			long fromMs = store.toEpochMs(startTs);
+			long toMs = store.toEpochMs(endTs);
+			long queryNs = LatencyTrace.now();
+			SensorStore.Series minutes = store.query(types[0], SensorStore.RESOLUTION_MINUTE,
+					0, fromMs, toMs);
+			queryNs = LatencyTrace.now() - queryNs;
+			long rawNs = LatencyTrace.now();
+			SensorStore.Series raw = store.query(types[0], SensorStore.RESOLUTION_RAW,
+					0, toMs - 1000, toMs);
+			rawNs = LatencyTrace.now() - rawNs;
+
+			double rate = samples * 1e9 / ingestNs;
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Store ingest: %d samples of %d sensors in %d ms, %.0f samples/s"
+					+ " (%.1fx the %d samples/s of all sensors at full rate)\n",
+					samples, types.length, ingestNs / 1000000, rate, rate / totalHz, totalHz));
+			sb.append("  commit per batch: ");
+			store.getCommitTimes().format(sb);
+			sb.append(String.format("\n  query: %d minute points in %.2f ms, %d raw points in %.2f ms",
+					minutes.size, queryNs / 1e6, raw.size, rawNs / 1e6));
+			if (raw.size == 0 || minutes.size == 0) {
+				sb.append("\n  WARNING: the queries found no samples, their times are not meaningful");
+			}
+			return sb.toString();
+		} catch (InterruptedException e) {
+			return "Store benchmark interrupted";
+		} finally {
+			store.close();
+		}
+	}
+}
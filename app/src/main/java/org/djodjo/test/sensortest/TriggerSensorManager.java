@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps one-shot sensors, such as significant motion, armed.
+ * <p/>
+ * Each sensor gets a single listener that is reused across arm/cancel cycles,
+ * and is re-armed from within its own trigger callback before anything else
+ * runs, so no trigger is missed between two requests. Between two triggers a
+ * one-shot sensor costs nothing to the app.
+ * <p/>
+ * Only usable from API 18, see {@link #isSupported()}.
+ */
+@TargetApi(18)
+public class TriggerSensorManager {
+
+	private static final String TAG = TriggerSensorManager.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+	/** Sensor.REPORTING_MODE_ONE_SHOT, added in API 21. */
+	private static final int REPORTING_MODE_ONE_SHOT = 2;
+	/** Sensor.REPORTING_MODE_SPECIAL_TRIGGER, added in API 21. */
+	private static final int REPORTING_MODE_SPECIAL_TRIGGER = 3;
+	/** Sensor.getReportingMode(), added in API 21. Null if not available. */
+	private static Method sGetReportingMode;
+
+	static {
+		if (Build.VERSION.SDK_INT >= 21) {
+			try {
+				sGetReportingMode = Sensor.class.getMethod("getReportingMode");
+			} catch (NoSuchMethodException ignore) {}
+		}
+	}
+
+	/**
+	 * Receives the triggers of an armed sensor.
+	 */
+	public interface Callback {
+		/**
+		 * Handles one trigger. The sensor is already re-armed when this is called.
+		 *
+		 * @param sensor sensor that triggered.
+		 * @param timestampNs TriggerEvent.timestamp.
+		 * @param values trigger values. Only valid during this call.
+		 */
+		void onTrigger(Sensor sensor, long timestampNs, float[] values);
+	}
+
+	private final SensorManager mSenMan;
+	/** One reusable listener per sensor, armed or not. */
+	private final Map<Sensor, Arm> mArms = new HashMap<Sensor, Arm>();
+
+	/**
+	 * Constructs TriggerSensorManager instance.
+	 *
+	 * @param senMan sensor manager to request triggers from.
+	 */
+	public TriggerSensorManager(SensorManager senMan) {
+		mSenMan = senMan;
+	}
+
+	/**
+	 * Checks whether trigger sensors can be used on this device.
+	 *
+	 * @return true from API 18.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= 18;
+	}
+
+	/**
+	 * Checks whether a sensor reports through trigger requests rather than
+	 * through a sensor event listener.
+	 *
+	 * @param sensor sensor to check.
+	 * @return true for one-shot sensors.
+	 */
+	public static boolean isOneShot(Sensor sensor) {
+		if (sGetReportingMode != null) {
+			try {
+				return (Integer) sGetReportingMode.invoke(sensor) == REPORTING_MODE_ONE_SHOT;
+			} catch (Exception ignore) {}
+		}
+		return sensor.getType() == 17; // Sensor.TYPE_SIGNIFICANT_MOTION
+	}
+
+	/**
+	 * Checks whether each sample of a sensor is an event, such as a step,
+	 * rather than a reading: a sample equal to the previous one is then
+	 * still news. Usable at any API level.
+	 *
+	 * @param sensor sensor to check.
+	 * @return true for one-shot and special-trigger sensors.
+	 */
+	public static boolean hasEventSamples(Sensor sensor) {
+		if (sGetReportingMode != null) {
+			try {
+				int mode = (Integer) sGetReportingMode.invoke(sensor);
+				return mode == REPORTING_MODE_ONE_SHOT || mode == REPORTING_MODE_SPECIAL_TRIGGER;
+			} catch (Exception ignore) {}
+		}
+		// Sensor.TYPE_SIGNIFICANT_MOTION, Sensor.TYPE_STEP_DETECTOR
+		return sensor.getType() == 17 || sensor.getType() == 18;
+	}
+
+	/**
+	 * Arms a one-shot sensor until {@link #cancel(Sensor)} is called. Arming an
+	 * already armed sensor only replaces its callback.
+	 *
+	 * @param sensor one-shot sensor to arm.
+	 * @param callback receives every trigger.
+	 * @return true if the sensor is armed.
+	 */
+	public boolean arm(Sensor sensor, Callback callback) {
+		Arm arm = mArms.get(sensor);
+		if (arm == null) {
+			arm = new Arm(sensor);
+			mArms.put(sensor, arm);
+		}
+		arm.mCallback = callback;
+		if (!arm.mArmed) {
+			arm.mArmed = mSenMan.requestTriggerSensor(arm, sensor);
+			if (DEBUG) Log.d(TAG, "+++ Trigger " + sensor.getName() + " armed: " + arm.mArmed);
+		}
+		return arm.mArmed;
+	}
+
+	/**
+	 * Cancels the trigger request of a sensor. The listener is kept for reuse.
+	 *
+	 * @param sensor sensor to disarm. Ignored if not armed.
+	 */
+	public void cancel(Sensor sensor) {
+		Arm arm = mArms.get(sensor);
+		if (arm != null && arm.mArmed) {
+			mSenMan.cancelTriggerSensor(arm, sensor);
+			arm.mArmed = false;
+			if (DEBUG) Log.d(TAG, "--- Trigger " + sensor.getName() + " cancelled.");
+		}
+	}
+
+	/**
+	 * Cancels all trigger requests.
+	 */
+	public void cancelAll() {
+		for (Sensor sensor : mArms.keySet()) {
+			cancel(sensor);
+		}
+	}
+
+	/**
+	 * Checks whether a sensor is currently armed.
+	 *
+	 * @param sensor sensor to check.
+	 * @return true if a trigger request is pending for the sensor.
+	 */
+	public boolean isArmed(Sensor sensor) {
+		Arm arm = mArms.get(sensor);
+		return arm != null && arm.mArmed;
+	}
+
+	/**
+	 * Trigger listener of one sensor.
+	 */
+	private class Arm extends TriggerEventListener {
+		private final Sensor mSensor;
+		private Callback mCallback;
+		private boolean mArmed;
+
+		Arm(Sensor sensor) {
+			mSensor = sensor;
+		}
+
+		@Override
+		public void onTrigger(TriggerEvent event) {
+			long nowNs = LatencyTrace.now();
+			// The request was consumed by this trigger; re-arm right away.
+			mArmed = mSenMan.requestTriggerSensor(this, mSensor);
+			if (DEBUG) Log.d(TAG, "Trigger " + mSensor.getName() + " latency "
+					+ (nowNs - event.timestamp) / 1000 + "us, re-armed: " + mArmed);
+			Callback callback = mCallback;
+			if (callback != null) {
+				callback.onTrigger(mSensor, event.timestamp, event.values);
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 Kalin Maldzhanski
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.djodjo.test.sensortest;
+
+/**
+ * Sliding-window features of one scalar signal, such as the magnitude of
+ * the acceleration.
+ * <p/>
+ * Samples are first averaged into slots of a fixed rate, so the window
+ * covers the same time whatever rate the sensor delivers at, and the
+ * averaging doubles as an anti-aliasing filter. Slots go into a ring of
+ * primitive floats whose sum and sum of squares are kept up to date, so
+ * each sample costs a few additions. Every hop a window is ready, and
+ * {@link #compute(float[], int)} makes one pass over it for zero crossings
+ * and a Goertzel filter per frequency of interest. Its cost depends only on
+ * the window size and the band, never on the sensor rate.
+ */
+public class WindowFeatures {
+
+	/** Mean of the window. */
+	public static final int MEAN = 0;
+	/** Variance of the window. */
+	public static final int VARIANCE = 1;
+	/** Power of the signal within the analysed band, i.e. its band-passed variance. */
+	public static final int ENERGY = 2;
+	/** Number of times the signal crosses its mean within the window. */
+	public static final int ZERO_CROSSINGS = 3;
+	/** Frequency with the most power within the band, in Hz, 0 if there is none. */
+	public static final int DOMINANT_HZ = 4;
+	/** Number of features written by {@link #compute(float[], int)}. */
+	public static final int COUNT = 5;
+
+	/** Band power below which the dominant frequency is meaningless noise. */
+	private static final double MIN_BAND_POWER = 1e-6;
+
+	private final long mSlotNs;
+	private final int mHop;
+	private final float[] mWindow;
+	private int mHead;
+	private int mFilled;
+	private int mSinceReady;
+	private double mSum;
+	private double mSumSq;
+
+	/** Slot being accumulated, in mSlotNs units since boot. */
+	private long mSlot;
+	private double mSlotSum;
+	private int mSlotCount;
+	private long mLastTimestampNs;
+
+	/** First Goertzel bin, and per-bin coefficient 2cos(2πk/N). */
+	private final int mFirstBin;
+	private final double[] mCoeff;
+	private final double[] mS1;
+	private final double[] mS2;
+	private final float mBinHz;
+
+	/**
+	 * Constructs WindowFeatures instance.
+	 *
+	 * @param rateHz rate the signal is resampled to.
+	 * @param size slots per window.
+	 * @param hop slots between two windows, at most size.
+	 * @param minHz lowest frequency of the analysed band.
+	 * @param maxHz highest frequency of the analysed band, at most rateHz / 2.
+	 */
+	public WindowFeatures(int rateHz, int size, int hop, float minHz, float maxHz) {
+		mSlotNs = 1000000000L / rateHz;
+		mHop = Math.max(1, Math.min(hop, size));
+		mWindow = new float[size];
+		mBinHz = (float) rateHz / size;
+		mFirstBin = Math.max(1, Math.round(minHz / mBinHz));
+		int lastBin = Math.max(mFirstBin, Math.min(size / 2, Math.round(maxHz / mBinHz)));
+		int bins = lastBin - mFirstBin + 1;
+		mCoeff = new double[bins];
+		mS1 = new double[bins];
+		mS2 = new double[bins];
+		for (int i = 0; i < bins; i++) {
+			mCoeff[i] = 2 * Math.cos(2 * Math.PI * (mFirstBin + i) / size);
+		}
+	}
+
+	/**
+	 * Adds one sample.
+	 *
+	 * @param timestampNs time stamp of the sample, on the SensorEvent.timestamp clock.
+	 * @param value sample value.
+	 * @return true if a new window is ready for {@link #compute(float[], int)}.
+	 */
+	public boolean add(long timestampNs, float value) {
+		final long slot = timestampNs / mSlotNs;
+		boolean ready = false;
+		if (mSlotCount > 0 && slot > mSlot) {
+			float mean = (float) (mSlotSum / mSlotCount);
+			long missing = slot - mSlot - 1;
+			if (missing >= mWindow.length) {
+				// Nothing of the window would survive the gap; start over.
+				reset();
+			} else {
+				ready = push(mean);
+				// Hold the last value over short gaps.
+				for (long i = 0; i < missing; i++) {
+					ready |= push(mean);
+				}
+			}
+			mSlotSum = 0;
+			mSlotCount = 0;
+		}
+		if (mSlotCount == 0) {
+			mSlot = slot;
+		}
+		// Late samples count towards the current slot.
+		mSlotSum += value;
+		mSlotCount++;
+		mLastTimestampNs = timestampNs;
+		return ready;
+	}
+
+	private boolean push(float value) {
+		final float[] window = mWindow;
+		if (mFilled == window.length) {
+			float old = window[mHead];
+			mSum -= old;
+			mSumSq -= old * old;
+		} else {
+			mFilled++;
+		}
+		window[mHead] = value;
+		mSum += value;
+		mSumSq += value * value;
+		if (++mHead == window.length) {
+			mHead = 0;
+			// Once per window length, cancel the rounding errors of the running sums.
+			mSum = 0;
+			mSumSq = 0;
+			for (int i = 0; i < mFilled; i++) {
+				mSum += window[i];
+				mSumSq += window[i] * window[i];
+			}
+		}
+		if (mFilled == window.length && ++mSinceReady >= mHop) {
+			mSinceReady = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the window has been filled since the last reset.
+	 *
+	 * @return true if {@link #compute(float[], int)} describes a full window.
+	 */
+	public boolean isFull() {
+		return mFilled == mWindow.length;
+	}
+
+	/**
+	 * Gets the time stamp of the last sample added.
+	 *
+	 * @return SensorEvent.timestamp of the last sample, 0 if there was none.
+	 */
+	public long getLastTimestampNs() {
+		return mLastTimestampNs;
+	}
+
+	/**
+	 * Gets the time covered by one window.
+	 *
+	 * @return Window length in nanoseconds.
+	 */
+	public long getWindowNs() {
+		return mSlotNs * mWindow.length;
+	}
+
+	/**
+	 * Computes the features of the current window. Does not allocate.
+	 *
+	 * @param out destination of the COUNT features, indexed by the constants
+	 *            of this class. All zero if the window is empty.
+	 * @param offset index in out of the first feature.
+	 */
+	public void compute(float[] out, int offset) {
+		final int n = mFilled;
+		if (n == 0) {
+			for (int i = 0; i < COUNT; i++) {
+				out[offset + i] = 0;
+			}
+			return;
+		}
+		final double mean = mSum / n;
+		final double variance = Math.max(0, mSumSq / n - mean * mean);
+
+		final float[] window = mWindow;
+		final double[] coeff = mCoeff;
+		final double[] s1 = mS1;
+		final double[] s2 = mS2;
+		final int bins = coeff.length;
+		for (int k = 0; k < bins; k++) {
+			s1[k] = s2[k] = 0;
+		}
+		int crossings = 0;
+		boolean above = false;
+		// Oldest slot first; the ring starts at mHead once full.
+		int i = n == window.length ? mHead : 0;
+		for (int j = 0; j < n; j++) {
+			final double x = window[i] - mean;
+			if (++i == window.length) {
+				i = 0;
+			}
+			if (x != 0) {
+				if (j > 0 && (x > 0) != above) {
+					crossings++;
+				}
+				above = x > 0;
+			}
+			for (int k = 0; k < bins; k++) {
+				double s0 = x + coeff[k] * s1[k] - s2[k];
+				s2[k] = s1[k];
+				s1[k] = s0;
+			}
+		}
+		double bandPower = 0;
+		double bestPower = 0;
+		int best = -1;
+		for (int k = 0; k < bins; k++) {
+			double power = s1[k] * s1[k] + s2[k] * s2[k] - coeff[k] * s1[k] * s2[k];
+			bandPower += power;
+			if (power > bestPower) {
+				bestPower = power;
+				best = k;
+			}
+		}
+		// |X_k|^2 of a sinusoid of amplitude A is (A N / 2)^2, its variance A^2 / 2.
+		bandPower = 2 * bandPower / ((double) n * n);
+
+		out[offset + MEAN] = (float) mean;
+		out[offset + VARIANCE] = (float) variance;
+		out[offset + ENERGY] = (float) bandPower;
+		out[offset + ZERO_CROSSINGS] = crossings;
+		out[offset + DOMINANT_HZ] = best >= 0 && bandPower > MIN_BAND_POWER
+				? (mFirstBin + best) * mBinHz : 0;
+	}
+
+	/**
+	 * Drops the window and the slot being accumulated.
+	 */
+	public void reset() {
+		mHead = 0;
+		mFilled = 0;
+		mSinceReady = 0;
+		mSum = 0;
+		mSumSq = 0;
+		mSlotSum = 0;
+		mSlotCount = 0;
+	}
+}